@@ -0,0 +1,125 @@
+package marketplace.bench;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import marketplace.server.ItemCatalog;
+import marketplace.server.ItemImpl;
+import marketplace.shared.Item;
+
+/**
+ * Compares how adding, buying and listing items scale with the size of the
+ * catalog, for the old LinkedList + Collections.sort approach and for
+ * ItemCatalog. Only the in-memory part of each operation is measured, the
+ * database is not involved.
+ *
+ * Usage: java marketplace.bench.CatalogBenchmark [max catalog size]
+ */
+public class CatalogBenchmark {
+    private static final int OPERATIONS = 1000;
+    private static final int LIST_CALLS = 20;
+    //The list based catalog sorts on every add, so it is not run above this
+    private static final int MAX_LIST_SIZE = 20000;
+
+    public static void main(String[] args) {
+        int maxSize = 100000;
+        if (args.length > 0) {
+            maxSize = Integer.parseInt(args[0]);
+        }
+        System.out.println("size\timpl\tadd(us/op)\tbuy(us/op)\tlist(ms/op)");
+        for (int size = 1000; size <= maxSize; size *= 10) {
+            List<Item> existing = randomItems(size, 1);
+            List<Item> added = randomItems(OPERATIONS, 2);
+            if (size <= MAX_LIST_SIZE) {
+                runList(size, existing, added);
+            }
+            runCatalog(size, existing, added);
+        }
+    }
+
+    private static void runList(int size, List<Item> existing,
+            List<Item> added) {
+        List<Item> items = new LinkedList<>(existing);
+        Collections.sort(items);
+
+        long start = System.nanoTime();
+        for (Item item : added) {
+            if (!items.contains(item)) {
+                items.add(item);
+                Collections.sort(items);
+            }
+        }
+        long addTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Item item : added) {
+            if (items.contains(item)) {
+                items.remove(item);
+            }
+        }
+        long buyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LIST_CALLS; i++) {
+            consume(items);
+        }
+        long listTime = System.nanoTime() - start;
+        report(size, "list", addTime, buyTime, listTime);
+    }
+
+    private static void runCatalog(int size, List<Item> existing,
+            List<Item> added) {
+        ItemCatalog catalog = new ItemCatalog();
+        for (Item item : existing) {
+            catalog.add(item);
+        }
+
+        long start = System.nanoTime();
+        for (Item item : added) {
+            catalog.add(item);
+        }
+        long addTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (Item item : added) {
+            if (catalog.contains(item)) {
+                catalog.remove(item);
+            }
+        }
+        long buyTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LIST_CALLS; i++) {
+            consume(catalog.list());
+        }
+        long listTime = System.nanoTime() - start;
+        report(size, "catalog", addTime, buyTime, listTime);
+    }
+
+    private static List<Item> randomItems(int count, long seed) {
+        Random random = new Random(seed);
+        List<Item> items = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new ItemImpl("item" + random.nextInt(count * 10),
+                    random.nextInt(100000) / 100f, "seller" + random.nextInt(100)));
+        }
+        return items;
+    }
+
+    private static int sink;
+
+    private static void consume(List<Item> items) {
+        for (Item item : items) {
+            sink += item.getName().length();
+        }
+    }
+
+    private static void report(int size, String impl, long addTime,
+            long buyTime, long listTime) {
+        System.out.println(size + "\t" + impl
+                + "\t" + (addTime / 1000.0 / OPERATIONS)
+                + "\t" + (buyTime / 1000.0 / OPERATIONS)
+                + "\t" + (listTime / 1000000.0 / LIST_CALLS));
+    }
+}
@@ -0,0 +1,180 @@
+package marketplace.bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import marketplace.server.CatalogStore;
+import marketplace.server.ItemCatalog;
+import marketplace.server.ItemImpl;
+import marketplace.server.OffHeapCatalogStore;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.ItemSortOrder;
+
+/**
+ * Checks that an OffHeapCatalogStore behaves like an ItemCatalog.
+ *
+ * The same random mix of operations is applied to both stores: adds (some
+ * without an itemid or a seller), removes, lookups by key and by itemid,
+ * cheapest matches, paged queries in every sort order following the cursors,
+ * and removes by seller. Every result of the off-heap store must equal the
+ * result of the ItemCatalog, and every so often their sizes and full
+ * listings are compared too. Names are drawn from a small range, so the same
+ * names are added and removed many times and the off-heap store merges its
+ * indexes along the way.
+ *
+ * Usage: java marketplace.bench.CatalogStoreComparison [seed] [operations]
+ * [names]
+ */
+public class CatalogStoreComparison {
+    private static final String[] PREFIXES = {"Ab", "ab", "x", "item1",
+        "ITEM2", ""};
+    private static final int SELLERS = 20;
+    private static final int FULL_CHECK_INTERVAL = 5000;
+    private static final int MAX_PAGES = 5;
+
+    public static void main(String[] args) {
+        long seed = 1;
+        int operations = 200000;
+        int names = 300;
+        if (args.length > 0) {
+            seed = Long.parseLong(args[0]);
+        }
+        if (args.length > 1) {
+            operations = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            names = Integer.parseInt(args[2]);
+        }
+        Random random = new Random(seed);
+        CatalogStore expected = new ItemCatalog();
+        OffHeapCatalogStore actual = new OffHeapCatalogStore();
+        int nextId = 1;
+        for (int i = 0; i < operations; i++) {
+            int operation = random.nextInt(100);
+            String name = (random.nextBoolean() ? "item"
+                    : random.nextBoolean() ? "Ab" : "ab") + random.nextInt(names);
+            float price = random.nextInt(60) / 4f;
+            if (operation < 50) {
+                Item item = new ItemImpl(random.nextInt(10) == 0 ? 0 : nextId++,
+                        name, price, random.nextInt(10) == 0 ? null
+                        : "seller" + random.nextInt(SELLERS));
+                check(actual.add(item) == expected.add(item), "add " + item);
+            } else if (operation < 85) {
+                Item key = new ItemImpl(name, price, null);
+                compare(actual.remove(key), expected.remove(key), "remove");
+            } else if (operation < 90) {
+                int id = random.nextInt(nextId + 1);
+                compare(actual.getById(id), expected.getById(id), "getById");
+                compare(actual.get(name, price), expected.get(name, price), "get");
+                check(actual.contains(name, price) == expected.contains(name, price),
+                        "contains " + name);
+                float maxPrice = random.nextInt(60) / 4f;
+                compare(actual.findCheapest(name, maxPrice),
+                        expected.findCheapest(name, maxPrice), "findCheapest");
+            } else if (operation < 99) {
+                comparePages(actual, expected, randomQuery(random));
+            } else {
+                String seller = "seller" + random.nextInt(SELLERS);
+                List<Item> removed = new ArrayList<>(actual.removeBySeller(seller));
+                List<Item> expectedRemoved = new ArrayList<>(expected.removeBySeller(seller));
+                Collections.sort(removed);
+                Collections.sort(expectedRemoved);
+                compare(removed, expectedRemoved, "removeBySeller " + seller);
+            }
+            if (i % FULL_CHECK_INTERVAL == 0) {
+                check(actual.size() == expected.size(), "size " + actual.size()
+                        + " instead of " + expected.size());
+                compare(actual.list(), expected.list(), "list");
+                compare(new ArrayList<>(actual.values()), expected.list(), "values");
+            }
+        }
+        System.out.println(operations + " operations agree: " + actual.size()
+                + " items, " + actual.getMergeCount() + " merges, "
+                + actual.getPendingKeys() + " pending keys, "
+                + actual.getOffHeapBytes() + " bytes off heap");
+    }
+
+    private static ItemQuery randomQuery(Random random) {
+        ItemQuery query = new ItemQuery();
+        ItemSortOrder[] orders = ItemSortOrder.values();
+        query.setSortOrder(orders[random.nextInt(orders.length)]);
+        query.setPageSize(1 + random.nextInt(50));
+        if (random.nextBoolean()) {
+            query.setMinPrice(random.nextInt(60) / 4f);
+            query.setMaxPrice(random.nextInt(60) / 4f);
+        }
+        if (random.nextBoolean()) {
+            query.setNamePrefix(PREFIXES[random.nextInt(PREFIXES.length)]);
+        }
+        if (random.nextInt(4) == 0) {
+            query.setOffset(random.nextInt(30));
+        }
+        return query;
+    }
+
+    /**
+     * Compares the first pages of the query, each fetched with the cursor of
+     * the one before.
+     */
+    private static void comparePages(CatalogStore actual, CatalogStore expected,
+            ItemQuery query) {
+        String cursor = null;
+        int pages = 0;
+        do {
+            query.setCursor(cursor);
+            ItemPage page = actual.query(query);
+            ItemPage expectedPage = expected.query(query);
+            String description = "query " + query.getSortOrder() + " prefix "
+                    + query.getNamePrefix() + " page " + pages;
+            compare(page.getItems(), expectedPage.getItems(), description);
+            check(Objects.equals(page.getCursor(), expectedPage.getCursor()),
+                    description + " cursor " + page.getCursor() + " instead of "
+                    + expectedPage.getCursor());
+            cursor = page.getCursor();
+        } while (cursor != null && ++pages < MAX_PAGES);
+    }
+
+    private static void compare(Item item, Item expected, String operation) {
+        check(describe(item).equals(describe(expected)), operation + " returned "
+                + describe(item) + " instead of " + describe(expected));
+    }
+
+    private static void compare(Collection<Item> items,
+            Collection<Item> expected, String operation) {
+        check(describe(items).equals(describe(expected)), operation
+                + " returned " + items.size() + " items instead of "
+                + expected.size() + ": " + describe(items) + " instead of "
+                + describe(expected));
+    }
+
+    /**
+     * Items are compared field by field, since equals only looks at the name
+     * and price.
+     */
+    private static String describe(Item item) {
+        if (item == null) {
+            return "null";
+        }
+        return item.getId() + "/" + item.getName() + "/" + item.getPrice()
+                + "/" + item.getSellerName();
+    }
+
+    private static String describe(Collection<Item> items) {
+        StringBuilder description = new StringBuilder();
+        for (Item item : items) {
+            description.append(describe(item)).append(';');
+        }
+        return description.toString();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package marketplace.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import marketplace.server.ItemCatalog;
+import marketplace.server.ItemImpl;
+import marketplace.server.ItemLocks;
+import marketplace.server.Wish;
+import marketplace.server.WishIndex;
+import marketplace.shared.Item;
+
+/**
+ * Measures how the throughput of the in-memory part of addProduct, buyProduct
+ * and addWish scales with the number of threads, when every operation takes
+ * one marketplace wide lock (as the synchronized methods of MarketplaceImpl
+ * used to) and when it only takes the ItemLocks stripe of its item name.
+ *
+ * Each operation also spins for a configurable time while holding the lock,
+ * standing in for the rest of the work done in the critical section.
+ *
+ * Usage: java marketplace.bench.ConcurrencyBenchmark [max threads]
+ *        [critical section nanos] [seconds per run]
+ */
+public class ConcurrencyBenchmark {
+    private static final int ITEM_NAMES = 10000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        long workNanos = 2000;
+        int seconds = 2;
+        if (args.length > 0) {
+            maxThreads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            workNanos = Long.parseLong(args[1]);
+        }
+        if (args.length > 2) {
+            seconds = Integer.parseInt(args[2]);
+        }
+        System.out.println("threads\tmonitor(ops/s)\tstriped(ops/s)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double monitor = run(threads, new ItemLocks(1), workNanos, seconds);
+            double striped = run(threads, new ItemLocks(), workNanos, seconds);
+            System.out.println(threads + "\t" + (long) monitor + "\t"
+                    + (long) striped);
+        }
+    }
+
+    private static double run(int threads, final ItemLocks locks,
+            final long workNanos, int seconds) throws InterruptedException {
+        final ItemCatalog catalog = new ItemCatalog();
+        final WishIndex wishes = new WishIndex();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final String seller = "seller" + i;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long count = 0;
+                    while (running.get()) {
+                        String name = "item" + random.nextInt(ITEM_NAMES);
+                        float price = random.nextInt(100);
+                        Lock lock = locks.lockFor(name);
+                        lock.lock();
+                        try {
+                            switch (random.nextInt(3)) {
+                                case 0:
+                                    Item item = new ItemImpl(name, price, seller);
+                                    if (catalog.add(item)) {
+                                        wishes.matching(name, price);
+                                    }
+                                    break;
+                                case 1:
+                                    Item sold = catalog.get(name, price);
+                                    if (sold != null) {
+                                        catalog.remove(sold);
+                                        wishes.removeFulfilled(name, price, seller);
+                                    }
+                                    break;
+                                default:
+                                    wishes.add(new Wish(name, price, seller));
+                                    catalog.findCheapest(name, price);
+                            }
+                            spin(workNanos);
+                        } finally {
+                            lock.unlock();
+                        }
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                }
+            });
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.get() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            //busy wait, to keep the lock held without sleeping
+        }
+    }
+}
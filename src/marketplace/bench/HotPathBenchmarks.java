@@ -0,0 +1,371 @@
+package marketplace.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+import marketplace.server.ItemCatalog;
+import marketplace.server.ItemImpl;
+import marketplace.server.MarketplaceImpl;
+import marketplace.server.MarketplaceOptions;
+import marketplace.shared.Item;
+import se.kth.id2212.bankjdbc.AccountImpl;
+import se.kth.id2212.bankjdbc.BankImpl;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.bankjdbc.DurabilityMode;
+import se.kth.id2212.bankjdbc.PooledConnection;
+
+/**
+ * Micro-benchmarks of the marketplace and bank hot paths, written as JSON by
+ * MicroBenchmarkRunner.
+ *
+ * The benchmarks that use the database run against embedded, in-memory
+ * Derby (the derby-memory dbms of ConnectionPool), so derby.jar has to be on
+ * the class path; without it they are skipped. Every one of them gets a
+ * fresh database. The bank runs in the same process and is handed to the
+ * marketplace with setBank, so no RMI registry is needed.
+ *
+ * MarketplaceImpl.addAndBuyProduct lists an item and buys it, since every
+ * purchase needs an item to buy; the cost of the purchase alone is that
+ * score minus the one of MarketplaceImpl.addProduct with no wishes.
+ *
+ * Usage: java marketplace.bench.HotPathBenchmarks [-quick] [output.json]
+ */
+public class HotPathBenchmarks {
+    private static final String PASSWORD = "secret";
+    private static final String ADD_USER = "INSERT INTO "
+            + MarketplaceImpl.USER_TABLE_NAME + " VALUES (?, ?, ?, 0, 0)";
+    private static int databases;
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        PrintStream out = System.out;
+        for (String arg : args) {
+            if (arg.equals("-quick")) {
+                quick = true;
+            } else {
+                out = openOutput(arg);
+            }
+        }
+        MicroBenchmarkRunner runner = quick
+                ? new MicroBenchmarkRunner(1, 3, 200)
+                : new MicroBenchmarkRunner(3, 5, 1000);
+        int maxCatalogSize = quick ? 100000 : 1000000;
+
+        runner.run(itemEquals());
+        runner.run(itemCompareTo());
+        for (int size = 1000; size <= maxCatalogSize; size *= 10) {
+            runner.run(catalogContains(size));
+            runner.run(catalogAddRemove(size));
+        }
+        if (derbyAvailable()) {
+            runner.run(addProduct(0));
+            runner.run(addProduct(100));
+            runner.run(addAndBuyProduct());
+            runner.run(login());
+            for (DurabilityMode durability : DurabilityMode.values()) {
+                runner.run(deposit(durability));
+                runner.run(withdraw(durability));
+            }
+        } else {
+            System.err.println("Embedded Derby is not on the class path, "
+                    + "skipping the database benchmarks");
+        }
+        runner.writeJson(out);
+        if (out != System.out) {
+            out.close();
+        }
+        //RMI keeps the exported bank and marketplace objects alive
+        System.exit(0);
+    }
+
+    private static MicroBenchmark itemEquals() {
+        return new MicroBenchmark("ItemImpl.equals") {
+            private final Item item = new ItemImpl("bicycle", 120.5f, "alice");
+            private final Item same = new ItemImpl("bicycle", 120.5f, "bob");
+
+            @Override
+            public void run() {
+                consume(item.equals(same));
+            }
+        };
+    }
+
+    private static MicroBenchmark itemCompareTo() {
+        return new MicroBenchmark("ItemImpl.compareTo") {
+            private final Item item = new ItemImpl("bicycle", 120.5f, "alice");
+            private final Item other = new ItemImpl("Bicycle", 99.5f, "bob");
+
+            @Override
+            public void run() {
+                consume(item.compareTo(other));
+            }
+        };
+    }
+
+    private static MicroBenchmark catalogContains(final int size) {
+        return new MicroBenchmark("ItemCatalog.contains") {
+            private ItemCatalog catalog;
+            private Item[] items;
+            private int next;
+
+            @Override
+            public void setUp() {
+                catalog = new ItemCatalog();
+                items = randomItems(size, 1);
+                for (Item item : items) {
+                    catalog.add(item);
+                }
+            }
+
+            @Override
+            public void run() {
+                consume(catalog.contains(items[next]));
+                next = (next + 1) % items.length;
+            }
+        }.param("size", size);
+    }
+
+    /**
+     * Adds an item that is not in the catalog and removes it again, so the
+     * catalog keeps its size.
+     */
+    private static MicroBenchmark catalogAddRemove(final int size) {
+        return new MicroBenchmark("ItemCatalog.addRemove") {
+            private ItemCatalog catalog;
+            private Item[] added;
+            private int next;
+
+            @Override
+            public void setUp() {
+                catalog = new ItemCatalog();
+                for (Item item : randomItems(size, 1)) {
+                    catalog.add(item);
+                }
+                added = randomItems(1000, 2);
+            }
+
+            @Override
+            public void run() {
+                Item item = added[next];
+                consume(catalog.add(item));
+                consume(catalog.remove(item));
+                next = (next + 1) % added.length;
+            }
+        }.param("size", size);
+    }
+
+    /**
+     * Lists a new item wished for by the given number of users, which makes
+     * addProduct match it against all their wishes.
+     */
+    private static MicroBenchmark addProduct(final int wishes) {
+        return new MicroBenchmark("MarketplaceImpl.addProduct") {
+            private ConnectionPool pool;
+            private MarketplaceImpl marketplace;
+            private float price;
+
+            @Override
+            public void setUp() throws Exception {
+                pool = newDatabase("marketplace");
+                marketplace = newMarketplace(pool);
+                addUser(pool, "seller", "sellerBank");
+                for (int i = 0; i < wishes; i++) {
+                    addUser(pool, "wisher" + i, "wisherBank" + i);
+                    marketplace.addWish("wanted", 1000000 + i, "wisher" + i);
+                }
+            }
+
+            @Override
+            public void run() throws Exception {
+                marketplace.addProduct(new ItemImpl("wanted", price++, "seller"));
+            }
+
+            @Override
+            public void tearDown() throws Exception {
+                close(marketplace);
+            }
+        }.param("wishes", wishes);
+    }
+
+    private static MicroBenchmark addAndBuyProduct() {
+        return new MicroBenchmark("MarketplaceImpl.addAndBuyProduct") {
+            private MarketplaceImpl marketplace;
+            private BankImpl bank;
+            private int next;
+
+            @Override
+            public void setUp() throws Exception {
+                bank = new BankImpl(newDatabase("bank"));
+                bank.newAccount("buyerBank").deposit(10000000);
+                bank.newAccount("sellerBank");
+                ConnectionPool pool = newDatabase("marketplace");
+                marketplace = newMarketplace(pool);
+                marketplace.setBank(bank);
+                addUser(pool, "buyer", "buyerBank");
+                addUser(pool, "seller", "sellerBank");
+            }
+
+            @Override
+            public void run() throws Exception {
+                Item item = new ItemImpl("item" + next++, 1, "seller");
+                marketplace.addProduct(item);
+                if (!marketplace.buyProduct(item, "buyer")) {
+                    throw new IllegalStateException("Purchase failed");
+                }
+            }
+
+            @Override
+            public void tearDown() throws Exception {
+                close(marketplace);
+                close(bank);
+            }
+        };
+    }
+
+    /**
+     * Logs a user in and out again. Logout closes the session, which
+     * unexports the account object login exported.
+     */
+    private static MicroBenchmark login() {
+        return new MicroBenchmark("MarketplaceImpl.login") {
+            private MarketplaceImpl marketplace;
+            private BankImpl bank;
+
+            @Override
+            public void setUp() throws Exception {
+                bank = new BankImpl(newDatabase("bank"));
+                bank.newAccount("userBank");
+                ConnectionPool pool = newDatabase("marketplace");
+                marketplace = newMarketplace(pool);
+                marketplace.setBank(bank);
+                addUser(pool, "user", "userBank");
+            }
+
+            @Override
+            public void run() throws Exception {
+                consume(marketplace.login(null, "user", PASSWORD));
+                marketplace.logout("user");
+            }
+
+            @Override
+            public void tearDown() throws Exception {
+                close(marketplace);
+                close(bank);
+            }
+        };
+    }
+
+    private static MicroBenchmark deposit(final DurabilityMode durability) {
+        return new AccountBenchmark("AccountImpl.deposit", durability) {
+            @Override
+            public void run() throws Exception {
+                account.deposit(1);
+            }
+        };
+    }
+
+    private static MicroBenchmark withdraw(final DurabilityMode durability) {
+        return new AccountBenchmark("AccountImpl.withdraw", durability) {
+            @Override
+            public void run() throws Exception {
+                account.withdraw(1);
+            }
+        };
+    }
+
+    private abstract static class AccountBenchmark extends MicroBenchmark {
+        private final DurabilityMode durability;
+        private BankImpl bank;
+        private File journal;
+        protected AccountImpl account;
+
+        AccountBenchmark(String name, DurabilityMode durability) {
+            super(name);
+            this.durability = durability;
+            param("durability", durability);
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            journal = File.createTempFile("bench-journal", ".log");
+            bank = new BankImpl(newDatabase("bank"), durability, journal);
+            account = (AccountImpl) bank.newAccount("benchAccount");
+            //Small enough that a float still counts single dollars
+            account.deposit(10000000);
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            close(bank);
+            journal.delete();
+        }
+    }
+
+    private static ConnectionPool newDatabase(String name)
+            throws ClassNotFoundException {
+        return new ConnectionPool("bench" + name + (databases++), "derby-memory");
+    }
+
+    /**
+     * @return a marketplace on the pool that has loaded its catalog and
+     * keeps no snapshot
+     */
+    private static MarketplaceImpl newMarketplace(ConnectionPool pool)
+            throws RemoteException {
+        MarketplaceOptions options = new MarketplaceOptions();
+        options.setServeDuringWarmUp(false);
+        options.setSnapshotDirectory(null);
+        return new MarketplaceImpl(pool, options);
+    }
+
+    private static void addUser(ConnectionPool pool, String name,
+            String bankAccount) throws SQLException {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement addUser = connection.prepare(ADD_USER);
+            addUser.setString(1, name);
+            addUser.setString(2, PASSWORD);
+            addUser.setString(3, bankAccount);
+            connection.executeUpdate(addUser);
+        }
+    }
+
+    private static void close(MarketplaceImpl marketplace) throws Exception {
+        marketplace.close();
+        marketplace.getConnectionPool().close();
+    }
+
+    private static void close(BankImpl bank) throws Exception {
+        bank.close();
+        bank.getConnectionPool().close();
+        UnicastRemoteObject.unexportObject(bank, true);
+    }
+
+    private static Item[] randomItems(int count, long seed) {
+        Random random = new Random(seed);
+        Item[] items = new Item[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = new ItemImpl("item" + random.nextInt(count * 10),
+                    random.nextInt(100000) / 100f, "seller" + random.nextInt(100));
+        }
+        return items;
+    }
+
+    private static boolean derbyAvailable() {
+        try {
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private static PrintStream openOutput(String fileName)
+            throws FileNotFoundException {
+        return new PrintStream(new File(fileName));
+    }
+}
@@ -0,0 +1,479 @@
+package marketplace.bench;
+
+import java.io.PrintStream;
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import marketplace.server.MarketplaceOptions;
+import marketplace.server.MarketplaceServer;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.Marketplace;
+import marketplace.shared.MarketplaceAccount;
+import marketplace.shared.MarketplaceClient;
+import se.kth.id2212.bankjdbc.Bank;
+import se.kth.id2212.bankjdbc.DurabilityMode;
+import se.kth.id2212.bankjdbc.Server;
+import se.kth.id2212.metrics.LatencyHistogram;
+
+/**
+ * Drives a marketplace with many simulated clients from one JVM and reports
+ * throughput, latency percentiles per operation and how long callbacks take
+ * to arrive.
+ *
+ * Unless -remote is given, a bank Server and a MarketplaceServer are started
+ * in this JVM first, by default on in-memory Derby (-dbms). Each simulated
+ * client is a MarketplaceClient that registers with its own bank account and
+ * stays logged in. Worker threads then perform operations, drawn from the
+ * mix, for random clients at the target rate.
+ *
+ * Operations are scheduled open loop: operation k is due at start + k / rate,
+ * and its latency is measured from when it was due, so time spent waiting
+ * behind a slow operation is counted instead of hidden. With -rate 0 the
+ * workers run as fast as they can. Operations in the warm-up are performed
+ * but not recorded.
+ *
+ * Callback lag is the time from the call that caused a callback (the buy
+ * for notifySale, the offer for notifyWishAvailable) until the client
+ * receives it.
+ *
+ * Usage: java marketplace.bench.LoadGenerator [-clients n] [-rate ops/s]
+ *        [-seconds s] [-warmup s] [-threads n] [-dbms dbms] [-remote]
+ *        [-mix register:1,login:4,offer:20,wish:10,list:50,buy:15]
+ */
+public class LoadGenerator {
+    private static final String BANK = "Nordea";
+    private static final String HOST = "localhost";
+    private static final String PASSWORD = "load";
+    private static final String PRODUCT_PREFIX = "product";
+    private static final int PRODUCT_NAMES = 100;
+    private static final float INITIAL_BALANCE = 1000000;
+    private static final String DEFAULT_MIX
+            = "register:1,login:4,offer:20,wish:10,list:50,buy:15";
+
+    enum Operation {
+        REGISTER, LOGIN, OFFER, WISH, LIST, BUY;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final Marketplace marketplace;
+    private final Bank bank;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final Map<Operation, Integer> mix;
+    private final int totalWeight;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final LatencyHistogram saleLag = new LatencyHistogram();
+    private final LatencyHistogram wishLag = new LatencyHistogram();
+    private final AtomicLong salesExpected = new AtomicLong();
+    //Items offered and not yet bought, for buyers to pick from
+    private final Queue<Offer> offers = new ConcurrentLinkedQueue<>();
+    //When the offer or purchase of an item was due, by item name and price
+    private final Map<String, Long> offerTimes = new ConcurrentHashMap<>();
+    private final Map<String, Long> saleTimes = new ConcurrentHashMap<>();
+    private final AtomicInteger registrations = new AtomicInteger();
+    //Set when the warm-up is over, callbacks are recorded from then on
+    private volatile boolean recording;
+
+    public LoadGenerator(Marketplace marketplace, Bank bank,
+            Map<Operation, Integer> mix) {
+        this.marketplace = marketplace;
+        this.bank = bank;
+        this.mix = mix;
+        int weights = 0;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+            weights += mix.containsKey(operation) ? mix.get(operation) : 0;
+        }
+        if (weights <= 0) {
+            throw new IllegalArgumentException("The mix has no operations");
+        }
+        totalWeight = weights;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = 20;
+        double rate = 100;
+        int seconds = 30;
+        int warmupSeconds = 5;
+        int threads = -1;
+        String dbms = "derby-memory";
+        boolean remote = false;
+        String mix = DEFAULT_MIX;
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("-remote")) {
+                remote = true;
+            } else if (i + 1 < args.length) {
+                String value = args[++i];
+                if (option.equals("-clients")) {
+                    clientCount = Integer.parseInt(value);
+                } else if (option.equals("-rate")) {
+                    rate = Double.parseDouble(value);
+                } else if (option.equals("-seconds")) {
+                    seconds = Integer.parseInt(value);
+                } else if (option.equals("-warmup")) {
+                    warmupSeconds = Integer.parseInt(value);
+                } else if (option.equals("-threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (option.equals("-dbms")) {
+                    dbms = value;
+                } else if (option.equals("-mix")) {
+                    mix = value;
+                } else {
+                    usage();
+                }
+            } else {
+                usage();
+            }
+        }
+        if (threads <= 0) {
+            threads = clientCount;
+        }
+
+        if (!remote) {
+            new Server(BANK, "LoadBank", dbms, DurabilityMode.SYNC);
+            MarketplaceOptions options = new MarketplaceOptions();
+            options.setDatasource("LoadMarketplace");
+            options.setDbms(dbms);
+            options.setSnapshotDirectory(null);
+            new MarketplaceServer(options);
+        }
+        Marketplace marketplace = (Marketplace) Naming.lookup("rmi://" + HOST
+                + "/" + MarketplaceServer.MARKETPLACENAME);
+        Bank bank = (Bank) Naming.lookup("rmi://" + HOST + "/" + BANK);
+
+        LoadGenerator generator = new LoadGenerator(marketplace, bank, parseMix(mix));
+        generator.createClients(clientCount);
+        generator.run(threads, rate, warmupSeconds, seconds);
+        //Give the last callbacks a moment to arrive
+        Thread.sleep(1000);
+        generator.report(System.out, clientCount, rate, seconds);
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.out.println("java marketplace.bench.LoadGenerator [-clients n] "
+                + "[-rate ops/s] [-seconds s] [-warmup s] [-threads n] "
+                + "[-dbms dbms] [-remote] [-mix " + DEFAULT_MIX + "]");
+        System.exit(1);
+    }
+
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry: " + entry);
+            }
+            weights.put(Operation.valueOf(parts[0].trim().toUpperCase()),
+                    Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    /**
+     * Registers the clients and logs them in, which is not measured.
+     */
+    public void createClients(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            SimulatedClient client = new SimulatedClient("load" + runId + "-" + i, i);
+            client.register();
+            clients.add(client);
+        }
+    }
+
+    /**
+     * Performs operations from the worker threads until the time is up.
+     *
+     * @param rate operations per second for all threads together, or 0 for
+     * as many as possible
+     */
+    public void run(int threads, final double rate, int warmupSeconds,
+            int seconds) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long measureStart = start + warmupSeconds * 1000000000L;
+        final long end = measureStart + seconds * 1000000000L;
+        final AtomicLong tickets = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        long due;
+                        if (rate > 0) {
+                            due = start + (long) (tickets.getAndIncrement() * 1e9 / rate);
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                LockSupport.parkNanos(wait);
+                            }
+                        } else {
+                            due = System.nanoTime();
+                        }
+                        if (due >= end) {
+                            return;
+                        }
+                        if (due >= measureStart && !recording) {
+                            recording = true;
+                        }
+                        perform(nextOperation(), due, due >= measureStart);
+                    }
+                }
+            }, "load-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private Operation nextOperation() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Operation weights changed");
+    }
+
+    /**
+     * Performs one operation for a random client, with the client's lock held
+     * so that its logins do not overlap with its other calls.
+     */
+    private void perform(Operation operation, long due, boolean record) {
+        SimulatedClient client = clients.get(
+                ThreadLocalRandom.current().nextInt(clients.size()));
+        synchronized (client) {
+            try {
+                long unmeasured = 0;
+                switch (operation) {
+                    case REGISTER:
+                        unmeasured = registerAndLeave();
+                        break;
+                    case LOGIN:
+                        unmeasured = client.relogin();
+                        break;
+                    case OFFER:
+                        client.offer(due);
+                        break;
+                    case WISH:
+                        client.wish();
+                        break;
+                    case LIST:
+                        marketplace.listItems(new ItemQuery(PRODUCT_PREFIX, 50));
+                        break;
+                    case BUY:
+                        client.buy(due);
+                        break;
+                }
+                if (record) {
+                    latencies.get(operation).record(System.nanoTime() - due - unmeasured);
+                }
+            } catch (Exception ex) {
+                if (record) {
+                    errors.get(operation).incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a new user and unregisters it again. Only the registration
+     * is measured, not creating the user's bank account before or
+     * unregistering after.
+     *
+     * @return nanoseconds spent on what is not measured
+     */
+    private long registerAndLeave() throws Exception {
+        long start = System.nanoTime();
+        String name = "load" + runId + "-r" + registrations.incrementAndGet();
+        bank.newAccount(name).deposit(INITIAL_BALANCE);
+        SimulatedClient newcomer = new SimulatedClient(name, -1);
+        long registerStart = System.nanoTime();
+        long registerEnd;
+        try {
+            marketplace.registerCustomer(newcomer, PASSWORD, name);
+        } finally {
+            registerEnd = System.nanoTime();
+            marketplace.unregisterCustomer(name);
+            bank.deleteAccount(name);
+            UnicastRemoteObject.unexportObject(newcomer, true);
+        }
+        return (registerStart - start) + (System.nanoTime() - registerEnd);
+    }
+
+    public void report(PrintStream out, int clientCount, double rate,
+            int seconds) {
+        out.println();
+        out.printf("%d clients, target %s, %d s measured%n", clientCount,
+                rate > 0 ? rate + " ops/s" : "unlimited rate", seconds);
+        out.printf("%-10s %8s %7s %9s %9s %9s %9s %9s %9s %9s%n", "operation",
+                "count", "errors", "ops/s", "mean ms", "p50 ms", "p90 ms",
+                "p99 ms", "p99.9 ms", "max ms");
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            long errorCount = errors.get(operation).get();
+            if (histogram.getCount() > 0 || errorCount > 0) {
+                printRow(out, operation.toString(), histogram, errorCount, seconds);
+            }
+            all.add(histogram);
+            allErrors += errorCount;
+        }
+        printRow(out, "total", all, allErrors, seconds);
+        out.println();
+        out.printf("%-10s %8s %8s %9s %9s %9s %9s %9s%n", "callback",
+                "received", "expected", "p50 ms", "p90 ms", "p99 ms",
+                "p99.9 ms", "max ms");
+        printLag(out, "sale", saleLag, String.valueOf(salesExpected.get()));
+        printLag(out, "wish", wishLag, "-");
+    }
+
+    private static void printRow(PrintStream out, String name,
+            LatencyHistogram histogram, long errorCount, int seconds) {
+        out.printf("%-10s %8d %7d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                name, histogram.getCount(), errorCount,
+                histogram.getCount() / (double) seconds,
+                histogram.getMean() / 1e6, millis(histogram, 50),
+                millis(histogram, 90), millis(histogram, 99),
+                millis(histogram, 99.9), histogram.getMax() / 1e6);
+    }
+
+    private static void printLag(PrintStream out, String name,
+            LatencyHistogram histogram, String expected) {
+        out.printf("%-10s %8d %8s %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                histogram.getCount(), expected, millis(histogram, 50),
+                millis(histogram, 90), millis(histogram, 99),
+                millis(histogram, 99.9), histogram.getMax() / 1e6);
+    }
+
+    private static double millis(LatencyHistogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    private static String key(String itemName, float price) {
+        return itemName + "@" + price;
+    }
+
+    private static final class Offer {
+        final String name;
+        final float price;
+
+        Offer(String name, float price) {
+            this.name = name;
+            this.price = price;
+        }
+    }
+
+    private class SimulatedClient extends UnicastRemoteObject
+            implements MarketplaceClient {
+        private final String name;
+        private final int index;
+        private MarketplaceAccount account;
+        private int offered;
+
+        SimulatedClient(String name, int index) throws RemoteException {
+            this.name = name;
+            this.index = index;
+        }
+
+        void register() throws Exception {
+            bank.newAccount(name).deposit(INITIAL_BALANCE);
+            account = marketplace.registerCustomer(this, PASSWORD, name);
+        }
+
+        /**
+         * Logs out and in again.
+         *
+         * @return nanoseconds spent logging out, which is not measured
+         */
+        long relogin() throws Exception {
+            long start = System.nanoTime();
+            marketplace.logout(name);
+            long loginStart = System.nanoTime();
+            account = marketplace.login(this, name, PASSWORD);
+            if (account == null) {
+                throw new IllegalStateException("Login failed for " + name);
+            }
+            return loginStart - start;
+        }
+
+        /**
+         * Offers an item under one of a few shared names, so that wishes
+         * match, at a price no other client uses.
+         */
+        void offer(long due) throws Exception {
+            String productName = PRODUCT_PREFIX
+                    + ThreadLocalRandom.current().nextInt(PRODUCT_NAMES);
+            float price = (index * 1000 + offered++ % 1000) / 100f;
+            offerTimes.put(key(productName, price), due);
+            account.addProduct(productName, price);
+            offers.add(new Offer(productName, price));
+        }
+
+        void wish() throws Exception {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            account.addWish(PRODUCT_PREFIX + random.nextInt(PRODUCT_NAMES),
+                    random.nextInt(Math.max(1, clients.size() * 10)));
+        }
+
+        /**
+         * Buys the oldest item still on offer, if there is one.
+         */
+        void buy(long due) throws Exception {
+            Offer offer = offers.poll();
+            if (offer == null) {
+                return;
+            }
+            String key = key(offer.name, offer.price);
+            offerTimes.remove(key);
+            saleTimes.put(key, due);
+            account.buyProduct(offer.name, offer.price);
+            if (recording) {
+                salesExpected.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void notifySale(String productName, float price) {
+            Long due = saleTimes.remove(key(productName, price));
+            if (due != null && recording) {
+                saleLag.record(System.nanoTime() - due);
+            }
+        }
+
+        @Override
+        public void notifyWishAvailable(String itemName, float price) {
+            Long due = offerTimes.get(key(itemName, price));
+            if (due != null && recording) {
+                wishLag.record(System.nanoTime() - due);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package marketplace.bench;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One benchmark run by MicroBenchmarkRunner. setUp is called once before the
+ * warm-up iterations, run is called once per measured operation and tearDown
+ * once at the end. Results that the JIT could otherwise optimize away should
+ * be passed to consume.
+ */
+public abstract class MicroBenchmark {
+    private static final Object NEVER = new Object();
+    private static volatile Object sink;
+    private static volatile int neverInt = Integer.MIN_VALUE;
+    private static volatile int sinkInt;
+    private final String name;
+    private final Map<String, String> params = new LinkedHashMap<>();
+
+    protected MicroBenchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a parameter that is reported with the results.
+     */
+    public MicroBenchmark param(String key, Object value) {
+        params.put(key, String.valueOf(value));
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getParams() {
+        return Collections.unmodifiableMap(params);
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs one operation.
+     */
+    public abstract void run() throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+
+    protected static void consume(Object result) {
+        if (result == NEVER) {
+            sink = result;
+        }
+    }
+
+    protected static void consume(int result) {
+        if (result == neverInt) {
+            sinkInt = result;
+        }
+    }
+
+    protected static void consume(boolean result) {
+        consume(result ? 1 : 0);
+    }
+}
@@ -0,0 +1,164 @@
+package marketplace.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs MicroBenchmarks and reports the average time per operation as JSON.
+ *
+ * Each benchmark gets a number of warm-up iterations, whose results are
+ * thrown away, and then a number of measured iterations. An iteration calls
+ * run in a loop for a fixed time and yields one score in nanoseconds per
+ * operation. The reported score is the mean of the measured iterations, and
+ * the error is half the width of its 99.9% confidence interval, computed
+ * with the quantile of Student's t distribution for one degree of freedom
+ * less than there are measured iterations. With a single measured iteration
+ * there is no error estimate, and it is written as null.
+ *
+ * This is a small harness of our own, not JMH: every benchmark runs in this
+ * JVM, one after the other, on one thread, so a benchmark can be affected by
+ * the code the JIT compiled for the ones before it. Compare scores of the
+ * same benchmark across runs rather than scores of different benchmarks.
+ *
+ * The JSON is an array with one object per benchmark: its name, params, the
+ * iteration counts and length, score and error in nanoseconds per operation,
+ * and the scores of the measured iterations.
+ */
+public class MicroBenchmarkRunner {
+    //Upper quantile of a two sided 99.9% interval
+    private static final double CONFIDENCE_QUANTILE = 0.9995;
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final List<Result> results = new ArrayList<>();
+
+    public MicroBenchmarkRunner(int warmupIterations, int measurementIterations,
+            long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    public void run(MicroBenchmark benchmark) throws Exception {
+        System.err.print(describe(benchmark) + " ...");
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(benchmark);
+            }
+            double[] scores = new double[measurementIterations];
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iteration(benchmark);
+            }
+            Result result = new Result(benchmark, scores);
+            results.add(result);
+            System.err.printf(" %.1f +- %.1f ns/op%n", result.score, result.error);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * @return nanoseconds per operation
+     */
+    private double iteration(MicroBenchmark benchmark) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1000000L;
+        long operations = 0;
+        long start = System.nanoTime();
+        long now;
+        //Check the clock every few operations only, the fastest benchmarks
+        //take about as long as a call to nanoTime
+        do {
+            for (int i = 0; i < 16; i++) {
+                benchmark.run();
+            }
+            operations += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (now - start) / (double) operations;
+    }
+
+    public void writeJson(PrintStream out) {
+        out.println("[");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            out.println("    {");
+            out.println("        \"benchmark\" : " + quote(result.name) + ",");
+            out.print("        \"params\" : {");
+            int p = 0;
+            for (Map.Entry<String, String> param : result.params.entrySet()) {
+                out.print((p++ > 0 ? ", " : " ") + quote(param.getKey()) + " : "
+                        + quote(param.getValue()));
+            }
+            out.println(p > 0 ? " }," : "},");
+            out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+            out.println("        \"measurementIterations\" : " + measurementIterations + ",");
+            out.println("        \"iterationMillis\" : " + iterationMillis + ",");
+            out.println("        \"nanosPerOperation\" : " + result.score + ",");
+            out.println("        \"error\" : " + number(result.error) + ",");
+            out.println("        \"iterations\" : [ " + join(result.scores) + " ]");
+            out.println(r < results.size() - 1 ? "    }," : "    }");
+        }
+        out.println("]");
+    }
+
+    private static String describe(MicroBenchmark benchmark) {
+        return benchmark.getName() + (benchmark.getParams().isEmpty()
+                ? "" : " " + benchmark.getParams());
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * @return the value as a JSON number, or null if it is not a number
+     */
+    private static String number(double value) {
+        return Double.isNaN(value) ? "null" : String.valueOf(value);
+    }
+
+    private static String join(double[] values) {
+        StringBuilder joined = new StringBuilder();
+        for (double value : values) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    private static final class Result {
+        final String name;
+        final Map<String, String> params;
+        final double[] scores;
+        final double score;
+        final double error;
+
+        Result(MicroBenchmark benchmark, double[] scores) {
+            this.name = benchmark.getName();
+            this.params = benchmark.getParams();
+            this.scores = Arrays.copyOf(scores, scores.length);
+            double sum = 0;
+            for (double value : scores) {
+                sum += value;
+            }
+            score = sum / scores.length;
+            double squares = 0;
+            for (double value : scores) {
+                squares += (value - score) * (value - score);
+            }
+            if (scores.length > 1) {
+                double deviation = Math.sqrt(squares / (scores.length - 1));
+                error = StudentT.quantile(CONFIDENCE_QUANTILE, scores.length - 1)
+                        * deviation / Math.sqrt(scores.length);
+            } else {
+                error = Double.NaN;
+            }
+        }
+    }
+}
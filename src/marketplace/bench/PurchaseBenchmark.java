@@ -0,0 +1,225 @@
+package marketplace.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import marketplace.server.MarketplaceServer;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.bankjdbc.PooledConnection;
+
+/**
+ * Compares the database side of a purchase written as four auto-committed
+ * statements (how MarketplaceImpl.buyProduct used to do it) with the same
+ * purchase written as one transaction whose two counter updates are merged
+ * into one statement. Reports purchases per second and latency percentiles
+ * for both.
+ *
+ * Both modes are warmed up with WARM_UP_PURCHASES purchases first. The
+ * measured purchases are then split into rounds, and the mode that goes first
+ * alternates from round to round, so neither mode always runs on the warmer
+ * JVM and database.
+ *
+ * The benchmark works on its own BENCH_ tables, which it creates and drops,
+ * so it can be pointed at the marketplace database without touching its data.
+ *
+ * Usage: java marketplace.bench.PurchaseBenchmark [purchases] [rounds]
+ *        [datasource] [dbms]
+ */
+public class PurchaseBenchmark {
+    private static final int WARM_UP_PURCHASES = 500;
+    private static final String USERS = "BENCH_USERDATA";
+    private static final String ITEMS = "BENCH_ITEM";
+    private static final String WISHES = "BENCH_WISH";
+    private static final String ADD_ITEM = "INSERT INTO " + ITEMS
+            + " (itemname, price, seller) VALUES (?, ?, 'seller')";
+    private static final String GET_ITEM_IDS = "SELECT itemid FROM " + ITEMS
+            + " ORDER BY itemid";
+    private static final String REMOVE_SOLD_ITEM = "DELETE FROM " + ITEMS
+            + " WHERE itemid = ?";
+    private static final String REMOVE_WISH = "DELETE FROM " + WISHES
+            + " WHERE itemname = ? AND price >= ? AND wisher = ?";
+    private static final String INCREMENT_SOLD = "UPDATE " + USERS
+            + " SET sold = sold + 1 WHERE username = ?";
+    private static final String INCREMENT_BOUGHT = "UPDATE " + USERS
+            + " SET bought = bought + 1 WHERE username = ?";
+    private static final String INCREMENT_COUNTERS = "UPDATE " + USERS + " SET "
+            + "sold = sold + CASE WHEN username = ? THEN 1 ELSE 0 END, "
+            + "bought = bought + CASE WHEN username = ? THEN 1 ELSE 0 END "
+            + "WHERE username IN (?, ?)";
+
+    /**
+     * The latencies and total time of the measured purchases of one mode.
+     */
+    private static class Results {
+        private final String mode;
+        private final long[] latencies;
+        private int count;
+        private long elapsed;
+
+        Results(String mode, int purchases) {
+            this.mode = mode;
+            this.latencies = new long[purchases];
+        }
+
+        void print() {
+            Arrays.sort(latencies, 0, count);
+            System.out.println(mode
+                    + "\t" + (long) (count / (elapsed / 1e9))
+                    + "\t" + latencies[count / 2] / 1e6
+                    + "\t" + latencies[(int) (count * 0.99)] / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int purchases = 2000;
+        int rounds = 4;
+        String datasource = MarketplaceServer.DATASOURCE;
+        String dbms = MarketplaceServer.DBMS;
+        if (args.length > 0) {
+            purchases = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            rounds = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            datasource = args[2];
+        }
+        if (args.length > 3) {
+            dbms = args[3];
+        }
+        int perRound = Math.max(1, purchases / rounds);
+        ConnectionPool pool = new ConnectionPool(datasource, dbms);
+        try (PooledConnection connection = pool.acquire()) {
+            createTables(connection.getConnection());
+            run(connection, WARM_UP_PURCHASES, false, null);
+            run(connection, WARM_UP_PURCHASES, true, null);
+            Results autoCommit = new Results("autocommit", perRound * rounds);
+            Results transaction = new Results("transaction", perRound * rounds);
+            for (int round = 0; round < rounds; round++) {
+                boolean transactionFirst = round % 2 == 1;
+                run(connection, perRound, transactionFirst,
+                        transactionFirst ? transaction : autoCommit);
+                run(connection, perRound, !transactionFirst,
+                        transactionFirst ? autoCommit : transaction);
+            }
+            System.out.println("mode\tpurchases/s\tp50(ms)\tp99(ms)");
+            autoCommit.print();
+            transaction.print();
+            dropTables(connection.getConnection());
+        }
+        pool.close();
+    }
+
+    /**
+     * Lists purchases items and buys them all in the given mode.
+     *
+     * @param results where to record the purchases, or null when warming up
+     */
+    private static void run(PooledConnection connection, int purchases,
+            boolean transactional, Results results) throws SQLException {
+        PreparedStatement addItem = connection.prepare(ADD_ITEM);
+        for (int i = 0; i < purchases; i++) {
+            addItem.setString(1, "item" + i);
+            addItem.setFloat(2, i);
+            addItem.addBatch();
+        }
+        connection.executeBatch(addItem);
+        //Every earlier item has been bought, so these are the ones just added
+        int[] itemIds = new int[purchases];
+        try (ResultSet result = connection.executeQuery(
+                connection.prepare(GET_ITEM_IDS))) {
+            for (int i = 0; i < purchases && result.next(); i++) {
+                itemIds[i] = result.getInt("itemid");
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < purchases; i++) {
+            long purchaseStart = System.nanoTime();
+            if (transactional) {
+                buyInTransaction(connection, itemIds[i], "item" + i, i);
+            } else {
+                buyAutoCommit(connection, itemIds[i], "item" + i, i);
+            }
+            if (results != null) {
+                results.latencies[results.count++] = System.nanoTime() - purchaseStart;
+            }
+        }
+        if (results != null) {
+            results.elapsed += System.nanoTime() - start;
+        }
+    }
+
+    private static void buyAutoCommit(PooledConnection connection, int itemId,
+            String itemName, float price) throws SQLException {
+        removeItemAndWish(connection, itemId, itemName, price);
+        PreparedStatement incrementSold = connection.prepare(INCREMENT_SOLD);
+        incrementSold.setString(1, "seller");
+        connection.executeUpdate(incrementSold);
+        PreparedStatement incrementBought = connection.prepare(INCREMENT_BOUGHT);
+        incrementBought.setString(1, "buyer");
+        connection.executeUpdate(incrementBought);
+    }
+
+    private static void buyInTransaction(PooledConnection connection,
+            int itemId, String itemName, float price) throws SQLException {
+        Connection jdbc = connection.getConnection();
+        jdbc.setAutoCommit(false);
+        try {
+            removeItemAndWish(connection, itemId, itemName, price);
+            PreparedStatement incrementCounters = connection.prepare(INCREMENT_COUNTERS);
+            incrementCounters.setString(1, "seller");
+            incrementCounters.setString(2, "buyer");
+            incrementCounters.setString(3, "seller");
+            incrementCounters.setString(4, "buyer");
+            connection.executeUpdate(incrementCounters);
+            jdbc.commit();
+        } catch (SQLException ex) {
+            jdbc.rollback();
+            throw ex;
+        } finally {
+            jdbc.setAutoCommit(true);
+        }
+    }
+
+    private static void removeItemAndWish(PooledConnection connection,
+            int itemId, String itemName, float price) throws SQLException {
+        PreparedStatement removeItem = connection.prepare(REMOVE_SOLD_ITEM);
+        removeItem.setInt(1, itemId);
+        connection.executeUpdate(removeItem);
+        PreparedStatement removeWish = connection.prepare(REMOVE_WISH);
+        removeWish.setString(1, itemName);
+        removeWish.setFloat(2, price);
+        removeWish.setString(3, "buyer");
+        connection.executeUpdate(removeWish);
+    }
+
+    private static void createTables(Connection connection) throws SQLException {
+        dropTables(connection);
+        Statement statement = connection.createStatement();
+        statement.executeUpdate("CREATE TABLE " + USERS
+                + " (username VARCHAR(32) PRIMARY KEY, bought INTEGER, sold INTEGER)");
+        statement.executeUpdate("CREATE TABLE " + ITEMS
+                + " (itemid INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY "
+                + "(START WITH 1, INCREMENT BY 1) PRIMARY KEY, "
+                + "itemname VARCHAR(32), price FLOAT, seller VARCHAR(32))");
+        statement.executeUpdate("CREATE TABLE " + WISHES
+                + " (itemname VARCHAR(32), price FLOAT, wisher VARCHAR(32))");
+        statement.executeUpdate("INSERT INTO " + USERS
+                + " VALUES ('seller', 0, 0), ('buyer', 0, 0)");
+        statement.close();
+    }
+
+    private static void dropTables(Connection connection) {
+        for (String table : new String[] {USERS, ITEMS, WISHES}) {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DROP TABLE " + table);
+            } catch (SQLException ex) {
+                //The table did not exist
+            }
+        }
+    }
+}
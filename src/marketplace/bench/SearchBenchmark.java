@@ -0,0 +1,207 @@
+package marketplace.bench;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import marketplace.server.ItemCatalog;
+import marketplace.server.ItemImpl;
+import marketplace.server.SearchIndex;
+import marketplace.server.SearchableCatalog;
+import marketplace.shared.Item;
+
+/**
+ * Checks and times the catalog search.
+ *
+ * First a catalog of random names is built with adds and removes mixed in,
+ * and the results of a set of queries are compared with a brute force scan of
+ * the items left. Then several threads add, remove and search at the same
+ * time; once they are done every item must be found by searching for its
+ * name, and removing every item must leave the index empty. Finally the
+ * average time of a search is reported.
+ *
+ * Usage: java marketplace.bench.SearchBenchmark [items] [threads]
+ */
+public class SearchBenchmark {
+    private static final String[] WORDS = {"red", "blue", "green", "chair",
+        "table", "lamp", "Sofa", "oak", "steel", "mini", "max", "pro", "x",
+        "tv", "4k", "phone", "case"};
+    private static final String[] QUERIES = {"red", "re", "hai", "CHAIR oak",
+        "x", "4k tv", "ste", "s", "nothing", "mini lamp", "e"};
+    private static final int SEARCHES = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int items = 100000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) {
+            items = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            threads = Integer.parseInt(args[1]);
+        }
+        SearchableCatalog catalog = new SearchableCatalog(new ItemCatalog());
+        List<Item> live = fill(catalog, items, new Random(3));
+        checkAgainstBruteForce(catalog, live);
+        checkConcurrent(threads, items / threads);
+        time(catalog);
+    }
+
+    private static List<Item> fill(SearchableCatalog catalog, int items,
+            Random random) {
+        List<Item> live = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            String name = WORDS[random.nextInt(WORDS.length)]
+                    + (random.nextBoolean() ? "-" : " ")
+                    + WORDS[random.nextInt(WORDS.length)]
+                    + (random.nextInt(3) == 0 ? WORDS[random.nextInt(WORDS.length)] : "")
+                    + (random.nextInt(4) == 0 ? " " + random.nextInt(Math.max(1, items / 50)) : "");
+            Item item = new ItemImpl(i + 1, name, random.nextInt(400) / 4f,
+                    "seller" + random.nextInt(30));
+            if (catalog.add(item)) {
+                live.add(item);
+            }
+            if (random.nextInt(3) == 0 && !live.isEmpty()) {
+                catalog.remove(live.remove(random.nextInt(live.size())));
+            }
+        }
+        for (int i = 0; i < 5; i++) {
+            String seller = "seller" + random.nextInt(30);
+            catalog.removeBySeller(seller);
+            for (Iterator<Item> iterator = live.iterator(); iterator.hasNext();) {
+                if (iterator.next().getSellerName().equals(seller)) {
+                    iterator.remove();
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Every query token must equal or start a token of the name, or be
+     * contained in one if it has at least three characters. When the search
+     * has more matches than it returns, what it returns must be a subset.
+     */
+    private static void checkAgainstBruteForce(SearchableCatalog catalog,
+            List<Item> live) {
+        for (String query : QUERIES) {
+            Set<String> expected = new TreeSet<>();
+            for (Item item : live) {
+                if (matches(item.getName(), query)) {
+                    expected.add(item.getName() + "|" + item.getPrice());
+                }
+            }
+            Set<String> found = new TreeSet<>();
+            for (Item item : catalog.search(query, SearchIndex.MAX_LIMIT)) {
+                found.add(item.getName() + "|" + item.getPrice());
+            }
+            boolean capped = expected.size() > found.size();
+            if (!found.equals(expected) && !(capped && expected.containsAll(found))) {
+                throw new AssertionError("Search for \"" + query + "\" found "
+                        + found.size() + " items, brute force " + expected.size());
+            }
+            System.out.println("\"" + query + "\"\t" + found.size()
+                    + (capped ? " of " + expected.size() : ""));
+        }
+    }
+
+    private static boolean matches(String name, String query) {
+        String[] nameTokens = name.toLowerCase(Locale.ROOT).split("[^a-z0-9]+");
+        for (String queryToken : query.toLowerCase(Locale.ROOT).split(" ")) {
+            boolean matched = false;
+            for (String nameToken : nameTokens) {
+                if (nameToken.startsWith(queryToken)
+                        || (queryToken.length() >= 3 && nameToken.contains(queryToken))) {
+                    matched = true;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkConcurrent(int threads, final int operations)
+            throws InterruptedException {
+        final SearchableCatalog catalog = new SearchableCatalog(new ItemCatalog());
+        final String[] words = {"red", "blue", "chair", "lamp", "oak", "tv"};
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < operations; i++) {
+                        String name = words[random.nextInt(words.length)] + " "
+                                + words[random.nextInt(words.length)] + random.nextInt(50);
+                        float price = random.nextInt(20);
+                        if (random.nextBoolean()) {
+                            catalog.add(new ItemImpl(i, name, price, "seller" + seed));
+                        } else {
+                            catalog.remove(new ItemImpl(name, price, null));
+                        }
+                        if (i % 100 == 0) {
+                            catalog.search(words[random.nextInt(words.length)], 20);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        int missing = 0;
+        Set<String> names = new TreeSet<>();
+        List<Item> items = catalog.list();
+        for (Item item : items) {
+            names.add(item.getName());
+            boolean found = false;
+            for (Item match : catalog.search(item.getName(), SearchIndex.MAX_LIMIT)) {
+                if (match.getName().equals(item.getName())
+                        && match.getPrice() == item.getPrice()) {
+                    found = true;
+                }
+            }
+            if (!found) {
+                missing++;
+            }
+        }
+        SearchIndex index = catalog.getIndex();
+        if (missing > 0 || index.getIndexedNameCount() != names.size()) {
+            throw new AssertionError(missing + " of " + items.size()
+                    + " items not found, " + index.getIndexedNameCount()
+                    + " names indexed of " + names.size());
+        }
+        for (Item item : items) {
+            catalog.remove(item);
+        }
+        if (index.getIndexedNameCount() != 0 || index.getTrigramCount() != 0) {
+            throw new AssertionError("Index not empty after removing every item: "
+                    + index.getIndexedNameCount() + " names, "
+                    + index.getTrigramCount() + " trigrams");
+        }
+        System.out.println(threads + " threads: " + items.size() + " items in "
+                + names.size() + " names all found, index empty once removed");
+    }
+
+    private static void time(SearchableCatalog catalog) {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < SEARCHES; i++) {
+            found += catalog.search(QUERIES[i % QUERIES.length],
+                    SearchIndex.DEFAULT_LIMIT).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println("search\t" + elapsed / SEARCHES / 1000 + " us\t"
+                + found + " found\t"
+                + catalog.getIndex().getIndexedNameCount() + " names\t"
+                + catalog.getIndex().getTrigramCount() + " trigrams");
+    }
+}
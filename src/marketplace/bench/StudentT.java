@@ -0,0 +1,119 @@
+package marketplace.bench;
+
+/**
+ * Quantiles of Student's t distribution, for the confidence interval of the
+ * mean of a few measurements.
+ *
+ * The distribution function is computed from the regularized incomplete beta
+ * function (continued fraction, as in Numerical Recipes), and inverted by
+ * bisection, which is plenty fast for one quantile per benchmark.
+ */
+final class StudentT {
+    private static final int MAX_ITERATIONS = 300;
+    private static final double EPSILON = 1e-15;
+    private static final double TINY = 1e-300;
+
+    private StudentT() {
+    }
+
+    /**
+     * @return the t such that P(T <= t) = p for T with the given degrees of
+     * freedom, for 0.5 <= p < 1
+     */
+    static double quantile(double p, int degreesOfFreedom) {
+        if (degreesOfFreedom < 1 || p < 0.5 || p >= 1) {
+            throw new IllegalArgumentException("No quantile " + p + " for "
+                    + degreesOfFreedom + " degrees of freedom");
+        }
+        double low = 0;
+        double high = 1;
+        while (cdf(high, degreesOfFreedom) < p) {
+            low = high;
+            high *= 2;
+        }
+        for (int i = 0; i < 200 && high - low > 1e-12 * high; i++) {
+            double middle = (low + high) / 2;
+            if (cdf(middle, degreesOfFreedom) < p) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * @return P(T <= t) for t >= 0
+     */
+    static double cdf(double t, int degreesOfFreedom) {
+        double x = degreesOfFreedom / (degreesOfFreedom + t * t);
+        return 1 - 0.5 * regularizedBeta(x, degreesOfFreedom / 2.0, 0.5);
+    }
+
+    private static double regularizedBeta(double x, double a, double b) {
+        if (x <= 0) {
+            return 0;
+        }
+        if (x >= 1) {
+            return 1;
+        }
+        double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b)
+                + a * Math.log(x) + b * Math.log(1 - x));
+        //The continued fraction converges quickly on this side only
+        if (x < (a + 1) / (a + b + 2)) {
+            return front * continuedFraction(x, a, b) / a;
+        }
+        return 1 - front * continuedFraction(1 - x, b, a) / b;
+    }
+
+    private static double continuedFraction(double x, double a, double b) {
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        if (Math.abs(d) < TINY) {
+            d = TINY;
+        }
+        d = 1 / d;
+        double result = d;
+        for (int m = 1; m <= MAX_ITERATIONS; m++) {
+            int m2 = 2 * m;
+            double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+            d = 1 + aa * d;
+            d = Math.abs(d) < TINY ? 1 / TINY : 1 / d;
+            c = 1 + aa / c;
+            if (Math.abs(c) < TINY) {
+                c = TINY;
+            }
+            result *= d * c;
+            aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+            d = 1 + aa * d;
+            d = Math.abs(d) < TINY ? 1 / TINY : 1 / d;
+            c = 1 + aa / c;
+            if (Math.abs(c) < TINY) {
+                c = TINY;
+            }
+            double delta = d * c;
+            result *= delta;
+            if (Math.abs(delta - 1) < EPSILON) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lanczos approximation of the logarithm of the gamma function.
+     */
+    private static double logGamma(double x) {
+        double[] coefficients = {76.18009172947146, -86.50532032941677,
+            24.01409824083091, -1.231739572450155, 0.1208650973866179e-2,
+            -0.5395239384953e-5};
+        double y = x;
+        double tmp = x + 5.5;
+        tmp -= (x + 0.5) * Math.log(tmp);
+        double series = 1.000000000190015;
+        for (double coefficient : coefficients) {
+            series += coefficient / ++y;
+        }
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+}
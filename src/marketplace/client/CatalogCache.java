@@ -0,0 +1,136 @@
+package marketplace.client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import marketplace.shared.CatalogChanges;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.Marketplace;
+
+/**
+ * The client's copy of the catalog. A refresh asks the marketplace for the
+ * changes since the version of the copy and applies them, and only lists the
+ * whole catalog again, page by page, when the marketplace answers that the
+ * copy is too old.
+ *
+ * Items are kept by name, in the order the marketplace lists them in, and
+ * within a name by price in cents.
+ */
+public class CatalogCache {
+    private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String name1, String name2) {
+            int result = name1.compareToIgnoreCase(name2);
+            if (result == 0) {
+                result = name1.compareTo(name2);
+            }
+            return result;
+        }
+    };
+    private final Marketplace marketplace;
+    private final int pageSize;
+    private final NavigableMap<String, NavigableMap<Long, Item>> items =
+            new TreeMap<>(NAME_ORDER);
+    private long version = CatalogChanges.NO_VERSION;
+    private int size;
+
+    public CatalogCache(Marketplace marketplace, int pageSize) {
+        this.marketplace = marketplace;
+        this.pageSize = pageSize;
+    }
+
+    private static long cents(float price) {
+        return Math.round((double) price * 100);
+    }
+
+    /**
+     * Brings the copy up to date with the marketplace.
+     */
+    public synchronized void refresh() throws RemoteException {
+        CatalogChanges changes = marketplace.changesSince(version);
+        if (changes.isResync()) {
+            items.clear();
+            size = 0;
+            ItemQuery query = new ItemQuery(null, pageSize);
+            ItemPage page;
+            do {
+                page = marketplace.listItems(query);
+                for (Item item : page.getItems()) {
+                    put(item);
+                }
+                query.setCursor(page.getCursor());
+            } while (page.hasMore());
+        } else {
+            for (Item item : changes.getRemoved()) {
+                remove(item.getName(), item.getPrice());
+            }
+            for (Item item : changes.getAdded()) {
+                put(item);
+            }
+        }
+        version = changes.getVersion();
+    }
+
+    private void put(Item item) {
+        NavigableMap<Long, Item> prices = items.get(item.getName());
+        if (prices == null) {
+            prices = new TreeMap<>();
+            items.put(item.getName(), prices);
+        }
+        if (prices.put(cents(item.getPrice()), item) == null) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes the item from the copy, for instance once it has been bought.
+     */
+    public synchronized void remove(String name, float price) {
+        NavigableMap<Long, Item> prices = items.get(name);
+        if (prices != null && prices.remove(cents(price)) != null) {
+            size--;
+            if (prices.isEmpty()) {
+                items.remove(name);
+            }
+        }
+    }
+
+    /**
+     * @return the item in the copy with the name and price, or null
+     */
+    public synchronized Item find(String name, float price) {
+        NavigableMap<Long, Item> prices = items.get(name);
+        return prices == null ? null : prices.get(cents(price));
+    }
+
+    /**
+     * @param namePrefix only list items whose name starts with this, ignoring
+     * case, or null to list all
+     * @return the items in the copy in listing order
+     */
+    public synchronized List<Item> list(String namePrefix) {
+        List<Item> list = new ArrayList<>();
+        for (Map.Entry<String, NavigableMap<Long, Item>> entry : items.entrySet()) {
+            String name = entry.getKey();
+            if (namePrefix == null || name.regionMatches(true, 0, namePrefix, 0,
+                    namePrefix.length())) {
+                list.addAll(entry.getValue().values());
+            }
+        }
+        return list;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
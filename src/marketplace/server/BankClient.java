@@ -0,0 +1,240 @@
+package marketplace.server;
+
+import java.net.MalformedURLException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import se.kth.id2212.bankjdbc.Account;
+import se.kth.id2212.bankjdbc.Bank;
+import se.kth.id2212.bankjdbc.RejectedException;
+import se.kth.id2212.logging.Log;
+
+/**
+ * The marketplace's connection to its banks, which are bound by name in the
+ * RMI registry of one host.
+ *
+ * The stub of each bank is looked up the first time it is needed and kept.
+ * It is only looked up again when a call fails in a way that shows the stub
+ * is stale: the remote object is gone (the bank was restarted) or nothing
+ * accepts connections at its endpoint. In both cases the call never reached
+ * the bank, so it is made once more with the new stub. Only one thread looks
+ * up a bank at a time, the others use the stub it found.
+ *
+ * At most maxConcurrentCalls calls are made to the banks at once. A call
+ * that cannot start within the acquire timeout fails with a RemoteException
+ * instead of queueing up behind a bank that does not answer.
+ */
+public class BankClient {
+    public static final String DEFAULT_HOST = "localhost";
+    public static final String DEFAULT_BANK = "Nordea";
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 32;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5000;
+    private static final Log LOG = Log.get(BankClient.class);
+    private final String host;
+    private final String defaultBank;
+    private final int maxConcurrentCalls;
+    private final long acquireTimeoutMillis;
+    private final Semaphore permits;
+    private final ConcurrentMap<String, Bank> banks = new ConcurrentHashMap<>();
+    //Banks given with setBank, these are never looked up
+    private final Set<String> fixed = ConcurrentHashMap.newKeySet();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * A call to a bank, made with its current stub.
+     */
+    public interface Call<T> {
+        T call(Bank bank) throws RemoteException, RejectedException;
+    }
+
+    public BankClient() {
+        this(DEFAULT_HOST, DEFAULT_BANK);
+    }
+
+    public BankClient(String host, String defaultBank) {
+        this(host, defaultBank, DEFAULT_MAX_CONCURRENT_CALLS,
+                DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    public BankClient(String host, String defaultBank, int maxConcurrentCalls,
+            long acquireTimeoutMillis) {
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("At least one call must be allowed");
+        }
+        this.host = host;
+        this.defaultBank = defaultBank;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        permits = new Semaphore(maxConcurrentCalls, true);
+    }
+
+    /**
+     * Uses the given bank instead of looking it up in the registry, for
+     * running the marketplace in the same process as its bank.
+     */
+    public void setBank(String bankName, Bank bank) {
+        fixed.add(bankName);
+        banks.put(bankName, bank);
+    }
+
+    /**
+     * @return the bank that the users' accounts are in
+     */
+    public String getDefaultBank() {
+        return defaultBank;
+    }
+
+    /**
+     * @return the stub of the bank, looked up if it is not known yet
+     */
+    public Bank getBank(String bankName) throws RemoteException {
+        Bank bank = banks.get(bankName);
+        return bank != null ? bank : lookup(bankName, null);
+    }
+
+    /**
+     * Looks the bank up, unless another thread has already replaced the
+     * stale stub while this one waited.
+     */
+    private synchronized Bank lookup(String bankName, Bank stale)
+            throws RemoteException {
+        Bank current = banks.get(bankName);
+        if (current != null && current != stale) {
+            return current;
+        }
+        if (fixed.contains(bankName)) {
+            throw new RemoteException("Bank " + bankName + " is not available");
+        }
+        lookups.incrementAndGet();
+        try {
+            Bank bank = (Bank) Naming.lookup("rmi://" + host + "/" + bankName);
+            banks.put(bankName, bank);
+            return bank;
+        } catch (NotBoundException | MalformedURLException ex) {
+            throw new RemoteException("Cannot find bank " + bankName, ex);
+        }
+    }
+
+    /**
+     * Makes the call to the named bank, with a new stub if the current one
+     * turns out to be stale.
+     */
+    public <T> T call(String bankName, Call<T> call) throws RemoteException,
+            RejectedException {
+        acquire(bankName);
+        try {
+            calls.incrementAndGet();
+            Bank bank = getBank(bankName);
+            try {
+                return call.call(bank);
+            } catch (RemoteException ex) {
+                if (!isStale(ex)) {
+                    throw ex;
+                }
+                refreshes.incrementAndGet();
+                LOG.warn("Stub of bank {} is stale, looking it up again: {}",
+                        bankName, ex.getMessage());
+                return call.call(lookup(bankName, bank));
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public <T> T call(Call<T> call) throws RemoteException, RejectedException {
+        return call(defaultBank, call);
+    }
+
+    private void acquire(String bankName) throws RemoteException {
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new RemoteException("Too many concurrent calls to bank "
+                        + bankName);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting to call bank "
+                    + bankName, ex);
+        }
+    }
+
+    /**
+     * @return true if the exception means the call did not reach the remote
+     * object, because the object or its server is gone
+     */
+    private static boolean isStale(RemoteException ex) {
+        return ex instanceof NoSuchObjectException
+                || ex instanceof ConnectException
+                || ex instanceof ConnectIOException;
+    }
+
+    public Account getAccount(final String accountName) throws RemoteException,
+            RejectedException {
+        return call(new Call<Account>() {
+            @Override
+            public Account call(Bank bank) throws RemoteException,
+                    RejectedException {
+                return bank.getAccount(accountName);
+            }
+        });
+    }
+
+    public void transfer(final String from, final String to, final float amount)
+            throws RemoteException, RejectedException {
+        call(new Call<Void>() {
+            @Override
+            public Void call(Bank bank) throws RemoteException,
+                    RejectedException {
+                bank.transfer(from, to, amount);
+                return null;
+            }
+        });
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getActiveCalls() {
+        return maxConcurrentCalls - permits.availablePermits();
+    }
+
+    public int getWaitingCalls() {
+        return permits.getQueueLength();
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BankClient[" + host + ", default=" + defaultBank
+                + ", banks=" + banks.keySet() + "]";
+    }
+}
@@ -0,0 +1,119 @@
+package marketplace.server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The catalog version and a bounded log of the keys of the items added to or
+ * removed from the catalog, one per version. Clients that keep a copy of the
+ * catalog ask for the keys changed since the version they have, instead of
+ * listing the whole catalog again.
+ *
+ * Every change increments the version, claiming it without a lock, and then
+ * stores the key in the ring slot of that version. The ring keeps the last
+ * capacity changes; a client that is further behind has to list the whole
+ * catalog again. A reader stops at the first version whose key has not been
+ * stored yet, so it never skips a change, and finds that change next time.
+ *
+ * Versions start at the current time in milliseconds shifted left by 20
+ * bits, so that the versions of a restarted marketplace are higher than all
+ * of the previous run (which would have needed over a million changes per
+ * millisecond to catch up), and a version from before the restart is always
+ * too old rather than mistaken for a recent one.
+ */
+public class CatalogChangeLog {
+    public static final int DEFAULT_CAPACITY = 16384;
+    private final AtomicReferenceArray<Change> changes;
+    private final int mask;
+    private final long initialVersion;
+    private final AtomicLong version;
+    private final AtomicLong resyncs = new AtomicLong();
+
+    private static final class Change {
+        private final long version;
+        private final ItemKey key;
+
+        Change(long version, ItemKey key) {
+            this.version = version;
+            this.key = key;
+        }
+    }
+
+    public CatalogChangeLog() {
+        this(DEFAULT_CAPACITY, System.currentTimeMillis() << 20);
+    }
+
+    /**
+     * @param capacity the number of changes kept, rounded up to a power of
+     * two
+     */
+    public CatalogChangeLog(int capacity, long initialVersion) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        changes = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.initialVersion = initialVersion;
+        version = new AtomicLong(initialVersion);
+    }
+
+    /**
+     * Records that the item with the key was added or removed.
+     *
+     * @return the new version of the catalog
+     */
+    public long changed(ItemKey key) {
+        long changeVersion = version.incrementAndGet();
+        changes.set((int) (changeVersion & mask), new Change(changeVersion, key));
+        return changeVersion;
+    }
+
+    /**
+     * Adds the keys changed after the given version to the list, oldest
+     * first. A key changed more than once is added more than once.
+     *
+     * @return the version up to which the keys were added, or -1 if the log
+     * no longer holds all changes since the given version
+     */
+    public long changedSince(long since, List<ItemKey> into) {
+        long current = version.get();
+        if (since < initialVersion || since > current || current - since > changes.length()) {
+            resyncs.incrementAndGet();
+            return -1;
+        }
+        long next = since + 1;
+        for (; next <= current; next++) {
+            Change change = changes.get((int) (next & mask));
+            if (change == null || change.version < next) {
+                //Claimed but not stored yet
+                break;
+            }
+            if (change.version > next) {
+                //Overwritten by a later lap while we were reading
+                into.clear();
+                resyncs.incrementAndGet();
+                return -1;
+            }
+            into.add(change.key);
+        }
+        return next - 1;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public int getCapacity() {
+        return changes.length();
+    }
+
+    public long getChangeCount() {
+        return version.get() - initialVersion;
+    }
+
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+}
@@ -0,0 +1,575 @@
+package marketplace.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.ItemSortOrder;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.bankjdbc.PooledConnection;
+import se.kth.id2212.logging.Log;
+
+/**
+ * Loads the ITEM and WISH tables into the catalog and wish index when the
+ * marketplace starts.
+ *
+ * The two tables are read in parallel, each on its own pooled connection and
+ * thread, and rows are streamed with a fetch size of FETCH_SIZE straight into
+ * the indexes instead of being collected first. Each row is added while
+ * holding the ItemLocks stripe of its item name.
+ *
+ * The marketplace can serve calls before loading is done. Until then:
+ * <ul>
+ * <li>an item that is not in the catalog yet is looked up in the database
+ * (loadItem), so it can be found and bought;</li>
+ * <li>list queries are answered from the database (loadPage), reading only
+ * the rows that can be on the requested page;</li>
+ * <li>what is removed from the indexes is remembered as a tombstone, so the
+ * loader does not add back an item that was sold or a wish that was
+ * fulfilled after its row was read. Items and wishes of users who
+ * unregistered are removed again once loading is done.</li>
+ * </ul>
+ * If reading a table fails, it stays not loaded, so the database is still
+ * used as above, and is read again after RETRY_DELAY_MILLIS. Rows added by
+ * the failed attempt are simply found again.
+ */
+public class CatalogLoader {
+    private static final Log LOG = Log.get(CatalogLoader.class);
+    public static final int FETCH_SIZE = 1000;
+    public static final long RETRY_DELAY_MILLIS = 10 * 1000;
+    private static final String GET_ALL_ITEMS = "SELECT itemid, itemname, price, seller FROM "
+            + MarketplaceImpl.ITEM_TABLE_NAME;
+    private static final String GET_ALL_WISHES = "SELECT itemname, price, wisher FROM "
+            + MarketplaceImpl.WISH_TABLE_NAME;
+    private static final String FIND_ITEM = "SELECT itemid, itemname, price, seller FROM "
+            + MarketplaceImpl.ITEM_TABLE_NAME + " WHERE itemname = ? AND price = ?";
+    private static final String FIND_ITEM_BY_ID = "SELECT itemid, itemname, price, seller FROM "
+            + MarketplaceImpl.ITEM_TABLE_NAME + " WHERE itemid = ?";
+    //The items in a price range whose names start with a prefix; names are
+    //ordered like ItemKey, ignoring case first. Name parameters are given in
+    //lower case, since compareToIgnoreCase compares lower case characters
+    private static final String FIND_ITEMS_IN_RANGE = "SELECT itemid, itemname, price, seller FROM "
+            + MarketplaceImpl.ITEM_TABLE_NAME + " WHERE price >= ? AND price <= ?"
+            + " AND LOWER(itemname) LIKE ? ESCAPE '!'";
+    private static final String FIND_PAGE_BY_PRICE = FIND_ITEMS_IN_RANGE
+            + " ORDER BY price";
+    private static final String FIND_PAGE_BY_PRICE_DESCENDING = FIND_ITEMS_IN_RANGE
+            + " ORDER BY price DESC";
+    private static final String FIND_PAGE_BY_NAME = FIND_ITEMS_IN_RANGE
+            + " ORDER BY LOWER(itemname)";
+    private static final String FIND_PAGE_BY_NAME_DESCENDING = FIND_ITEMS_IN_RANGE
+            + " ORDER BY LOWER(itemname) DESC";
+    private static final String FIND_PAGE_BY_NAME_AFTER = FIND_ITEMS_IN_RANGE
+            + " AND LOWER(itemname) >= ? ORDER BY LOWER(itemname)";
+    private static final String FIND_PAGE_BY_NAME_BEFORE = FIND_ITEMS_IN_RANGE
+            + " AND LOWER(itemname) <= ? ORDER BY LOWER(itemname) DESC";
+    private static final String FIND_ITEMS_NAMED = FIND_ITEMS_IN_RANGE
+            + " AND LOWER(itemname) = ?";
+    private final ConnectionPool pool;
+    private final CatalogStore catalog;
+    private final WishIndex wishes;
+    private final ItemLocks itemLocks;
+    private final CountDownLatch itemsDone = new CountDownLatch(1);
+    private final CountDownLatch wishesDone = new CountDownLatch(1);
+    private final Set<ItemKey> soldItems = ConcurrentHashMap.newKeySet();
+    //The lowest price each wisher bought each item name at while loading,
+    //keyed on the item name and wisher name
+    private final ConcurrentMap<List<String>, Float> fulfilledWishes =
+            new ConcurrentHashMap<>();
+    private final Set<String> removedUsers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong itemsLoaded = new AtomicLong();
+    private final AtomicLong wishesLoaded = new AtomicLong();
+    private volatile boolean itemsReady;
+    private volatile boolean wishesReady;
+    private long startTime;
+    private long readyTime;
+
+    public CatalogLoader(ConnectionPool pool, CatalogStore catalog,
+            WishIndex wishes, ItemLocks itemLocks) {
+        this.pool = pool;
+        this.catalog = catalog;
+        this.wishes = wishes;
+        this.itemLocks = itemLocks;
+    }
+
+    /**
+     * Starts loading both tables in the background and returns at once.
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        Thread itemLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        loadItems();
+                        break;
+                    } catch (SQLException ex) {
+                        LOG.error("Problem retrieving items from database,"
+                                + " retrying in {} ms", RETRY_DELAY_MILLIS, ex);
+                    }
+                    if (!sleepBeforeRetry()) {
+                        return;
+                    }
+                }
+                itemsReady = true;
+                itemsDone.countDown();
+                finishIfReady();
+            }
+        }, "catalog-loader-items");
+        Thread wishLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        loadWishes();
+                        break;
+                    } catch (SQLException ex) {
+                        LOG.error("Problem retrieving wishes from database,"
+                                + " retrying in {} ms", RETRY_DELAY_MILLIS, ex);
+                    }
+                    if (!sleepBeforeRetry()) {
+                        return;
+                    }
+                }
+                wishesReady = true;
+                wishesDone.countDown();
+                finishIfReady();
+            }
+        }, "catalog-loader-wishes");
+        itemLoader.setDaemon(true);
+        wishLoader.setDaemon(true);
+        itemLoader.start();
+        wishLoader.start();
+    }
+
+    /**
+     * @return false if interrupted, which stops the loader
+     */
+    private static boolean sleepBeforeRetry() {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Marks the catalog as loaded without reading the tables, when it has
+     * been filled some other way (see CatalogSnapshot).
+     */
+    public void markLoaded() {
+        startTime = System.currentTimeMillis();
+        itemsLoaded.set(catalog.size());
+        wishesLoaded.set(wishes.size());
+        itemsReady = true;
+        wishesReady = true;
+        itemsDone.countDown();
+        wishesDone.countDown();
+        finishIfReady();
+    }
+
+    /**
+     * Blocks until both tables have been loaded.
+     */
+    public void awaitReady() throws InterruptedException {
+        itemsDone.await();
+        wishesDone.await();
+    }
+
+    /**
+     * Blocks until the items have been loaded, or the timeout has passed.
+     *
+     * @return true if the items have been loaded
+     */
+    public boolean awaitItems(long timeoutMillis) throws InterruptedException {
+        return itemsDone.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isReady() {
+        return itemsReady && wishesReady;
+    }
+
+    public boolean isItemsReady() {
+        return itemsReady;
+    }
+
+    public long getItemsLoaded() {
+        return itemsLoaded.get();
+    }
+
+    public long getWishesLoaded() {
+        return wishesLoaded.get();
+    }
+
+    /**
+     * @return how long loading took, or -1 if it has not finished
+     */
+    public synchronized long getLoadMillis() {
+        return readyTime == 0 ? -1 : readyTime - startTime;
+    }
+
+    /**
+     * Looks up an item that may not have been loaded yet. If it is in the
+     * database and was not sold since, it is added to the catalog.
+     *
+     * @return the item, or null if it is not for sale or the catalog is
+     * already complete
+     */
+    public Item loadItem(String name, float price) throws SQLException {
+        if (itemsReady) {
+            return null;
+        }
+        Lock lock = itemLocks.lock(name);
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement findItemStatement = connection.prepare(FIND_ITEM);
+            findItemStatement.setString(1, name);
+            findItemStatement.setFloat(2, price);
+            ResultSet result = connection.executeQuery(findItemStatement);
+            Item item = null;
+            if (result.next()) {
+                item = addItem(result);
+            }
+            result.close();
+            return item == null ? catalog.get(name, price) : item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up an item by id that may not have been loaded yet, like
+     * loadItem(String, float).
+     */
+    public Item loadItem(int itemId) throws SQLException {
+        if (itemsReady) {
+            return null;
+        }
+        String name;
+        float price;
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement findItemStatement = connection.prepare(FIND_ITEM_BY_ID);
+            findItemStatement.setInt(1, itemId);
+            ResultSet result = connection.executeQuery(findItemStatement);
+            if (!result.next()) {
+                result.close();
+                return null;
+            }
+            name = result.getString("itemname");
+            price = result.getFloat("price");
+            result.close();
+        }
+        return loadItem(name, price);
+    }
+
+    /**
+     * Reads the items that can be on the page of the query into the given
+     * catalog, so the query can be answered from it before loading is done.
+     *
+     * Only as many rows are read as the page needs (the offset, the page and
+     * one more to tell whether there is a next page), starting after the
+     * cursor, in the order of the query. Rows tied in that order with the last
+     * one read are read too, since the database breaks ties differently than
+     * ItemKey. The same number of items is taken from what has been loaded or
+     * added so far. The catalog then orders and trims them exactly.
+     */
+    public void loadPage(ItemQuery query, CatalogStore into) throws SQLException {
+        int wanted = (query.getCursor() == null ? query.getOffset() : 0)
+                + query.getPageSize() + 1;
+        ItemKey cursor = query.getCursor() == null ? null
+                : ItemKey.fromCursor(query.getCursor());
+        //The database cannot compare with infinity
+        float minPrice = Math.max(query.getMinPrice(), -Float.MAX_VALUE);
+        float maxPrice = Math.min(query.getMaxPrice(), Float.MAX_VALUE);
+        String namePattern = likePrefix(query.getNamePrefix());
+        ItemSortOrder order = query.getSortOrder();
+        boolean byPrice = order == ItemSortOrder.PRICE_ASCENDING
+                || order == ItemSortOrder.PRICE_DESCENDING;
+        String sql;
+        if (byPrice) {
+            //A cent either side, the cursor is in cents and rows are not
+            if (cursor != null && order == ItemSortOrder.PRICE_ASCENDING) {
+                minPrice = Math.max(minPrice, (cursor.getPriceCents() - 1) / 100f);
+            } else if (cursor != null) {
+                maxPrice = Math.min(maxPrice, (cursor.getPriceCents() + 1) / 100f);
+            }
+            sql = order == ItemSortOrder.PRICE_ASCENDING ? FIND_PAGE_BY_PRICE
+                    : FIND_PAGE_BY_PRICE_DESCENDING;
+        } else if (order == ItemSortOrder.NAME_DESCENDING) {
+            sql = cursor == null ? FIND_PAGE_BY_NAME_DESCENDING
+                    : FIND_PAGE_BY_NAME_BEFORE;
+        } else {
+            sql = cursor == null ? FIND_PAGE_BY_NAME : FIND_PAGE_BY_NAME_AFTER;
+        }
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement findPageStatement = connection.prepare(sql);
+            findPageStatement.setFloat(1, minPrice);
+            findPageStatement.setFloat(2, maxPrice);
+            findPageStatement.setString(3, namePattern);
+            if (!byPrice && cursor != null) {
+                findPageStatement.setString(4, lowerCase(cursor.getName()));
+            }
+            List<Item> rows;
+            int limit = wanted;
+            while (true) {
+                findPageStatement.setMaxRows(limit);
+                rows = readRows(connection, findPageStatement);
+                int notAfter = cursor == null ? 0 : countNotAfter(rows, cursor, order);
+                if (rows.size() < limit || rows.size() - notAfter >= wanted) {
+                    break;
+                }
+                //Rows tied with the cursor took up part of the page
+                limit = notAfter + wanted;
+            }
+            addUnlessRemoved(rows, into);
+            if (rows.size() == limit) {
+                Item last = rows.get(rows.size() - 1);
+                PreparedStatement findTiesStatement;
+                if (byPrice) {
+                    long lastCents = Prices.toMinorUnits(last.getPrice());
+                    findTiesStatement = connection.prepare(FIND_ITEMS_IN_RANGE);
+                    findTiesStatement.setFloat(1, Math.max(minPrice, (lastCents - 1) / 100f));
+                    findTiesStatement.setFloat(2, Math.min(maxPrice, (lastCents + 1) / 100f));
+                } else {
+                    findTiesStatement = connection.prepare(FIND_ITEMS_NAMED);
+                    findTiesStatement.setFloat(1, minPrice);
+                    findTiesStatement.setFloat(2, maxPrice);
+                    findTiesStatement.setString(4, lowerCase(last.getName()));
+                }
+                findTiesStatement.setString(3, namePattern);
+                addUnlessRemoved(readRows(connection, findTiesStatement), into);
+            }
+        }
+        addLoaded(query, wanted, into);
+    }
+
+    /**
+     * @return how many of the rows come at or before the cursor in the order
+     */
+    private static int countNotAfter(List<Item> rows, ItemKey cursor,
+            ItemSortOrder order) {
+        int count = 0;
+        for (Item row : rows) {
+            ItemKey key = ItemKey.of(row);
+            int comparison;
+            switch (order) {
+                case PRICE_ASCENDING:
+                    comparison = ItemKey.PRICE_ORDER.compare(key, cursor);
+                    break;
+                case PRICE_DESCENDING:
+                    comparison = ItemKey.PRICE_ORDER.compare(cursor, key);
+                    break;
+                case NAME_DESCENDING:
+                    comparison = cursor.compareTo(key);
+                    break;
+                default:
+                    comparison = key.compareTo(cursor);
+            }
+            if (comparison <= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a LIKE pattern for names starting with the prefix, with '!' as
+     * the escape character
+     */
+    private static String likePrefix(String prefix) {
+        if (prefix == null) {
+            return "%";
+        }
+        return lowerCase(prefix).replace("!", "!!").replace("%", "!%")
+                .replace("_", "!_") + "%";
+    }
+
+    private static String lowerCase(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<Item> readRows(PooledConnection connection,
+            PreparedStatement statement) throws SQLException {
+        List<Item> rows = new ArrayList<>();
+        ResultSet result = connection.executeQuery(statement);
+        while (result.next()) {
+            rows.add(new ItemImpl(result.getInt("itemid"),
+                    result.getString("itemname"), result.getFloat("price"),
+                    result.getString("seller")));
+        }
+        result.close();
+        return rows;
+    }
+
+    private void addUnlessRemoved(List<Item> rows, CatalogStore into) {
+        for (Item row : rows) {
+            if (!soldItems.contains(ItemKey.of(row))
+                    && !removedUsers.contains(row.getSellerName())) {
+                into.add(row);
+            }
+        }
+    }
+
+    /**
+     * Adds the first items of the query's range that are in the catalog
+     * already, loaded or added since loading started.
+     */
+    private void addLoaded(ItemQuery query, int wanted, CatalogStore into) {
+        ItemQuery loaded = new ItemQuery(query.getNamePrefix(),
+                ItemQuery.MAX_PAGE_SIZE);
+        loaded.setMinPrice(query.getMinPrice());
+        loaded.setMaxPrice(query.getMaxPrice());
+        loaded.setSortOrder(query.getSortOrder());
+        loaded.setCursor(query.getCursor());
+        int added = 0;
+        while (added < wanted) {
+            ItemPage page = catalog.query(loaded);
+            for (Item item : page.getItems()) {
+                into.add(item);
+            }
+            added += page.getItems().size();
+            if (page.getCursor() == null) {
+                break;
+            }
+            loaded.setCursor(page.getCursor());
+        }
+    }
+
+    /**
+     * Called with the item's lock held when an item has been sold.
+     */
+    public void itemSold(Item item, String buyer) {
+        if (!isReady()) {
+            soldItems.add(ItemKey.of(item));
+            List<String> key = Arrays.asList(item.getName(), buyer);
+            Float lowest = fulfilledWishes.get(key);
+            if (lowest == null || item.getPrice() < lowest) {
+                fulfilledWishes.put(key, item.getPrice());
+            }
+        }
+    }
+
+    /**
+     * Called before a user's rows are deleted when they unregister.
+     */
+    public void userRemoved(String userName) {
+        if (!isReady()) {
+            removedUsers.add(userName);
+        }
+    }
+
+    /**
+     * Called once a user's account has been created, so that the items and
+     * wishes of a new user who took the name of one who unregistered while
+     * loading are kept.
+     */
+    public void userRegistered(String userName) {
+        removedUsers.remove(userName);
+    }
+
+    private void loadItems() throws SQLException {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement getAllItems = connection.prepare(GET_ALL_ITEMS);
+            getAllItems.setFetchSize(FETCH_SIZE);
+            ResultSet result = connection.executeQuery(getAllItems);
+            while (result.next()) {
+                Lock lock = itemLocks.lock(result.getString("itemname"));
+                try {
+                    addItem(result);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            result.close();
+        }
+    }
+
+    private void loadWishes() throws SQLException {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement getAllWishes = connection.prepare(GET_ALL_WISHES);
+            getAllWishes.setFetchSize(FETCH_SIZE);
+            ResultSet result = connection.executeQuery(getAllWishes);
+            while (result.next()) {
+                Wish wish = new Wish(result.getString("itemname"),
+                        result.getFloat("price"), result.getString("wisher"));
+                Lock lock = itemLocks.lock(wish.getItemName());
+                try {
+                    if (!isFulfilled(wish)
+                            && !removedUsers.contains(wish.getWisherName())) {
+                        wishes.add(wish);
+                        wishesLoaded.incrementAndGet();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            result.close();
+        }
+    }
+
+    /**
+     * Adds the item in the current row unless it has been sold or its seller
+     * has unregistered. The caller holds the item's lock.
+     *
+     * @return the added item, or null
+     */
+    private Item addItem(ResultSet row) throws SQLException {
+        Item item = new ItemImpl(row.getInt("itemid"), row.getString("itemname"),
+                row.getFloat("price"), row.getString("seller"));
+        if (soldItems.contains(ItemKey.of(item))
+                || removedUsers.contains(item.getSellerName())) {
+            return null;
+        }
+        if (!catalog.add(item)) {
+            return null;
+        }
+        itemsLoaded.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * @return true if the wish was removed by a purchase made while loading,
+     * with the same rule as WishIndex.removeFulfilled. The caller holds the
+     * item's lock, like itemSold.
+     */
+    private boolean isFulfilled(Wish wish) {
+        Float lowest = fulfilledWishes.get(Arrays.asList(wish.getItemName(),
+                wish.getWisherName()));
+        return lowest != null && wish.getPrice() >= lowest;
+    }
+
+    /**
+     * Once both loaders are done, removes what they may have added for users
+     * who unregistered while they were running, and drops the tombstones.
+     */
+    private synchronized void finishIfReady() {
+        if (!isReady() || readyTime != 0) {
+            return;
+        }
+        for (String userName : new ArrayList<>(removedUsers)) {
+            catalog.removeBySeller(userName);
+            wishes.removeByWisher(userName);
+        }
+        soldItems.clear();
+        fulfilledWishes.clear();
+        removedUsers.clear();
+        readyTime = System.currentTimeMillis();
+        LOG.info("Catalog loaded: {} items and {} wishes in {} ms", itemsLoaded,
+                wishesLoaded, readyTime - startTime);
+    }
+}
@@ -0,0 +1,488 @@
+package marketplace.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import marketplace.shared.Item;
+import se.kth.id2212.logging.Log;
+
+/**
+ * Keeps a copy of the catalog and wish index on local disk, so that a
+ * restarted marketplace can get them back by reading two files sequentially
+ * instead of querying the ITEM and WISH tables.
+ *
+ * The copy is a snapshot plus a journal. The snapshot holds every item and
+ * wish and is written periodically to a new file, which then replaces the
+ * old one. It is streamed to and from the file, so its size is not limited
+ * by the heap. Every change made after that is appended to the journal as a
+ * numbered record.
+ *
+ * A snapshot is taken while the marketplace keeps running. It stores the
+ * number of the last journal record written before it started. Restore
+ * replays only the records after that one. Each record either sets or
+ * clears entries, so the last record for an entry decides its state, even
+ * if the snapshot already saw some of those changes.
+ *
+ * The snapshot and each journal record carry a CRC32. Journal replay stops
+ * at the first torn record. If the snapshot is missing or fails its check,
+ * restore returns false and the caller loads everything from the database.
+ * The journal is not forced to disk for every record, but every
+ * JOURNAL_FORCE_INTERVAL_MILLIS and on close. The copy therefore survives a
+ * crash of the marketplace process, but a crash of the machine can lose the
+ * changes of that last interval; after one, delete the directory to force a
+ * database load.
+ *
+ * close takes a last snapshot. A change made after that, by a call that was
+ * still running, is appended to the journal on its own and forced at once,
+ * so the files still match the catalog.
+ *
+ * The per-user bought and sold counters are only kept in USERDATA, so there
+ * is nothing in memory to snapshot for them.
+ */
+public class CatalogSnapshot {
+    private static final Log LOG = Log.get(CatalogSnapshot.class);
+    private static final int MAGIC = 0x4d4b5431;
+    private static final int VERSION = 2;
+    public static final long JOURNAL_FORCE_INTERVAL_MILLIS = 1000;
+    //magic, version, sequence, item count, wish count, crc
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 8;
+    private static final byte ITEM_ADDED = 1;
+    private static final byte ITEM_SOLD = 2;
+    private static final byte WISH_ADDED = 3;
+    private static final byte USER_REMOVED = 4;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final CatalogStore catalog;
+    private final WishIndex wishes;
+    private FileChannel journal;
+    private long sequence;
+    private boolean failed;
+    private boolean closed;
+    private ScheduledExecutorService scheduler;
+    //Held while a snapshot is written, so only one is written at a time
+    private final Object snapshotLock = new Object();
+
+    public CatalogSnapshot(File directory, CatalogStore catalog, WishIndex wishes) {
+        directory.mkdirs();
+        this.snapshotFile = new File(directory, "catalog.snapshot");
+        this.journalFile = new File(directory, "catalog.journal");
+        this.oldJournalFile = new File(directory, "catalog.journal.old");
+        this.catalog = catalog;
+        this.wishes = wishes;
+    }
+
+    /**
+     * Fills the catalog and wish index from the snapshot and journal, and
+     * opens the journal for the changes to come.
+     *
+     * @return false if there was no valid snapshot; the files have then been
+     * reset and the caller has to load the catalog from the database
+     */
+    public synchronized boolean restore() throws IOException {
+        long snapshotSequence = readSnapshot();
+        if (snapshotSequence < 0) {
+            Files.deleteIfExists(snapshotFile.toPath());
+            Files.deleteIfExists(oldJournalFile.toPath());
+            Files.deleteIfExists(journalFile.toPath());
+            sequence = 0;
+            openJournal(0);
+            return false;
+        }
+        sequence = snapshotSequence;
+        replay(oldJournalFile, snapshotSequence);
+        long validLength = replay(journalFile, snapshotSequence);
+        openJournal(validLength);
+        return true;
+    }
+
+    /**
+     * Takes a snapshot every interval, once the loader has finished, and
+     * forces the journal to disk every JOURNAL_FORCE_INTERVAL_MILLIS.
+     */
+    public void startSnapshots(long intervalMillis, final CatalogLoader loader) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "catalog-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!loader.isReady()) {
+                    return;
+                }
+                try {
+                    snapshot();
+                } catch (IOException ex) {
+                    LOG.error("Problem writing catalog snapshot", ex);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    forceJournal();
+                } catch (IOException ex) {
+                    LOG.error("Problem forcing catalog journal to disk", ex);
+                }
+            }
+        }, JOURNAL_FORCE_INTERVAL_MILLIS, JOURNAL_FORCE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forces the journal to disk. Appends go on meanwhile; the records they
+     * write may or may not be forced too.
+     */
+    private void forceJournal() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (failed || closed) {
+                return;
+            }
+            current = journal;
+        }
+        try {
+            current.force(false);
+        } catch (ClosedChannelException ex) {
+            //Moved aside by a snapshot meanwhile, which makes it redundant
+        }
+    }
+
+    /**
+     * Writes a snapshot of the catalog and wish index. The journal is moved
+     * aside first, and deleted once the snapshot is safely on disk.
+     */
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long snapshotSequence;
+            synchronized (this) {
+                if (failed || closed) {
+                    return;
+                }
+                if (!oldJournalFile.exists()) {
+                    journal.close();
+                    Files.move(journalFile.toPath(), oldJournalFile.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                    openJournal(0);
+                }
+                snapshotSequence = sequence;
+            }
+            writeSnapshot(snapshotSequence);
+            Files.deleteIfExists(oldJournalFile.toPath());
+        }
+    }
+
+    public void itemAdded(Item item) {
+        append(ITEM_ADDED, item.getId(), item.getName(), item.getPrice(),
+                item.getSellerName());
+    }
+
+    /**
+     * Records that the item was sold, which also removes the buyer's wishes
+     * it fulfils.
+     */
+    public void itemSold(Item item, String buyer) {
+        append(ITEM_SOLD, item.getId(), item.getName(), item.getPrice(), buyer);
+    }
+
+    public void wishAdded(Wish wish) {
+        append(WISH_ADDED, 0, wish.getItemName(), wish.getPrice(),
+                wish.getWisherName());
+    }
+
+    public void userRemoved(String userName) {
+        append(USER_REMOVED, 0, userName, 0, "");
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Takes a last snapshot and closes the journal.
+     */
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        snapshot();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!failed) {
+                journal.force(false);
+                journal.close();
+            }
+        }
+    }
+
+    private synchronized void append(byte operation, int itemId, String name,
+            float price, String user) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (closed) {
+                openJournal(journalFile.length());
+            }
+            sequence++;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeLong(sequence);
+            payload.writeByte(operation);
+            payload.writeInt(itemId);
+            payload.writeUTF(name);
+            payload.writeFloat(price);
+            payload.writeUTF(user);
+            payload.flush();
+            byte[] data = bytes.toByteArray();
+            ByteBuffer record = ByteBuffer.allocate(4 + 8 + data.length);
+            record.putInt(data.length);
+            record.putLong(checksum(data, 0, data.length));
+            record.put(data);
+            record.flip();
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            if (closed) {
+                journal.force(false);
+                journal.close();
+            }
+        } catch (IOException ex) {
+            //Without the change in the journal the files no longer match the
+            //catalog, so make sure the next start loads from the database
+            LOG.error("Problem writing catalog journal, disabling snapshots",
+                    ex);
+            failed = true;
+            try {
+                Files.deleteIfExists(snapshotFile.toPath());
+            } catch (IOException deleteFailure) {
+                LOG.error("Problem deleting catalog snapshot", deleteFailure);
+            }
+        }
+    }
+
+    private void openJournal(long validLength) throws IOException {
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        //Drop a torn record at the end, later records would not be read
+        journal.truncate(validLength);
+        journal.position(validLength);
+    }
+
+    /**
+     * Streams the items and wishes to a new file after a blank header, and
+     * then fills in the header, which holds their counts and checksum.
+     */
+    private void writeSnapshot(long snapshotSequence) throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile.toPath());
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            //Not closed, that would close the channel before the header is
+            //written
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc),
+                    64 * 1024));
+            int itemCount = 0;
+            for (Item item : catalog.values()) {
+                body.writeInt(item.getId());
+                body.writeUTF(item.getName());
+                body.writeFloat(item.getPrice());
+                body.writeUTF(item.getSellerName());
+                itemCount++;
+            }
+            int wishCount = 0;
+            for (Wish wish : wishes.list()) {
+                body.writeUTF(wish.getItemName());
+                body.writeFloat(wish.getPrice());
+                body.writeUTF(wish.getWisherName());
+                wishCount++;
+            }
+            body.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(snapshotSequence);
+            header.putInt(itemCount);
+            header.putInt(wishCount);
+            header.putLong(crc.getValue());
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot twice, first only to check it, so that nothing is
+     * added from a corrupt one.
+     *
+     * @return the journal sequence the snapshot was taken at, or -1 if there
+     * is no valid snapshot
+     */
+    private long readSnapshot() throws IOException {
+        if (!snapshotFile.exists() || snapshotFile.length() < HEADER_SIZE) {
+            return -1;
+        }
+        long snapshotSequence;
+        int itemCount;
+        int wishCount;
+        try (DataInputStream in = openSnapshot()) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.warn("Catalog snapshot has an unknown format");
+                return -1;
+            }
+            snapshotSequence = in.readLong();
+            itemCount = in.readInt();
+            wishCount = in.readInt();
+            long expectedCrc = in.readLong();
+            CheckedInputStream body = new CheckedInputStream(in, new CRC32());
+            byte[] buffer = new byte[64 * 1024];
+            while (body.read(buffer) >= 0) {
+                //Only the checksum is needed
+            }
+            if (body.getChecksum().getValue() != expectedCrc) {
+                LOG.warn("Catalog snapshot is corrupt");
+                return -1;
+            }
+        }
+        try (DataInputStream in = openSnapshot()) {
+            in.skipBytes(HEADER_SIZE);
+            for (int i = 0; i < itemCount; i++) {
+                catalog.add(new ItemImpl(in.readInt(), in.readUTF(),
+                        in.readFloat(), in.readUTF()));
+            }
+            for (int i = 0; i < wishCount; i++) {
+                wishes.add(new Wish(in.readUTF(), in.readFloat(), in.readUTF()));
+            }
+        } catch (EOFException ex) {
+            LOG.warn("Catalog snapshot is truncated");
+            return -1;
+        }
+        return snapshotSequence;
+    }
+
+    private DataInputStream openSnapshot() throws IOException {
+        InputStream in = Files.newInputStream(snapshotFile.toPath());
+        return new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    /**
+     * Applies the journal records after the snapshot sequence.
+     *
+     * @return the length of the valid part of the journal
+     */
+    private long replay(File file, long snapshotSequence) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            long validLength = 0;
+            while (buffer.remaining() >= 12) {
+                int length = buffer.getInt();
+                long expectedCrc = buffer.getLong();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                int start = buffer.position();
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                if (checksum(record.duplicate()) != expectedCrc) {
+                    break;
+                }
+                buffer.position(start + length);
+                validLength = buffer.position();
+                long recordSequence = record.getLong();
+                sequence = Math.max(sequence, recordSequence);
+                if (recordSequence > snapshotSequence) {
+                    byte[] data = new byte[record.remaining()];
+                    record.get(data);
+                    apply(new DataInputStream(new ByteArrayInputStream(data)));
+                }
+            }
+            return validLength;
+        }
+    }
+
+    /**
+     * Applies one journal record, after its sequence. The strings are read
+     * back with readUTF since append writes them with writeUTF, whose
+     * modified UTF-8 differs from UTF-8 for NUL and supplementary characters.
+     */
+    private void apply(DataInputStream record) throws IOException {
+        byte operation = record.readByte();
+        int itemId = record.readInt();
+        String name = record.readUTF();
+        float price = record.readFloat();
+        String user = record.readUTF();
+        switch (operation) {
+            case ITEM_ADDED:
+                catalog.add(new ItemImpl(itemId, name, price, user));
+                break;
+            case ITEM_SOLD:
+                catalog.remove(new ItemKey(name, price));
+                wishes.removeFulfilled(name, price, user);
+                break;
+            case WISH_ADDED:
+                wishes.add(new Wish(name, price, user));
+                break;
+            case USER_REMOVED:
+                catalog.removeBySeller(name);
+                wishes.removeByWisher(name);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record " + operation);
+        }
+    }
+
+    private static long checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    private static long checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,19 @@
+package marketplace.server;
+
+/**
+ * Where the marketplace keeps its catalog.
+ */
+public enum CatalogStorage {
+    /**
+     * An ItemCatalog: concurrent skip lists on the Java heap. Reads and
+     * changes of different item names proceed in parallel.
+     */
+    HEAP,
+    /**
+     * An OffHeapCatalogStore: items and indexes in direct buffers, so the
+     * garbage collector does not have to trace them. Meant for catalogs of
+     * millions of items; the JVM needs -XX:MaxDirectMemorySize large enough
+     * for about 60 bytes per item.
+     */
+    OFF_HEAP
+}
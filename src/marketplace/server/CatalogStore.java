@@ -0,0 +1,83 @@
+package marketplace.server;
+
+import java.util.Collection;
+import java.util.List;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+
+/**
+ * Storage of the items for sale, identified by their ItemKey (name and
+ * price in cents). Implementations are thread safe; changes to the items of
+ * one name are made while holding that name's ItemLocks stripe, so they do
+ * not have to be atomic with respect to each other.
+ *
+ * The Items returned are copies, changing them does not change the store.
+ *
+ * @see CatalogStorage
+ */
+public interface CatalogStore {
+
+    /**
+     * Adds the item unless an item with the same name and price is already
+     * in the catalog.
+     *
+     * @return true if the item was added
+     */
+    boolean add(Item item);
+
+    Item get(String name, float price);
+
+    /**
+     * @return the item with the database itemid, or null
+     */
+    Item getById(int id);
+
+    /**
+     * @return the cheapest item with exactly this name priced at or below
+     * maxPrice, or null if there is none
+     */
+    Item findCheapest(String name, float maxPrice);
+
+    boolean contains(Item item);
+
+    boolean contains(String name, float price);
+
+    /**
+     * Removes the item with the same name and price as the given one.
+     *
+     * @return the removed item, or null if there was no such item
+     */
+    Item remove(Item item);
+
+    Item remove(ItemKey key);
+
+    /**
+     * Removes every item sold by the given seller.
+     *
+     * @return the removed items
+     */
+    List<Item> removeBySeller(String sellerName);
+
+    /**
+     * @return a read-only view of the catalog in listing order
+     */
+    Collection<Item> values();
+
+    /**
+     * @return a copy of the catalog in listing order, suitable for sending
+     * to a client
+     */
+    List<Item> list();
+
+    /**
+     * Returns one page of the items matching the query. The name prefix is
+     * matched ignoring case, like the catalog order. See ItemCatalog.query
+     * for which queries are answered from the index and which are scans.
+     *
+     * @throws IllegalArgumentException if the query has a malformed cursor
+     */
+    ItemPage query(ItemQuery query);
+
+    int size();
+}
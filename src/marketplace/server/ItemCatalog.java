@@ -0,0 +1,345 @@
+package marketplace.server;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.ItemSortOrder;
+
+/**
+ * In-memory catalog of the items for sale. Items are kept in a concurrent
+ * skip list sorted on their ItemKey, so adding, removing and looking up an
+ * item is O(log n) and the catalog is always available in listing order
+ * without sorting it.
+ *
+ * A second skip list orders the same keys on price, so that a page of the
+ * catalog can be served in name or price order by starting from the right
+ * position of the matching index (see query for what that costs).
+ *
+ * The catalog does not keep Item objects. The fields of each item are stored
+ * in ItemColumns, with the price in cents and the item and seller names as
+ * codes into two NameDictionary, and the keys in the skip lists hold the
+ * item's handle there. Lookups, ordering and filtering only use the keys; an
+ * Item is created when one is returned, which is when it is about to be sent
+ * to a client. The itemid index and the scan for a seller's items when the
+ * seller unregisters are done on the columns.
+ */
+public class ItemCatalog implements CatalogStore {
+    private final ConcurrentSkipListSet<ItemKey> items =
+            new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<ItemKey> itemsByPrice =
+            new ConcurrentSkipListSet<>(ItemKey.PRICE_ORDER);
+    private final ItemColumns columns = new ItemColumns();
+    private final NameDictionary itemNames = new NameDictionary();
+    private final NameDictionary sellerNames = new NameDictionary();
+
+    /**
+     * Adds the item unless an item with the same name and price is already
+     * in the catalog.
+     *
+     * @return true if the item was added
+     */
+    @Override
+    public boolean add(Item item) {
+        long priceCents = Prices.toMinorUnits(item.getPrice());
+        int name = itemNames.intern(item.getName());
+        int seller = item.getSellerName() == null ? -1
+                : sellerNames.intern(item.getSellerName());
+        long handle = columns.allocate(item.getId(), name, priceCents, seller);
+        ItemKey key = new ItemKey(itemNames.get(name), priceCents, handle);
+        if (!items.add(key)) {
+            columns.free(handle);
+            return false;
+        }
+        itemsByPrice.add(key);
+        return true;
+    }
+
+    /**
+     * @return the key in the catalog equal to the given one, which holds the
+     * item's handle, or null
+     */
+    private ItemKey stored(ItemKey key) {
+        ItemKey stored = items.ceiling(key);
+        return stored != null && stored.equals(key) ? stored : null;
+    }
+
+    private Item materialize(ItemKey stored) {
+        return stored == null ? null
+                : columns.materialize(stored.getHandle(), itemNames, sellerNames);
+    }
+
+    @Override
+    public Item get(String name, float price) {
+        return materialize(stored(new ItemKey(name, price)));
+    }
+
+    /**
+     * @return the item with the database itemid, or null
+     */
+    @Override
+    public Item getById(int id) {
+        long handle = columns.findById(id);
+        return handle == ItemColumns.NO_ITEM ? null
+                : columns.materialize(handle, itemNames, sellerNames);
+    }
+
+    /**
+     * @return the cheapest item with exactly this name priced at or below
+     * maxPrice, or null if there is none
+     */
+    @Override
+    public Item findCheapest(String name, float maxPrice) {
+        //Items with the same name are next to each other, ordered on price
+        ItemKey cheapest = items.ceiling(
+                ItemKey.ofMinorUnits(name, Long.MIN_VALUE));
+        if (cheapest == null || !cheapest.getName().equals(name)
+                || cheapest.getPriceCents() > Prices.toMinorUnits(maxPrice)) {
+            return null;
+        }
+        return materialize(cheapest);
+    }
+
+    @Override
+    public boolean contains(Item item) {
+        return items.contains(ItemKey.of(item));
+    }
+
+    @Override
+    public boolean contains(String name, float price) {
+        return items.contains(new ItemKey(name, price));
+    }
+
+    /**
+     * Removes the item with the same name and price as the given one.
+     *
+     * @return the removed item, or null if there was no such item
+     */
+    @Override
+    public Item remove(Item item) {
+        return remove(ItemKey.of(item));
+    }
+
+    @Override
+    public Item remove(ItemKey key) {
+        ItemKey stored = stored(key);
+        if (stored == null) {
+            return null;
+        }
+        Item removed = materialize(stored);
+        return removeStored(stored) ? removed : null;
+    }
+
+    /**
+     * @return false if another thread removed the key first
+     */
+    private boolean removeStored(ItemKey stored) {
+        if (!items.remove(stored)) {
+            return false;
+        }
+        itemsByPrice.remove(stored);
+        columns.free(stored.getHandle());
+        return true;
+    }
+
+    /**
+     * Removes every item sold by the given seller.
+     *
+     * @return the removed items
+     */
+    @Override
+    public List<Item> removeBySeller(String sellerName) {
+        List<Item> removed = new ArrayList<>();
+        int seller = sellerNames.find(sellerName);
+        if (seller < 0) {
+            return removed;
+        }
+        for (long handle : columns.findBySeller(seller)) {
+            Item item = columns.materialize(handle, itemNames, sellerNames);
+            if (item == null) {
+                continue;
+            }
+            ItemKey stored = stored(ItemKey.of(item));
+            if (stored != null && stored.getHandle() == handle
+                    && removeStored(stored)) {
+                removed.add(item);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return a live, read-only view of the catalog in listing order, whose
+     * items are created as it is iterated
+     */
+    @Override
+    public Collection<Item> values() {
+        return new AbstractCollection<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                return materializing(items.iterator());
+            }
+
+            @Override
+            public int size() {
+                return items.size();
+            }
+        };
+    }
+
+    /**
+     * @return the items of the keys, skipping those removed meanwhile
+     */
+    private Iterator<Item> materializing(final Iterator<ItemKey> keys) {
+        return new Iterator<Item>() {
+            private Item next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    next = materialize(keys.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the catalog in listing order, suitable for sending
+     * to a client
+     */
+    @Override
+    public List<Item> list() {
+        List<Item> list = new ArrayList<>(items.size());
+        Iterator<Item> iterator = materializing(items.iterator());
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    /**
+     * Returns one page of the items matching the query. The name prefix is
+     * matched ignoring case, like the catalog order.
+     *
+     * Only the filter on what the index is ordered by narrows the range that
+     * is walked: the name prefix in name order, the price range in price
+     * order. That page costs O(log n + page size). The other filter is
+     * checked item by item, so a price range in name order or a prefix in
+     * price order costs O(log n + items passed over), which is O(n) when few
+     * items match. An offset is walked over too, adding O(offset); a cursor
+     * is not, which is why following pages should be fetched with one.
+     *
+     * @throws IllegalArgumentException if the query has a malformed cursor
+     */
+    @Override
+    public ItemPage query(ItemQuery query) {
+        if (query.getMinPrice() > query.getMaxPrice()) {
+            return new ItemPage(new ArrayList<Item>(), null);
+        }
+        NavigableSet<ItemKey> range = range(query);
+        if (query.getCursor() != null) {
+            range = range.tailSet(ItemKey.fromCursor(query.getCursor()), false);
+        }
+        String prefix = query.getNamePrefix();
+        long minCents = Prices.toMinorUnits(query.getMinPrice());
+        long maxCents = Prices.toMinorUnits(query.getMaxPrice());
+        int toSkip = query.getCursor() == null ? query.getOffset() : 0;
+        List<Item> page = new ArrayList<>();
+        ItemKey last = null;
+        for (ItemKey key : range) {
+            if (prefix != null && !hasPrefix(key.getName(), prefix)) {
+                continue;
+            }
+            if (key.getPriceCents() < minCents || key.getPriceCents() > maxCents) {
+                continue;
+            }
+            if (toSkip > 0) {
+                toSkip--;
+                continue;
+            }
+            if (page.size() == query.getPageSize()) {
+                //There is at least one more item, so hand out a cursor
+                return new ItemPage(page, last.toCursor());
+            }
+            Item item = materialize(key);
+            if (item != null) {
+                page.add(item);
+                last = key;
+            }
+        }
+        return new ItemPage(page, null);
+    }
+
+    /**
+     * @return the part of the matching index that can contain items for the
+     * query, in the requested order
+     */
+    private NavigableSet<ItemKey> range(ItemQuery query) {
+        String prefix = query.getNamePrefix();
+        switch (query.getSortOrder()) {
+            case PRICE_ASCENDING:
+            case PRICE_DESCENDING:
+                NavigableSet<ItemKey> byPrice = itemsByPrice.subSet(
+                        new ItemKey("", query.getMinPrice()), true,
+                        new ItemKey(String.valueOf(Character.MAX_VALUE),
+                                query.getMaxPrice()), true);
+                return query.getSortOrder() == ItemSortOrder.PRICE_ASCENDING
+                        ? byPrice : byPrice.descendingSet();
+            default:
+                NavigableSet<ItemKey> byName = items;
+                if (prefix != null && !prefix.isEmpty()) {
+                    //Upper case sorts first among names that are equal when
+                    //ignoring case, so this is where the prefix range starts
+                    byName = items.subSet(
+                            new ItemKey(prefix.toUpperCase(), Float.NEGATIVE_INFINITY), true,
+                            new ItemKey(prefix + Character.MAX_VALUE,
+                                    Float.POSITIVE_INFINITY), true);
+                }
+                return query.getSortOrder() == ItemSortOrder.NAME_DESCENDING
+                        ? byName.descendingSet() : byName;
+        }
+    }
+
+    private static boolean hasPrefix(String name, String prefix) {
+        return name.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public int getColumnCapacity() {
+        return columns.getCapacity();
+    }
+
+    public int getItemNameCount() {
+        return itemNames.size();
+    }
+
+    public int getSellerNameCount() {
+        return sellerNames.size();
+    }
+}
@@ -0,0 +1,341 @@
+package marketplace.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+import marketplace.shared.Item;
+
+/**
+ * The fields of the items in a catalog stored column by column: one array
+ * of itemids, one of name codes, one of prices in cents and one of seller
+ * codes, with the fields of an item at the same index (its slot) in each.
+ * This costs 24 bytes per item, with the generation below, instead of an
+ * object with its header and references, and a scan of one column, such as
+ * finding all items of a seller, reads one contiguous array.
+ *
+ * An item is referred to by a handle that combines its slot with the
+ * generation of the slot. Freeing a slot increments its generation, so a
+ * handle kept after its item was removed finds nothing even once the slot
+ * holds another item.
+ *
+ * Changes take the write lock. Reading one item first tries an optimistic
+ * read, which does not write to shared memory, and only takes the read lock
+ * if a change got in between. An index from itemid to slot is kept in two
+ * int arrays with open addressing, under the same lock.
+ */
+public class ItemColumns {
+    public static final long NO_ITEM = -1;
+    private static final int FREE = -2;
+    private final StampedLock lock = new StampedLock();
+    private int[] ids;
+    private int[] names;
+    private long[] prices;
+    private int[] sellers;
+    private int[] generations;
+    //Slots below highWater have been used, freed ones are kept on a stack
+    private int highWater;
+    private int[] freeSlots;
+    private int freeCount;
+    private int size;
+    //itemid to slot; itemid 0 means no itemid and marks an empty entry
+    private int[] idKeys;
+    private int[] idSlots;
+    private int idCount;
+
+    public ItemColumns() {
+        this(64);
+    }
+
+    public ItemColumns(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        ids = new int[capacity];
+        names = new int[capacity];
+        prices = new long[capacity];
+        sellers = new int[capacity];
+        generations = new int[capacity];
+        freeSlots = new int[16];
+        idKeys = new int[32];
+        idSlots = new int[32];
+    }
+
+    private static long handle(int slot, int generation) {
+        return ((long) generation << 32) | (slot & 0xffffffffL);
+    }
+
+    private static int slot(long handle) {
+        return (int) handle;
+    }
+
+    private static int generation(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    /**
+     * Stores an item.
+     *
+     * @param seller the seller's code, or -1 if the item has no seller
+     * @return the handle of the item
+     */
+    public long allocate(int id, int name, long priceCents, int seller) {
+        long stamp = lock.writeLock();
+        try {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (highWater == ids.length) {
+                    grow();
+                }
+                slot = highWater++;
+            }
+            ids[slot] = id;
+            names[slot] = name;
+            prices[slot] = priceCents;
+            sellers[slot] = seller;
+            size++;
+            if (id != 0) {
+                putId(id, slot);
+            }
+            return handle(slot, generations[slot]);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void grow() {
+        int capacity = ids.length * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        names = Arrays.copyOf(names, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        sellers = Arrays.copyOf(sellers, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+    }
+
+    /**
+     * Removes the item, unless the handle is stale.
+     *
+     * @return true if the item was removed
+     */
+    public boolean free(long handle) {
+        int slot = slot(handle);
+        long stamp = lock.writeLock();
+        try {
+            if (slot >= highWater || generations[slot] != generation(handle)
+                    || names[slot] == FREE) {
+                return false;
+            }
+            if (ids[slot] != 0) {
+                removeId(ids[slot]);
+            }
+            generations[slot]++;
+            ids[slot] = 0;
+            names[slot] = FREE;
+            sellers[slot] = FREE;
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            size--;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Creates the Item for the handle, with its names looked up in the
+     * dictionaries.
+     *
+     * @return the item, or null if it has been removed
+     */
+    public Item materialize(long handle, NameDictionary itemNames,
+            NameDictionary sellerNames) {
+        int slot = slot(handle);
+        int generation = generation(handle);
+        int id = 0;
+        int name = FREE;
+        long price = 0;
+        int seller = FREE;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            //The arrays may be replaced by grow meanwhile, so read each one
+            //once and check the slot against that copy
+            int[] generationColumn = generations;
+            int[] idColumn = ids;
+            int[] nameColumn = names;
+            long[] priceColumn = prices;
+            int[] sellerColumn = sellers;
+            if (slot < generationColumn.length && slot < idColumn.length
+                    && slot < nameColumn.length && slot < priceColumn.length
+                    && slot < sellerColumn.length
+                    && generationColumn[slot] == generation) {
+                id = idColumn[slot];
+                name = nameColumn[slot];
+                price = priceColumn[slot];
+                seller = sellerColumn[slot];
+            } else {
+                name = FREE;
+            }
+            if (!lock.validate(stamp)) {
+                stamp = 0;
+            }
+        }
+        if (stamp == 0) {
+            stamp = lock.readLock();
+            try {
+                if (slot < highWater && generations[slot] == generation) {
+                    id = ids[slot];
+                    name = names[slot];
+                    price = prices[slot];
+                    seller = sellers[slot];
+                } else {
+                    name = FREE;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (name == FREE) {
+            return null;
+        }
+        return new ItemImpl(id, itemNames.get(name), Prices.fromMinorUnits(price),
+                seller < 0 ? null : sellerNames.get(seller));
+    }
+
+    /**
+     * @return the handle of the item with the itemid, or NO_ITEM
+     */
+    public long findById(int id) {
+        if (id == 0) {
+            return NO_ITEM;
+        }
+        long stamp = lock.readLock();
+        try {
+            int slot = findId(id);
+            return slot < 0 ? NO_ITEM : handle(slot, generations[slot]);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Scans the seller column.
+     *
+     * @return the handles of all items of the seller
+     */
+    public long[] findBySeller(int seller) {
+        long stamp = lock.readLock();
+        try {
+            long[] found = new long[16];
+            int count = 0;
+            for (int slot = 0; slot < highWater; slot++) {
+                if (sellers[slot] == seller) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = handle(slot, generations[slot]);
+                }
+            }
+            return Arrays.copyOf(found, count);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static int hash(int id, int mask) {
+        int h = id * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int findId(int id) {
+        int mask = idKeys.length - 1;
+        for (int i = hash(id, mask); idKeys[i] != 0; i = (i + 1) & mask) {
+            if (idKeys[i] == id) {
+                return idSlots[i];
+            }
+        }
+        return -1;
+    }
+
+    private void putId(int id, int slot) {
+        if ((idCount + 1) * 2 > idKeys.length) {
+            rehashIds(idKeys.length * 2);
+        }
+        int mask = idKeys.length - 1;
+        int i = hash(id, mask);
+        while (idKeys[i] != 0 && idKeys[i] != id) {
+            i = (i + 1) & mask;
+        }
+        if (idKeys[i] == 0) {
+            idCount++;
+        }
+        idKeys[i] = id;
+        idSlots[i] = slot;
+    }
+
+    private void rehashIds(int capacity) {
+        int[] oldKeys = idKeys;
+        int[] oldSlots = idSlots;
+        idKeys = new int[capacity];
+        idSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = hash(oldKeys[j], mask);
+                while (idKeys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                idKeys[i] = oldKeys[j];
+                idSlots[i] = oldSlots[j];
+            }
+        }
+    }
+
+    /**
+     * Removes the entry and moves later entries of the same probe sequence
+     * back into the gap, so that lookups need no deletion markers.
+     */
+    private void removeId(int id) {
+        int mask = idKeys.length - 1;
+        int i = hash(id, mask);
+        while (idKeys[i] != id) {
+            if (idKeys[i] == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int gap = i;
+        for (int j = (gap + 1) & mask; idKeys[j] != 0; j = (j + 1) & mask) {
+            int home = hash(idKeys[j], mask);
+            //The entry at j may move to the gap unless its home lies
+            //cyclically after the gap and at or before j
+            boolean homeBetween = gap <= j
+                    ? home > gap && home <= j
+                    : home > gap || home <= j;
+            if (!homeBetween) {
+                idKeys[gap] = idKeys[j];
+                idSlots[gap] = idSlots[j];
+                gap = j;
+            }
+        }
+        idKeys[gap] = 0;
+        idCount--;
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int getCapacity() {
+        long stamp = lock.readLock();
+        try {
+            return ids.length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
@@ -5,16 +5,30 @@ import marketplace.shared.Item;
 
 
 public class ItemImpl implements Item, Serializable {
+    private int id;
     private String name;
     private float price;
     private String sellerName;
     
     public ItemImpl (String name, float price, String sellerName) {
+        this(0, name, price, sellerName);
+    }
+
+    public ItemImpl (int id, String name, float price, String sellerName) {
+        this.id = id;
         this.name = name;
         this.price = price;
         this.sellerName = sellerName;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -39,35 +53,38 @@ public class ItemImpl implements Item, Serializable {
         this.sellerName = seller;
     }
     
+    /**
+     * Items are equal if they have the same name and the same price in cents,
+     * like their ItemKey.
+     */
     @Override
     public boolean equals(Object o) {
-        try {
-            Item otherItem = (Item) o;
-            if (name.equals(otherItem.getName()) && 
-                    price == otherItem.getPrice()) {
-                return true;
-            }
-            else {
-                return false;
-            }
-        } catch(ClassCastException ex) {
+        if (!(o instanceof Item)) {
             return false;
         }
+        Item otherItem = (Item) o;
+        return name.equals(otherItem.getName())
+                && Prices.toMinorUnits(price) == Prices.toMinorUnits(otherItem.getPrice());
     }
 
     @Override
-    public int compareTo(Object o) {
-        int result = 0;
-        try {
-            Item otherItem = (Item) o;
-            result += 1000000000 * this.getName().
-                    compareToIgnoreCase(otherItem.getName());
-            result += this.getPrice() - otherItem.getPrice();
-        } catch(ClassCastException ex) {
-        }
-        
+    public int hashCode() {
+        return 31 * name.hashCode() + Long.hashCode(Prices.toMinorUnits(price));
+    }
 
+    /**
+     * Orders items like the catalog lists them, see ItemKey.
+     */
+    @Override
+    public int compareTo(Item otherItem) {
+        int result = name.compareToIgnoreCase(otherItem.getName());
+        if (result == 0) {
+            result = name.compareTo(otherItem.getName());
+        }
+        if (result == 0) {
+            result = Long.compare(Prices.toMinorUnits(price),
+                    Prices.toMinorUnits(otherItem.getPrice()));
+        }
         return result;
-        
     }
 }
@@ -0,0 +1,126 @@
+package marketplace.server;
+
+import java.util.Comparator;
+import marketplace.shared.Item;
+
+/**
+ * Identity of an item in the catalog: its name and its price in cents (see
+ * Prices). Two items with the same key are considered the same item, which
+ * is the same rule that ItemImpl.equals uses.
+ *
+ * Keys are ordered by name (case insensitive, ties broken case sensitively)
+ * and then by price, which is the order listItems presents the catalog in.
+ *
+ * The keys ItemCatalog keeps in its indexes also hold the handle of the
+ * item's fields in the catalog's ItemColumns. The handle is not part of the
+ * identity, a key made from a name and a price finds the stored key.
+ */
+public final class ItemKey implements Comparable<ItemKey> {
+    /**
+     * Orders keys by price and then in listing order.
+     */
+    public static final Comparator<ItemKey> PRICE_ORDER = new Comparator<ItemKey>() {
+        @Override
+        public int compare(ItemKey key1, ItemKey key2) {
+            int result = Long.compare(key1.priceCents, key2.priceCents);
+            if (result == 0) {
+                result = key1.compareTo(key2);
+            }
+            return result;
+        }
+    };
+    private final String name;
+    private final long priceCents;
+    private final long handle;
+
+    public ItemKey(String name, float price) {
+        this(name, Prices.toMinorUnits(price), ItemColumns.NO_ITEM);
+    }
+
+    ItemKey(String name, long priceCents, long handle) {
+        this.name = name;
+        this.priceCents = priceCents;
+        this.handle = handle;
+    }
+
+    public static ItemKey of(Item item) {
+        return new ItemKey(item.getName(), item.getPrice());
+    }
+
+    public static ItemKey ofMinorUnits(String name, long priceCents) {
+        return new ItemKey(name, priceCents, ItemColumns.NO_ITEM);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getPrice() {
+        return Prices.fromMinorUnits(priceCents);
+    }
+
+    public long getPriceCents() {
+        return priceCents;
+    }
+
+    long getHandle() {
+        return handle;
+    }
+
+    /**
+     * Parses a key written by toCursor.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static ItemKey fromCursor(String cursor) {
+        int separator = cursor.indexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+        try {
+            return ofMinorUnits(cursor.substring(separator + 1),
+                    Long.parseLong(cursor.substring(0, separator)));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+    }
+
+    /**
+     * @return an opaque string from which fromCursor recreates this key, used
+     * as continuation token when listing the catalog page by page
+     */
+    public String toCursor() {
+        return priceCents + ":" + name;
+    }
+
+    @Override
+    public int compareTo(ItemKey other) {
+        int result = name.compareToIgnoreCase(other.name);
+        if (result == 0) {
+            result = name.compareTo(other.name);
+        }
+        if (result == 0) {
+            result = Long.compare(priceCents, other.priceCents);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ItemKey)) {
+            return false;
+        }
+        ItemKey otherKey = (ItemKey) o;
+        return name.equals(otherKey.name) && priceCents == otherKey.priceCents;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + Long.hashCode(priceCents);
+    }
+
+    @Override
+    public String toString() {
+        return name + ", " + getPrice();
+    }
+}
@@ -0,0 +1,64 @@
+package marketplace.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+/**
+ * A fixed set of locks that item names are hashed onto (lock striping).
+ * Operations that have to see a consistent view of the listings and wishes
+ * for one item name, such as checking for a duplicate before adding a
+ * listing or matching wishes against it, hold the lock of that name. Work on
+ * items with different names then normally takes different locks and can
+ * run in parallel.
+ *
+ * The time threads spend waiting in lock is recorded in the ItemLocks wait
+ * metrics.
+ */
+public class ItemLocks {
+    public static final int DEFAULT_STRIPES = 64;
+    private static final OperationMetrics WAIT = Metrics.operation("ItemLocks", "wait");
+    private final ReentrantLock[] locks;
+
+    public ItemLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes the number of locks, rounded up to a power of two
+     */
+    public ItemLocks(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks the stripe of the item name.
+     *
+     * @return the lock, for the caller to unlock
+     */
+    public ReentrantLock lock(String itemName) {
+        ReentrantLock lock = lockFor(itemName);
+        if (lock.tryLock()) {
+            WAIT.record(0);
+        } else {
+            long waiting = System.nanoTime();
+            lock.lock();
+            WAIT.record(System.nanoTime() - waiting);
+        }
+        return lock;
+    }
+
+    public ReentrantLock lockFor(String itemName) {
+        int hash = itemName.hashCode();
+        //Spread the high bits, String hashes often differ only there
+        hash ^= (hash >>> 16);
+        return locks[hash & (locks.length - 1)];
+    }
+}
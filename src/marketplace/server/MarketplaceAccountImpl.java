@@ -1,147 +1,297 @@
-package marketplace.server;
-
-import se.kth.id2212.bankjdbc.Account;
-import se.kth.id2212.bankjdbc.Bank;
-import se.kth.id2212.bankjdbc.RejectedException;
-import java.rmi.Naming;
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
-import java.util.List;
-import marketplace.shared.DuplicateItemException;
-import marketplace.shared.Item;
-import marketplace.shared.MarketplaceAccount;
-import marketplace.shared.MarketplaceClient;
-import marketplace.shared.RegisterCustomerException;
-
-public class MarketplaceAccountImpl extends UnicastRemoteObject implements MarketplaceAccount{
-    static final String DEFAULT_BANK = "Nordea";
-    static String HOST = "localhost";
-    private String customerName;
-    private String password;
-    private int sold;
-    private int bought;
-    private Account bankAccount;
-    private MarketplaceClient client;   //to make callbacks
-    private MarketplaceImpl marketplace;
-    private List<Item> availableSales;
-    
-    public MarketplaceAccountImpl(MarketplaceClient client, String customerName, String bankAccountName, 
-            MarketplaceImpl marketplace) throws RemoteException, RegisterCustomerException {
-        this.customerName = customerName;
-        this.client = client;
-        setBankAccount(bankAccountName);
-        this.marketplace = marketplace;
-        System.out.println("MarketplaceAccount succesfully created");
-//        try {
-//            deposit(1);
-//        } catch (RejectedException ex) {
-//            System.out.println("Deposit rejected");
-//        }
-//        System.out.println("Welcome to Marketplace, here's a complimentary dollar");
-        availableSales = new ArrayList();
-    }
-    
-    private void setBankAccount(String bankAccountName) throws RegisterCustomerException {
-    //Make RMI to bank account possible
-        try {
-            Bank bank = (Bank) Naming.lookup("rmi://" + HOST + "/" + DEFAULT_BANK);
-            bankAccount = bank.getAccount(bankAccountName);
-            System.out.println("Bank: " + bank);
-            System.out.println("Bank Account: " + bankAccount);
-        } catch (Exception e) {
-            System.out.println("Failed creating a serverside representation"
-                    + "of bank account in marketplace account: " 
-                    + e.getMessage());
-            throw new RegisterCustomerException("Failed creating a serverside representation"
-                    + " of bank account in constructor of marketplace account: " + e.getMessage()); 
-        }  
-    }
-
-    @Override
-    public synchronized void deposit(float value) throws RemoteException, RejectedException {
-        bankAccount.deposit(value);
-    }
-
-    @Override
-    public synchronized void withdraw(float value) throws RemoteException, RejectedException {
-        bankAccount.withdraw(value);
-    }
-
-    @Override
-    public synchronized void addProduct(String productName, float price) 
-            throws RemoteException, DuplicateItemException {
-        Item product = (Item) new ItemImpl(productName, price, customerName);
-        if (marketplace.listItems().contains(product)) {
-            throw new RemoteException("Item already exists! Change price or name");
-        }
-        marketplace.addProduct(product);
-        System.out.println(productName + " added.");
-    }
-
-    @Override
-    public synchronized void buyProduct(Item product) throws RemoteException {
-        try {
-            withdraw(product.getPrice());
-            marketplace.buyProduct(product, customerName);
-            String productName = product.getName();
-            float productPrice = product.getPrice();
-            //see if a wish has to be removed
-            List<Wish> wishes = marketplace.getWishes();
-            for (Wish wish : wishes) {
-                if (wish.getItemName().equals(productName)
-                        && wish.getPrice() == productPrice
-                        && wish.getWisherName().equals(customerName)) {
-                    wishes.remove(wish);
-                    System.out.println("Wish for " + productName +
-                            " removed for " + customerName + ".");
-                }
-            }
-            System.out.println("Product " + productName + " sold to " 
-                    + customerName);
-        } catch (RejectedException ex) {
-            System.out.println("Bank rejected withdrawal for purchase");
-        }
-        
-    }
-
-    @Override
-    public void addWish(String itemName, float maxPrice) throws RemoteException {
-        marketplace.addWish(itemName, maxPrice, customerName);
-    }
-
-
-    public void notifyWishAvailable(String itemName, float price) {
-        try {
-            client.notifyWishAvailable(itemName, price);
-        } catch (RemoteException ex) {
-            System.out.println("Problem notifying client of available wish");
-        }
-    }
-    
-    public void notifySale(String productName, float price) {
-        try {
-            client.notifySale(productName, price);
-            System.out.println(customerName + " notified of sale of " 
-                    + productName);
-        } catch (RemoteException ex) {
-            System.out.println("Problem notifying client of sale");
-        }
-    }
-    
-    public List<Item> getAvailableSales() {
-        return availableSales;
-    }
-    
-    public String getCustomerName() {
-        return customerName;
-    }
-
-    public void setClient(MarketplaceClient client) {
-        this.client = client;
-    }
-    
-    public void setAvailableSales(List<Item> availableSales) {
-        this.availableSales = availableSales;
-    }
-}
+package marketplace.server;
+
+import se.kth.id2212.bankjdbc.Account;
+import se.kth.id2212.bankjdbc.RejectedException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import marketplace.shared.DuplicateItemException;
+import marketplace.shared.Item;
+import marketplace.shared.MarketplaceAccount;
+import marketplace.shared.MarketplaceClient;
+import marketplace.shared.NoSuchItemException;
+import marketplace.shared.PurchaseReceipt;
+import marketplace.shared.RegisterCustomerException;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+public class MarketplaceAccountImpl extends UnicastRemoteObject implements MarketplaceAccount{
+    private static final Log LOG = Log.get(MarketplaceAccountImpl.class);
+    private static final String METRICS_TYPE = "MarketplaceAccount";
+    private static final OperationMetrics DEPOSIT = Metrics.operation(METRICS_TYPE, "deposit");
+    private static final OperationMetrics WITHDRAW = Metrics.operation(METRICS_TYPE, "withdraw");
+    private static final OperationMetrics ADD_PRODUCT = Metrics.operation(METRICS_TYPE, "addProduct");
+    private static final OperationMetrics BUY_ITEM = Metrics.operation(METRICS_TYPE, "buyProduct(Item)");
+    private static final OperationMetrics BUY_BY_NAME = Metrics.operation(METRICS_TYPE, "buyProduct(String, float)");
+    private static final OperationMetrics BUY_BY_ID = Metrics.operation(METRICS_TYPE, "buyProduct(int)");
+    private static final OperationMetrics ADD_WISH = Metrics.operation(METRICS_TYPE, "addWish");
+    //Time spent waiting for the monitor of an account
+    private static final OperationMetrics LOCK_WAIT = Metrics.operation(METRICS_TYPE, "lockWait");
+    private String customerName;
+    private String password;
+    private int sold;
+    private int bought;
+    private String bankAccountName;
+    private volatile Account bankAccount;
+    private volatile MarketplaceClient client;   //to make callbacks
+    private MarketplaceImpl marketplace;
+    private List<Item> availableSales;
+    
+    public MarketplaceAccountImpl(MarketplaceClient client, String customerName, String bankAccountName, 
+            MarketplaceImpl marketplace) throws RemoteException, RegisterCustomerException {
+        this(client, customerName, bankAccountName, null, marketplace);
+    }
+
+    /**
+     * @param bankAccount the stub of the bank account if the marketplace
+     * still has it from an earlier login, or null to ask the bank for it
+     */
+    public MarketplaceAccountImpl(MarketplaceClient client, String customerName,
+            String bankAccountName, Account bankAccount,
+            MarketplaceImpl marketplace) throws RemoteException, RegisterCustomerException {
+        this.customerName = customerName;
+        this.client = client;
+        this.bankAccountName = bankAccountName;
+        this.marketplace = marketplace;
+        if (bankAccount != null) {
+            this.bankAccount = bankAccount;
+        } else {
+            setBankAccount(bankAccountName);
+        }
+        LOG.debug("MarketplaceAccount succesfully created for {}", customerName);
+//        try {
+//            deposit(1);
+//        } catch (RejectedException ex) {
+//            System.out.println("Deposit rejected");
+//        }
+//        System.out.println("Welcome to Marketplace, here's a complimentary dollar");
+        availableSales = Collections.synchronizedList(new ArrayList<Item>());
+    }
+    
+    private void setBankAccount(String bankAccountName) throws RegisterCustomerException {
+    //Make RMI to bank account possible
+        try {
+            bankAccount = marketplace.getBankClient().getAccount(bankAccountName);
+            LOG.debug("Bank Account: {}", bankAccount);
+        } catch (Exception e) {
+            LOG.warn("Failed creating a serverside representation"
+                    + " of bank account in marketplace account: {}",
+                    e.getMessage());
+            throw new RegisterCustomerException("Failed creating a serverside representation"
+                    + " of bank account in constructor of marketplace account: " + e.getMessage()); 
+        }  
+    }
+
+    /**
+     * Gets the bank account again after the bank has evicted it from its
+     * cache, which makes calls on the old stub fail before they are executed.
+     */
+    private Account reloadBankAccount() throws RemoteException, RejectedException {
+        bankAccount = marketplace.getBankClient().getAccount(bankAccountName);
+        if (bankAccount == null) {
+            throw new RejectedException("No bank account " + bankAccountName);
+        }
+        return bankAccount;
+    }
+
+    @Override
+    public void deposit(float value) throws RemoteException, RejectedException {
+        long start = DEPOSIT.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                try {
+                    bankAccount.deposit(value);
+                } catch (NoSuchObjectException ex) {
+                    reloadBankAccount().deposit(value);
+                }
+            }
+            error = false;
+        } finally {
+            DEPOSIT.finish(start, error);
+        }
+    }
+
+    @Override
+    public void withdraw(float value) throws RemoteException, RejectedException {
+        long start = WITHDRAW.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                try {
+                    bankAccount.withdraw(value);
+                } catch (NoSuchObjectException ex) {
+                    reloadBankAccount().withdraw(value);
+                }
+            }
+            error = false;
+        } finally {
+            WITHDRAW.finish(start, error);
+        }
+    }
+
+    @Override
+    public void addProduct(String productName, float price) 
+            throws RemoteException, DuplicateItemException {
+        long start = ADD_PRODUCT.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                Item product = (Item) new ItemImpl(productName, price, customerName);
+                if (marketplace.containsItem(product)) {
+                    throw new RemoteException("Item already exists! Change price or name");
+                }
+                marketplace.addProduct(product);
+                LOG.debug("{} added.", productName);
+            }
+            error = false;
+        } finally {
+            ADD_PRODUCT.finish(start, error);
+        }
+    }
+
+    @Override
+    public void buyProduct(Item product) throws RemoteException {
+        long start = BUY_ITEM.start();
+        boolean error = true;
+        try {
+            try {
+                if (product.getId() != 0) {
+                    buyProduct(product.getId());
+                } else {
+                    buyProduct(product.getName(), product.getPrice());
+                }
+            } catch (NoSuchItemException ex) {
+                LOG.debug("{}", ex.getMessage());
+            } catch (RejectedException ex) {
+                LOG.debug("Bank rejected payment for purchase by {}", customerName);
+            }
+            error = false;
+        } finally {
+            BUY_ITEM.finish(start, error);
+        }
+    }
+
+    /**
+     * The marketplace has the bank transfer the price from the buyer's to the
+     * seller's bank account as part of the sale, so nothing is withdrawn here.
+     */
+    @Override
+    public PurchaseReceipt buyProduct(String productName,
+            float price) throws RemoteException, RejectedException,
+            NoSuchItemException {
+        long start = BUY_BY_NAME.start();
+        boolean error = true;
+        try {
+            Item product = marketplace.findItem(productName, price);
+            if (product == null) {
+                throw new NoSuchItemException("No item " + productName
+                        + " for sale at $" + price);
+            }
+            PurchaseReceipt receipt = buy(product);
+            error = false;
+            return receipt;
+        } finally {
+            BUY_BY_NAME.finish(start, error);
+        }
+    }
+
+    @Override
+    public PurchaseReceipt buyProduct(int itemId) throws RemoteException,
+            RejectedException, NoSuchItemException {
+        long start = BUY_BY_ID.start();
+        boolean error = true;
+        try {
+            Item product = marketplace.findItem(itemId);
+            if (product == null) {
+                throw new NoSuchItemException("No item with id " + itemId
+                        + " for sale");
+            }
+            PurchaseReceipt receipt = buy(product);
+            error = false;
+            return receipt;
+        } finally {
+            BUY_BY_ID.finish(start, error);
+        }
+    }
+
+    private PurchaseReceipt buy(Item product) throws RemoteException,
+            RejectedException, NoSuchItemException {
+        if (!marketplace.buyProduct(product, customerName)) {
+            //Someone else bought it after we looked it up
+            throw new NoSuchItemException("No item " + product.getName()
+                    + " for sale at $" + product.getPrice());
+        }
+        LOG.debug("Product {} sold to {}", product.getName(), customerName);
+        return new PurchaseReceipt(product.getName(), product.getPrice(),
+                product.getSellerName(), customerName,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public void addWish(String itemName, float maxPrice) throws RemoteException {
+        long start = ADD_WISH.start();
+        boolean error = true;
+        try {
+            marketplace.addWish(itemName, maxPrice, customerName);
+            error = false;
+        } finally {
+            ADD_WISH.finish(start, error);
+        }
+    }
+
+
+    /**
+     * Queues the callback to the client, it is made in the background by the
+     * marketplace's NotificationDispatcher.
+     */
+    public void notifyWishAvailable(String itemName, float price) {
+        marketplace.getNotifications().notifyWishAvailable(client, itemName, price);
+    }
+    
+    /**
+     * Queues the callback to the client, it is made in the background by the
+     * marketplace's NotificationDispatcher.
+     */
+    public void notifySale(String productName, float price) {
+        marketplace.getNotifications().notifySale(client, productName, price);
+    }
+    
+    public List<Item> getAvailableSales() {
+        return availableSales;
+    }
+    
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public String getBankAccountName() {
+        return bankAccountName;
+    }
+
+    public Account getBankAccount() {
+        return bankAccount;
+    }
+
+    public MarketplaceClient getClient() {
+        return client;
+    }
+
+    public void setClient(MarketplaceClient client) {
+        this.client = client;
+    }
+    
+    public void setAvailableSales(List<Item> availableSales) {
+        this.availableSales = availableSales;
+    }
+}
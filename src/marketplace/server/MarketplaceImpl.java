@@ -1,451 +1,896 @@
-package marketplace.server;
-
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import marketplace.shared.BadCredentialsException;
-import marketplace.shared.DuplicateItemException;
-import marketplace.shared.Marketplace;
-import marketplace.shared.MarketplaceAccount;
-import marketplace.shared.Item;
-import marketplace.shared.MarketplaceClient;
-import marketplace.shared.RegisterCustomerException;
-import se.kth.id2212.bankjdbc.RejectedException;
-
-public class MarketplaceImpl extends UnicastRemoteObject implements Marketplace {
-
-    public static final String USER_TABLE_NAME = "USERDATA";
-    public static final String ITEM_TABLE_NAME = "ITEM";
-    public static final String WISH_TABLE_NAME = "WISH";
-    private PreparedStatement createAccountStatement;
-    private PreparedStatement getCredentialsStatement;
-    private PreparedStatement deleteAccountStatement;
-    private PreparedStatement makeWishStatement;
-    private PreparedStatement addItemStatement;
-    private PreparedStatement getItemStatement;
-    private PreparedStatement removeItemStatement;
-    private PreparedStatement removeSoldItemStatement;
-    private PreparedStatement getWishStatement;
-    private PreparedStatement removeUsersWishesStatement;
-    private PreparedStatement removeWishStatement;
-    private PreparedStatement getAccountNameStatement;
-    private PreparedStatement getBankAccountNameStatement;
-    private PreparedStatement incrementSoldStatement;
-    private PreparedStatement incrementBoughtStatement;
-    private PreparedStatement getAllItemsStatement;
-    private PreparedStatement getAllWishesStatement;
-    Map<String, MarketplaceAccount> accounts;
-    List<Wish> wishes;
-    List<Item> items;
-
-    public MarketplaceImpl() throws RemoteException {
-        Connection connection;
-        try {
-            connection = createDatasource();
-            prepareStatements(connection);
-        } catch (ClassNotFoundException ex) {
-            System.out.println("Problem with datasource");
-            ex.printStackTrace();
-        } catch (SQLException ex) {
-            System.out.println("Problem connecting to database");
-            ex.printStackTrace();
-        }
-        
-        accounts = new HashMap();
-        wishes = new LinkedList();
-        items = new LinkedList();
-        
-        try {
-            String itemName;
-            float price;
-            String user;
-            //We need to get all data from database and add it to our in-memory cache
-            ResultSet itemsResult = getAllItemsStatement.executeQuery();
-            ResultSet wishResult = getAllWishesStatement.executeQuery();
-            while (itemsResult.next()) {
-                itemName = itemsResult.getString("itemname");
-                price = itemsResult.getFloat("price");
-                user = itemsResult.getString("seller");
-                items.add((Item) new ItemImpl(itemName, price, user));
-            } 
-            Collections.sort(items);
-            while (wishResult.next()) {
-                itemName = wishResult.getString("itemname");
-                price = wishResult.getFloat("price");
-                user = wishResult.getString("wisher");
-                wishes.add(new Wish(itemName, price, user));
-            } 
-        } catch (SQLException ex) {
-            System.out.println("Problem retrieving items and/or wishes from "
-                    + "database.");
-            ex.printStackTrace();
-        }
-    }
-
-    private Connection createDatasource() throws ClassNotFoundException, SQLException {
-        Connection connection = getConnection();
-        boolean exist = false;
-        //getTables is in SDK library, that the table names are held in column 3
-        //is specified in the documentation
-        int tableNameColumn = 3;
-        DatabaseMetaData dbm = connection.getMetaData();
-        //Trying to find the table named as USER_TABLE_NAME
-        for (ResultSet rs = dbm.getTables(null, null, null, null); rs.next();) {
-            if (rs.getString(tableNameColumn).equals(USER_TABLE_NAME)) {
-                System.out.println("Table already exists in database, no need to"
-                        + " create new.");
-                exist = true;
-                rs.close();
-                break;
-            }
-        }
-        if (!exist) {
-            System.out.println("Didn't find tables in database, creating them...");
-            //If the user-table doesn't exist, create all tables (user, item and
-            //wish).
-            Statement statement1 = connection.createStatement();
-            statement1.executeUpdate("CREATE TABLE " + USER_TABLE_NAME
-                    + " (username VARCHAR(32) PRIMARY KEY, password VARCHAR(32),"
-                    + " bankaccount VARCHAR(32), bought INTEGER, sold INTEGER)");
-            Statement statement2 = connection.createStatement();
-            statement2.executeUpdate("CREATE TABLE " + ITEM_TABLE_NAME
-                    + "(itemid INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY "
-                    + "(START WITH 1, INCREMENT BY 1) PRIMARY KEY, "
-                    + "itemname VARCHAR(32), price FLOAT, "
-                    + "seller VARCHAR(32), "
-                    + "FOREIGN KEY (seller) REFERENCES " + USER_TABLE_NAME
-                    + " (username))");
-            Statement statement3 = connection.createStatement();
-            statement3.executeUpdate("CREATE TABLE " + WISH_TABLE_NAME
-                    + "(wishid INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY "
-                    + "(START WITH 1, INCREMENT BY 1) PRIMARY KEY, "
-                    + "itemname VARCHAR(32), price FLOAT, "
-                    + "wisher VARCHAR(32), "
-                    + "FOREIGN KEY (wisher) REFERENCES " + USER_TABLE_NAME
-                    + " (username))");
-        }
-        return connection;
-    }
-
-    private Connection getConnection()
-            throws ClassNotFoundException, SQLException {
-        if (MarketplaceServer.DBMS.equalsIgnoreCase("access")) {
-            Class.forName("sun.jdbc.odbc.JdbcOdbcDriver");
-            return DriverManager.getConnection("jdbc:odbc:"
-                    + MarketplaceServer.DATASOURCE);
-        } else if (MarketplaceServer.DBMS.equalsIgnoreCase("cloudscape")) {
-            Class.forName("COM.cloudscape.core.RmiJdbcDriver");
-            return DriverManager.getConnection(
-                    "jdbc:cloudscape:rmi://localhost:1099/"
-                    + MarketplaceServer.DATASOURCE
-                    + ";create=true;");
-        } else if (MarketplaceServer.DBMS.equalsIgnoreCase("pointbase")) {
-            Class.forName("com.pointbase.jdbc.jdbcUniversalDriver");
-            return DriverManager.getConnection(
-                    "jdbc:pointbase:server://localhost:9092/"
-                    + MarketplaceServer.DATASOURCE
-                    + ",new", "PBPUBLIC", "PBPUBLIC");
-        } else if (MarketplaceServer.DBMS.equalsIgnoreCase("derby")) {
-            Class.forName("org.apache.derby.jdbc.ClientXADataSource");
-            return DriverManager.getConnection(
-                    "jdbc:derby://localhost:1527/"
-                    + MarketplaceServer.DATASOURCE + ";create=true");
-        } else if (MarketplaceServer.DBMS.equalsIgnoreCase("mysql")) {
-            Class.forName("com.mysql.jdbc.Driver");
-            return DriverManager.getConnection(
-                    "jdbc:mysql://localhost:3306/"
-                    + MarketplaceServer.DATASOURCE, "root", "javajava");
-        } else {
-            return null;
-        }
-    }
-
-    private void prepareStatements(Connection connection) throws SQLException {
-        createAccountStatement = connection.prepareStatement("INSERT INTO "
-                + USER_TABLE_NAME + " VALUES (?, ?, ?, 0, 0)");
-        getAccountNameStatement = connection.prepareStatement("SELECT username "
-                + "FROM " + USER_TABLE_NAME + " WHERE username = ?");
-        getBankAccountNameStatement = connection.prepareStatement("SELECT bankaccount "
-                + "FROM " + USER_TABLE_NAME + " WHERE username = ?");
-        getCredentialsStatement = connection.prepareStatement("SELECT password "
-                + "from "
-                + USER_TABLE_NAME + " WHERE username = ?");
-        deleteAccountStatement = connection.prepareStatement("DELETE FROM "
-                + USER_TABLE_NAME + " WHERE username = ?");
-        removeItemStatement = connection.prepareStatement("DELETE FROM "
-                + ITEM_TABLE_NAME + " WHERE seller = ?");
-        removeSoldItemStatement = connection.prepareStatement("DELETE FROM "
-                + ITEM_TABLE_NAME + " WHERE itemname = ? AND price = ?");
-        removeUsersWishesStatement = connection.prepareStatement("DELETE FROM "
-                + WISH_TABLE_NAME + " WHERE wisher = ?");
-        removeWishStatement = connection.prepareStatement("DELETE FROM "
-                + WISH_TABLE_NAME + " WHERE itemname = ? AND price = ? "
-                + "AND wisher = ?");
-        addItemStatement = connection.prepareStatement("INSERT INTO "
-                + ITEM_TABLE_NAME + " (itemname, price, seller) VALUES (?, ?, ?)");
-        getItemStatement = connection.prepareStatement("SELECT COUNT(1) FROM "
-                + ITEM_TABLE_NAME + " WHERE itemname = ? AND price = ?");
-        makeWishStatement = connection.prepareStatement("INSERT INTO "
-                + WISH_TABLE_NAME + " (itemname, price, wisher) VALUES (?, ?, ?)");
-        incrementSoldStatement = connection.prepareStatement("UPDATE " 
-                + USER_TABLE_NAME + " SET sold = sold + 1 WHERE username = ?");
-        incrementBoughtStatement = connection.prepareStatement("UPDATE " 
-                + USER_TABLE_NAME + " SET bought = bought + 1 WHERE username = ?");
-        getAllItemsStatement = connection.prepareStatement("SELECT * FROM " +
-                ITEM_TABLE_NAME);
-        getAllWishesStatement = connection.prepareStatement("SELECT * FROM " +
-                WISH_TABLE_NAME);       
-    }
-
-//    private boolean accountsContains(String userName) {
-//        boolean contains = false;
-//        for (MarketplaceAccount account : accounts) {
-//            if (((MarketplaceAccountImpl)account).getCustomerName().equals(userName)) {
-//                return true;
-//            }
-//        }
-//        return contains;
-//    }
-//    
-//    private MarketplaceAccount getAccount(String userName) {
-//        for(MarketplaceAccount account : accounts){
-//            if(((MarketplaceAccountImpl)account).getCustomerName().equals(userName)){
-//                return account;
-//            }   
-//        }
-//        return null;
-//    }
-    
-    @Override
-    public MarketplaceAccount registerCustomer(MarketplaceClient client,
-            String password, String bankAccountName)
-            throws RemoteException, RegisterCustomerException {
-        try {
-            String customerName = client.getName();
-            if (!accounts.containsKey(customerName)) {
-                MarketplaceAccount account = (MarketplaceAccount) new MarketplaceAccountImpl(client, customerName, bankAccountName, this);
-                ResultSet result = null;
-                getAccountNameStatement.setString(1, customerName);
-                result = getAccountNameStatement.executeQuery();
-                accounts.put(customerName, account);
-                if (result.next()) {
-                    throw new RegisterCustomerException("Account already exists");
-                } else {
-                    createAccountStatement.setString(1, customerName);
-                    createAccountStatement.setString(2, password);
-                    createAccountStatement.setString(3, bankAccountName);
-                    createAccountStatement.executeUpdate();
-                    System.out.println("New account registered: " + customerName);
-                }
-
-                return account;
-            } else {
-                System.out.println("Client tried to create account with already"
-                        + " existing name.");
-                throw new RegisterCustomerException("Not a unique customer name!");
-            }
-        } catch (Exception e) {
-            System.out.println(e);
-            throw new RegisterCustomerException("Something went wrong with"
-                    + " registration.");
-        }
-    }
-
-    @Override
-    public boolean unregisterCustomer(String customerName) throws RemoteException {
-        MarketplaceAccountImpl account = (MarketplaceAccountImpl) accounts.get(customerName);
-        List<Item> customerSales = account.getAvailableSales();
-        try {
-            deleteAccountStatement.setString(1, customerName);
-            deleteAccountStatement.executeUpdate();
-            removeItemStatement.setString(1, customerName);
-            removeItemStatement.executeUpdate();
-            removeUsersWishesStatement.setString(1, customerName);
-            removeUsersWishesStatement.executeUpdate();
-            for (Item item : customerSales) {
-                if (item.getSellerName().equals(customerName)) {
-                    items.remove(item);
-                }
-            }
-            for (Wish wish : wishes) {
-                if (wish.getWisherName().equals(customerName)) {
-                    wishes.remove(wish);
-                }
-            }
-        } catch (SQLException ex) {
-            System.out.println("Problem deleting from database");
-            ex.printStackTrace();
-        }
-        accounts.remove(customerName);
-        System.out.println("Account removed: " + customerName);
-        return true;
-    }
-
-    @Override
-    public synchronized List<Item> listItems() throws RemoteException {
-        return items;
-    }
-
-    public synchronized void addProduct(Item product) throws DuplicateItemException {
-        try {
-            if (!items.contains(product)) {
-                addItemStatement.setString(1, product.getName());
-                addItemStatement.setFloat(2, product.getPrice());
-                addItemStatement.setString(3, product.getSellerName());
-                addItemStatement.executeUpdate();
-                items.add(product);
-                MarketplaceAccountImpl account = (MarketplaceAccountImpl) accounts.get(product.getSellerName());
-                //TEST!!!!!!!!!!!!!!!!!!!!!!!1
-                System.out.println("Account object: " + account);
-                //TEST!!!!!!!!!!!!!!!!!!!!!!!
-                account.getAvailableSales().add(product);
-                Collections.sort(items);
-                for (Wish wish : wishes) {
-                    if (wish.getItemName().equals(product.getName())
-                            && wish.getPrice() == product.getPrice()) {
-                        notifyWish(wish);
-                    }
-                }
-                System.out.println("Product added: " + product.getName());
-            } else {
-                System.out.println("Can't add duplicate items to sales!");
-                throw new DuplicateItemException("Tried to add item that already"
-                        + " exists");
-            }
-        } catch (SQLException ex) {
-            System.out.println("Problem adding product to database.");
-            ex.printStackTrace();
-        }
-    }
-
-    public synchronized void buyProduct(Item product, String buyer) {
-        if (items.contains(product)) {
-            try {
-                //Check if the item even exists in database
-                
-                removeSoldItemStatement.setString(1, product.getName());
-                removeSoldItemStatement.setFloat(2, product.getPrice());
-                removeSoldItemStatement.executeUpdate();
-                //If this product is wished by the buyer we remove it from the
-                //database
-                removeWishStatement.setString(1, product.getName());
-                removeWishStatement.setFloat(2, product.getPrice());
-                removeWishStatement.setString(3, buyer);
-                removeWishStatement.executeUpdate();
-                //Increment the bought and sold counters
-                incrementSoldStatement.setString(1, product.getSellerName());
-                incrementSoldStatement.executeUpdate();
-                incrementBoughtStatement.setString(1, buyer);
-                incrementBoughtStatement.executeUpdate();
-                
-                MarketplaceAccountImpl seller = (MarketplaceAccountImpl) accounts.get(product.getSellerName());
-                //TEST!!!!!!!!!!!!!!!!!!!!
-                System.out.println("product.getSellerName: " + product.getSellerName());
-                System.out.println("Account object: " + seller);
-                //TEST!!!!!!!!!!!!!!!!!!!!
-                seller.deposit(product.getPrice());
-                items.remove(product);
-                seller.getAvailableSales().remove(product);
-                seller.notifySale(product.getName(), product.getPrice());
-            } catch (RemoteException ex) {
-                System.out.println("Problem contacting bank when depositing");
-            } catch (RejectedException ex) {
-                System.out.println("Problem depositing to bank account of seller");
-            } catch (SQLException ex) {
-                System.out.println("Problem removing product from database");
-                ex.printStackTrace();
-            }
-        }
-    }
-
-    public synchronized void addWish(String itemName, float price, String wisherName) {
-        try {
-            makeWishStatement.setString(1, itemName);
-            makeWishStatement.setFloat(2, price);
-            makeWishStatement.setString(3, wisherName);
-            makeWishStatement.executeUpdate();
-            Wish wish = new Wish(itemName, price, wisherName);
-            wishes.add(wish);
-            //Check if wished item already exists, in that case notify
-            if (items.contains(new ItemImpl(itemName, price, null))) {
-                notifyWish(wish);
-            }
-        } catch (SQLException ex) {
-            System.out.println("Problem adding wish to database");
-            ex.printStackTrace();
-        }
-
-    }
-
-    public synchronized void notifyWish(Wish wish) {
-        String wisherName = wish.getWisherName();
-        MarketplaceAccountImpl wisherAccount = (MarketplaceAccountImpl) accounts.get(wisherName);
-        wisherAccount.notifyWishAvailable(wish.getItemName(), wish.getPrice());
-    }
-
-    public List<Wish> getWishes() {
-        return wishes;
-    }
-
-    @Override
-    public MarketplaceAccount login(MarketplaceClient client, String name, String password) throws RemoteException,
-            BadCredentialsException {
-        MarketplaceAccount account = null;
-        ResultSet passwordResult = null;
-        ResultSet bankNameResult = null;
-        try {
-            getCredentialsStatement.setString(1, name);
-            passwordResult = getCredentialsStatement.executeQuery();
-            String correctPassword = "";
-            if (passwordResult.next()) {
-                correctPassword = passwordResult.getString("password");
-            }
-            getBankAccountNameStatement.setString(1, name);
-            bankNameResult = getBankAccountNameStatement.executeQuery();
-            String bankAccountName = "";
-            if (bankNameResult.next()) {
-                bankAccountName = bankNameResult.getString("bankaccount");
-            }
-            System.out.println("Password: " + correctPassword);
-            System.out.println("Bank account name: " + bankAccountName);
-            if (correctPassword.equals(password)) {
-                try {
-                    account = (MarketplaceAccount) new MarketplaceAccountImpl(client,
-                            name, bankAccountName, this);
-                    accounts.put(name, account);
-                } catch (RegisterCustomerException ex) {
-                    throw new BadCredentialsException("Problem creating account"
-                            + " object at marketplace");
-                }
-            } else {
-                throw new BadCredentialsException("Wrong user name and/or "
-                        + "password.");
-            }
-            passwordResult.close();
-            bankNameResult.close();
-        } catch (SQLException e) {
-            System.out.println("Problem getting user credentials from database");
-            e.printStackTrace();
-        }
-        System.out.println(name + " logged in.");
-        System.out.println("Account object: " + account);
-        return account;
-    }
-
-    @Override
-    public void logout(String name) throws RemoteException {
-        accounts.remove(name);
-        System.out.println(name + " logged out.");
-    }
-}
+package marketplace.server;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import marketplace.shared.BadCredentialsException;
+import marketplace.shared.CatalogChanges;
+import marketplace.shared.DuplicateItemException;
+import marketplace.shared.Marketplace;
+import marketplace.shared.MarketplaceAccount;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.MarketplaceClient;
+import marketplace.shared.RegisterCustomerException;
+import se.kth.id2212.bankjdbc.Bank;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.bankjdbc.PooledConnection;
+import se.kth.id2212.bankjdbc.RejectedException;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+public class MarketplaceImpl extends UnicastRemoteObject implements Marketplace {
+
+    private static final Log LOG = Log.get(MarketplaceImpl.class);
+
+    public static final String USER_TABLE_NAME = "USERDATA";
+    public static final String ITEM_TABLE_NAME = "ITEM";
+    public static final String WISH_TABLE_NAME = "WISH";
+    public static final String SCHEMA_VERSION_TABLE_NAME = "SCHEMA_VERSION";
+    //Applied in order by migrateSchema, each one exactly once per database.
+    //Only ever append to this list. ITEM.seller and WISH.wisher need no
+    //index of their own, Derby backs every FOREIGN KEY with one.
+    private static final String[] MIGRATIONS = {
+        "CREATE INDEX ITEM_NAME_PRICE ON " + ITEM_TABLE_NAME + " (itemname, price)",
+        "CREATE INDEX ITEM_PRICE ON " + ITEM_TABLE_NAME + " (price)"
+    };
+    private static final String CREATE_ACCOUNT = "INSERT INTO "
+            + USER_TABLE_NAME + " VALUES (?, ?, ?, 0, 0)";
+    private static final String GET_ACCOUNT_NAME = "SELECT username "
+            + "FROM " + USER_TABLE_NAME + " WHERE username = ?";
+    private static final String DELETE_ACCOUNT = "DELETE FROM "
+            + USER_TABLE_NAME + " WHERE username = ?";
+    private static final String REMOVE_ITEM = "DELETE FROM "
+            + ITEM_TABLE_NAME + " WHERE seller = ?";
+    private static final String REMOVE_SOLD_ITEM = "DELETE FROM "
+            + ITEM_TABLE_NAME + " WHERE itemid = ?";
+    private static final String REMOVE_USERS_WISHES = "DELETE FROM "
+            + WISH_TABLE_NAME + " WHERE wisher = ?";
+    private static final String REMOVE_WISH = "DELETE FROM "
+            + WISH_TABLE_NAME + " WHERE itemname = ? AND price >= ? "
+            + "AND wisher = ?";
+    private static final String ADD_ITEM = "INSERT INTO "
+            + ITEM_TABLE_NAME + " (itemname, price, seller) VALUES (?, ?, ?)";
+    private static final String MAKE_WISH = "INSERT INTO "
+            + WISH_TABLE_NAME + " (itemname, price, wisher) VALUES (?, ?, ?)";
+    //Increments the seller's sold and the buyer's bought counter in one
+    //statement, which also works when they are the same user
+    private static final String INCREMENT_COUNTERS = "UPDATE "
+            + USER_TABLE_NAME + " SET "
+            + "sold = sold + CASE WHEN username = ? THEN 1 ELSE 0 END, "
+            + "bought = bought + CASE WHEN username = ? THEN 1 ELSE 0 END "
+            + "WHERE username IN (?, ?)";
+    //How long listItems() waits for the catalog to load during warm up
+    private static final long LIST_WAIT_MILLIS = 10 * 1000;
+    private static final String METRICS_TYPE = "Marketplace";
+    private static final OperationMetrics REGISTER_CUSTOMER = Metrics.operation(METRICS_TYPE, "registerCustomer");
+    private static final OperationMetrics UNREGISTER_CUSTOMER = Metrics.operation(METRICS_TYPE, "unregisterCustomer");
+    private static final OperationMetrics LIST_ITEMS = Metrics.operation(METRICS_TYPE, "listItems");
+    private static final OperationMetrics LIST_ITEMS_PAGE = Metrics.operation(METRICS_TYPE, "listItems(ItemQuery)");
+    private static final OperationMetrics SEARCH = Metrics.operation(METRICS_TYPE, "search");
+    private static final OperationMetrics CHANGES_SINCE = Metrics.operation(METRICS_TYPE, "changesSince");
+    private static final OperationMetrics LOGIN = Metrics.operation(METRICS_TYPE, "login");
+    private static final OperationMetrics LOGOUT = Metrics.operation(METRICS_TYPE, "logout");
+    //The parts of a purchase: the call to the bank and the database transaction
+    private static final OperationMetrics BANK_TRANSFER = Metrics.operation(METRICS_TYPE, "bank.transfer");
+    private static final OperationMetrics RECORD_SALE = Metrics.operation(METRICS_TYPE, "recordSale");
+    private ConnectionPool pool;
+    private final BankClient bankClient;
+    private final ItemLocks itemLocks = new ItemLocks();
+    private final UserProfileCache profiles;
+    final SessionManager sessions;
+    WishIndex wishes;
+    VersionedCatalog catalog;
+    private SearchableCatalog searchable;
+    NotificationDispatcher notifications;
+    private CatalogLoader loader;
+    //null unless the catalog is kept on disk
+    private CatalogSnapshot snapshot;
+
+    public MarketplaceImpl() throws RemoteException {
+        this(new MarketplaceOptions());
+    }
+
+    /**
+     * Connects to the database of the options, creating it if it does not
+     * exist. Unless the options say to serve during warm up, the constructor
+     * returns once the catalog is loaded.
+     */
+    public MarketplaceImpl(MarketplaceOptions options) throws RemoteException {
+        this(createPool(options), options);
+    }
+
+    /**
+     * @param pool the connections to the marketplace database, which is
+     * created if it does not exist; the datasource and dbms of the options
+     * are not used
+     */
+    public MarketplaceImpl(ConnectionPool pool, MarketplaceOptions options)
+            throws RemoteException {
+        this.pool = pool;
+        this.bankClient = new BankClient(BankClient.DEFAULT_HOST,
+                options.getBankName());
+        profiles = new UserProfileCache(pool);
+        try {
+            createDatasource();
+        } catch (SQLException ex) {
+            LOG.error("Problem connecting to database", ex);
+        }
+        
+        sessions = new SessionManager();
+        wishes = new WishIndex();
+        CatalogStore store;
+        switch (options.getStorage()) {
+            case OFF_HEAP:
+                store = new OffHeapCatalogStore();
+                break;
+            default:
+                store = new ItemCatalog();
+        }
+        searchable = new SearchableCatalog(store);
+        catalog = new VersionedCatalog(searchable);
+        notifications = new NotificationDispatcher();
+        
+        //We need to get all data from database and add it to our in-memory cache
+        loader = new CatalogLoader(pool, catalog, wishes, itemLocks);
+        if (options.getSnapshotDirectory() != null) {
+            snapshot = new CatalogSnapshot(options.getSnapshotDirectory(),
+                    catalog, wishes);
+            try {
+                if (snapshot.restore()) {
+                    LOG.info("Catalog restored from snapshot: {} items and {} wishes",
+                            catalog.size(), wishes.size());
+                    loader.markLoaded();
+                }
+            } catch (IOException ex) {
+                LOG.error("Problem restoring catalog snapshot", ex);
+                snapshot = null;
+            }
+        }
+        if (!loader.isReady()) {
+            loader.start();
+        }
+        if (snapshot != null) {
+            snapshot.startSnapshots(MarketplaceServer.SNAPSHOT_INTERVAL_MILLIS,
+                    loader);
+        }
+        Metrics.registerStats("ConnectionPool", METRICS_TYPE, pool);
+        Metrics.registerStats("NotificationDispatcher", METRICS_TYPE, notifications);
+        Metrics.registerStats("CatalogLoader", METRICS_TYPE, loader);
+        Metrics.registerStats("UserProfileCache", METRICS_TYPE, profiles);
+        Metrics.registerStats("BankClient", METRICS_TYPE, bankClient);
+        Metrics.registerStats("SessionManager", METRICS_TYPE, sessions);
+        Metrics.registerStats(store.getClass().getSimpleName(), METRICS_TYPE,
+                store);
+        Metrics.registerStats("SearchIndex", METRICS_TYPE, searchable.getIndex());
+        Metrics.registerStats("CatalogChangeLog", METRICS_TYPE, catalog.getLog());
+        if (!options.isServeDuringWarmUp()) {
+            try {
+                loader.awaitReady();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted loading the catalog", ex);
+            }
+        }
+    }
+
+    private static ConnectionPool createPool(MarketplaceOptions options) {
+        try {
+            return new ConnectionPool(options.getDatasource(),
+                    options.getDbms(), MarketplaceServer.CONNECTION_POOL_SIZE,
+                    ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+        } catch (ClassNotFoundException ex) {
+            LOG.error("Problem with datasource", ex);
+            return null;
+        }
+    }
+
+    private void createDatasource() throws SQLException {
+        try (PooledConnection pooled = pool.acquire()) {
+            createTables(pooled.getConnection());
+            migrateSchema(pooled.getConnection());
+        }
+    }
+
+    /**
+     * Brings the schema up to date by applying the MIGRATIONS that have not
+     * been applied yet. The number applied so far is kept in the
+     * SCHEMA_VERSION table, and each migration is committed together with the
+     * new version number.
+     */
+    private void migrateSchema(Connection connection) throws SQLException {
+        int version = 0;
+        DatabaseMetaData dbm = connection.getMetaData();
+        ResultSet tables = dbm.getTables(null, null, SCHEMA_VERSION_TABLE_NAME, null);
+        boolean exists = tables.next();
+        tables.close();
+        Statement statement = connection.createStatement();
+        if (!exists) {
+            statement.executeUpdate("CREATE TABLE " + SCHEMA_VERSION_TABLE_NAME
+                    + " (version INTEGER)");
+            statement.executeUpdate("INSERT INTO " + SCHEMA_VERSION_TABLE_NAME
+                    + " VALUES (0)");
+        } else {
+            ResultSet result = statement.executeQuery("SELECT version FROM "
+                    + SCHEMA_VERSION_TABLE_NAME);
+            if (result.next()) {
+                version = result.getInt("version");
+            }
+            result.close();
+        }
+        connection.setAutoCommit(false);
+        try {
+            for (; version < MIGRATIONS.length; version++) {
+                LOG.info("Applying schema migration {}: {}", version + 1,
+                        MIGRATIONS[version]);
+                statement.executeUpdate(MIGRATIONS[version]);
+                statement.executeUpdate("UPDATE " + SCHEMA_VERSION_TABLE_NAME
+                        + " SET version = " + (version + 1));
+                connection.commit();
+            }
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+            statement.close();
+        }
+    }
+
+    private void createTables(Connection connection) throws SQLException {
+        boolean exist = false;
+        //getTables is in SDK library, that the table names are held in column 3
+        //is specified in the documentation
+        int tableNameColumn = 3;
+        DatabaseMetaData dbm = connection.getMetaData();
+        //Trying to find the table named as USER_TABLE_NAME
+        for (ResultSet rs = dbm.getTables(null, null, null, null); rs.next();) {
+            if (rs.getString(tableNameColumn).equals(USER_TABLE_NAME)) {
+                LOG.info("Table already exists in database, no need to"
+                        + " create new.");
+                exist = true;
+                rs.close();
+                break;
+            }
+        }
+        if (!exist) {
+            LOG.info("Didn't find tables in database, creating them...");
+            //If the user-table doesn't exist, create all tables (user, item and
+            //wish).
+            Statement statement1 = connection.createStatement();
+            statement1.executeUpdate("CREATE TABLE " + USER_TABLE_NAME
+                    + " (username VARCHAR(32) PRIMARY KEY, password VARCHAR(32),"
+                    + " bankaccount VARCHAR(32), bought INTEGER, sold INTEGER)");
+            Statement statement2 = connection.createStatement();
+            statement2.executeUpdate("CREATE TABLE " + ITEM_TABLE_NAME
+                    + "(itemid INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY "
+                    + "(START WITH 1, INCREMENT BY 1) PRIMARY KEY, "
+                    + "itemname VARCHAR(32), price FLOAT, "
+                    + "seller VARCHAR(32), "
+                    + "FOREIGN KEY (seller) REFERENCES " + USER_TABLE_NAME
+                    + " (username))");
+            Statement statement3 = connection.createStatement();
+            statement3.executeUpdate("CREATE TABLE " + WISH_TABLE_NAME
+                    + "(wishid INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY "
+                    + "(START WITH 1, INCREMENT BY 1) PRIMARY KEY, "
+                    + "itemname VARCHAR(32), price FLOAT, "
+                    + "wisher VARCHAR(32), "
+                    + "FOREIGN KEY (wisher) REFERENCES " + USER_TABLE_NAME
+                    + " (username))");
+        }
+    }
+
+//    private boolean accountsContains(String userName) {
+//        boolean contains = false;
+//        for (MarketplaceAccount account : accounts) {
+//            if (((MarketplaceAccountImpl)account).getCustomerName().equals(userName)) {
+//                return true;
+//            }
+//        }
+//        return contains;
+//    }
+//    
+//    private MarketplaceAccount getAccount(String userName) {
+//        for(MarketplaceAccount account : accounts){
+//            if(((MarketplaceAccountImpl)account).getCustomerName().equals(userName)){
+//                return account;
+//            }   
+//        }
+//        return null;
+//    }
+    
+    @Override
+    public MarketplaceAccount registerCustomer(MarketplaceClient client,
+            String password, String bankAccountName)
+            throws RemoteException, RegisterCustomerException {
+        long start = REGISTER_CUSTOMER.start();
+        boolean error = true;
+        try {
+            try {
+                String customerName = client.getName();
+                if (!sessions.isOpen(customerName)) {
+                    MarketplaceAccountImpl account = new MarketplaceAccountImpl(client, customerName, bankAccountName, this);
+                    boolean registered = false;
+                    try (PooledConnection connection = pool.acquire()) {
+                        PreparedStatement getAccountNameStatement = connection.prepare(GET_ACCOUNT_NAME);
+                        ResultSet result = null;
+                        getAccountNameStatement.setString(1, customerName);
+                        result = connection.executeQuery(getAccountNameStatement);
+                        if (result.next()) {
+                            throw new RegisterCustomerException("Account already exists");
+                        } else {
+                            PreparedStatement createAccountStatement = connection.prepare(CREATE_ACCOUNT);
+                            createAccountStatement.setString(1, customerName);
+                            createAccountStatement.setString(2, password);
+                            createAccountStatement.setString(3, bankAccountName);
+                            connection.executeUpdate(createAccountStatement);
+                            LOG.info("New account registered: {}", customerName);
+                            registered = true;
+                        }
+                    } finally {
+                        if (!registered) {
+                            sessions.discard(account);
+                        }
+                    }
+                    loader.userRegistered(customerName);
+                    UserProfile profile = new UserProfile(customerName, password,
+                            bankAccountName);
+                    profile.setBankAccount(account.getBankAccount());
+                    profiles.put(profile);
+                    MarketplaceAccount started = startSession(account, client);
+                    error = false;
+                    return started;
+                } else {
+                    LOG.debug("Client tried to create account with already"
+                            + " existing name {}", customerName);
+                    throw new RegisterCustomerException("Not a unique customer name!");
+                }
+            } catch (Exception e) {
+                LOG.warn("Registration failed", e);
+                throw new RegisterCustomerException("Something went wrong with"
+                        + " registration.");
+            }
+        } finally {
+            REGISTER_CUSTOMER.finish(start, error);
+        }
+    }
+
+    @Override
+    public boolean unregisterCustomer(String customerName) throws RemoteException {
+        long start = UNREGISTER_CUSTOMER.start();
+        boolean error = true;
+        try {
+            loader.userRemoved(customerName);
+            try {
+                try (PooledConnection connection = pool.acquire()) {
+                    PreparedStatement deleteAccountStatement = connection.prepare(DELETE_ACCOUNT);
+                    deleteAccountStatement.setString(1, customerName);
+                    connection.executeUpdate(deleteAccountStatement);
+                    PreparedStatement removeItemStatement = connection.prepare(REMOVE_ITEM);
+                    removeItemStatement.setString(1, customerName);
+                    connection.executeUpdate(removeItemStatement);
+                    PreparedStatement removeUsersWishesStatement = connection.prepare(REMOVE_USERS_WISHES);
+                    removeUsersWishesStatement.setString(1, customerName);
+                    connection.executeUpdate(removeUsersWishesStatement);
+                }
+                catalog.removeBySeller(customerName);
+                wishes.removeByWisher(customerName);
+                if (snapshot != null) {
+                    snapshot.userRemoved(customerName);
+                }
+            } catch (SQLException ex) {
+                LOG.error("Problem deleting from database", ex);
+            }
+            //Only now that the row is gone, so that a profile read before
+            //the delete is not cached
+            profiles.invalidate(customerName);
+            forgetAccount(sessions.close(customerName));
+            LOG.info("Account removed: {}", customerName);
+            error = false;
+            return true;
+        } finally {
+            UNREGISTER_CUSTOMER.finish(start, error);
+        }
+    }
+
+    /**
+     * The whole catalog. While it is still loading this waits for the loader
+     * for up to LIST_WAIT_MILLIS rather than read the whole table once more.
+     */
+    @Override
+    public List<Item> listItems() throws RemoteException {
+        long start = LIST_ITEMS.start();
+        boolean error = true;
+        try {
+            try {
+                if (!loader.awaitItems(LIST_WAIT_MILLIS)) {
+                    throw new RemoteException("The catalog is still loading,"
+                            + " list it page by page meanwhile");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted waiting for the catalog", ex);
+            }
+            List<Item> items = catalog.list();
+            error = false;
+            return items;
+        } finally {
+            LIST_ITEMS.finish(start, error);
+        }
+    }
+
+    @Override
+    public ItemPage listItems(ItemQuery query) throws RemoteException {
+        long start = LIST_ITEMS_PAGE.start();
+        boolean error = true;
+        try {
+            ItemPage page;
+            if (!loader.isItemsReady()) {
+                page = loadingCatalog(query).query(query);
+            } else {
+                page = catalog.query(query);
+            }
+            error = false;
+            return page;
+        } finally {
+            LIST_ITEMS_PAGE.finish(start, error);
+        }
+    }
+
+    /**
+     * Answered from the SearchIndex without any ItemLocks. While the catalog
+     * is still loading only the items loaded so far are found.
+     */
+    @Override
+    public List<Item> search(String query, int limit) throws RemoteException {
+        long start = SEARCH.start();
+        boolean error = true;
+        try {
+            List<Item> found = searchable.search(query,
+                    Math.min(limit, SearchIndex.MAX_LIMIT));
+            error = false;
+            return found;
+        } finally {
+            SEARCH.finish(start, error);
+        }
+    }
+
+    /**
+     * While the catalog is still loading, the changes made to it say nothing
+     * about what a client listed from the database, so every call answers
+     * with a resync marker without a version. The first call after loading
+     * then answers with a resync to the current version.
+     */
+    @Override
+    public CatalogChanges changesSince(long version) throws RemoteException {
+        long start = CHANGES_SINCE.start();
+        boolean error = true;
+        try {
+            if (!loader.isItemsReady()) {
+                error = false;
+                return CatalogChanges.resync(CatalogChanges.NO_VERSION);
+            }
+            CatalogChanges changes = catalog.changesSince(version);
+            error = false;
+            return changes;
+        } finally {
+            CHANGES_SINCE.finish(start, error);
+        }
+    }
+
+    /**
+     * @return a catalog with the items that can be on the page of the query,
+     * read from the database since the catalog is still loading
+     */
+    private ItemCatalog loadingCatalog(ItemQuery query) throws RemoteException {
+        ItemCatalog matching = new ItemCatalog();
+        try {
+            loader.loadPage(query, matching);
+        } catch (SQLException ex) {
+            throw new RemoteException("Problem listing items from database", ex);
+        }
+        return matching;
+    }
+
+    /**
+     * @return true if the product is in the catalog or, while the catalog is
+     * still loading, in the database
+     */
+    public boolean containsItem(Item product) {
+        return findItem(product.getName(), product.getPrice()) != null;
+    }
+
+    public void addProduct(Item product) throws DuplicateItemException {
+        Lock lock = itemLocks.lock(product.getName());
+        try {
+            if (!containsItem(product)) {
+                try (PooledConnection connection = pool.acquire()) {
+                    PreparedStatement addItemStatement = connection.prepare(ADD_ITEM,
+                            Statement.RETURN_GENERATED_KEYS);
+                    addItemStatement.setString(1, product.getName());
+                    addItemStatement.setFloat(2, product.getPrice());
+                    addItemStatement.setString(3, product.getSellerName());
+                    connection.executeUpdate(addItemStatement);
+                    ResultSet keys = addItemStatement.getGeneratedKeys();
+                    if (keys.next()) {
+                        product.setId(keys.getInt(1));
+                    }
+                    keys.close();
+                }
+                catalog.add(product);
+                if (snapshot != null) {
+                    snapshot.itemAdded(product);
+                }
+                MarketplaceAccountImpl account = sessions.get(product.getSellerName());
+                if (account != null) {
+                    account.getAvailableSales().add(product);
+                }
+                for (Wish wish : wishes.matching(product.getName(),
+                        product.getPrice())) {
+                    notifyWish(wish, product.getPrice());
+                }
+                LOG.debug("Product added: {}", product.getName());
+            } else {
+                LOG.debug("Can't add duplicate items to sales!");
+                throw new DuplicateItemException("Tried to add item that already"
+                        + " exists");
+            }
+        } catch (SQLException ex) {
+            LOG.error("Problem adding product to database.", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the item with the database itemid, or null if it is not for
+     * sale
+     */
+    public Item findItem(int itemId) {
+        Item item = catalog.getById(itemId);
+        if (item == null && !loader.isItemsReady()) {
+            try {
+                item = loader.loadItem(itemId);
+            } catch (SQLException ex) {
+                LOG.error("Problem finding item in database", ex);
+            }
+        }
+        return item;
+    }
+
+    public Item findItem(String name, float price) {
+        Item item = catalog.get(name, price);
+        if (item == null && !loader.isItemsReady()) {
+            try {
+                item = loader.loadItem(name, price);
+            } catch (SQLException ex) {
+                LOG.error("Problem finding item in database", ex);
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Sells the product to the buyer. The bank transfers the price from the
+     * buyer's to the seller's bank account in one call and one transaction,
+     * whether or not the seller is logged in, and then the sale is recorded.
+     * If recording fails the money is transferred back.
+     *
+     * @return false if the product is no longer for sale or the sale could
+     * not be recorded in the database
+     * @throws RejectedException if the bank refused the payment
+     */
+    public boolean buyProduct(Item product, String buyer)
+            throws RemoteException, RejectedException {
+        Lock lock = itemLocks.lock(product.getName());
+        try {
+            //Use the catalog's copy, which has the itemid
+            product = findItem(product.getName(), product.getPrice());
+            if (product == null) {
+                return false;
+            }
+            String buyerAccount;
+            String sellerAccount;
+            try {
+                buyerAccount = getBankAccountName(buyer);
+                sellerAccount = getBankAccountName(product.getSellerName());
+            } catch (SQLException ex) {
+                LOG.error("Problem getting bank accounts from database", ex);
+                return false;
+            }
+            long start = BANK_TRANSFER.start();
+            boolean error = true;
+            try {
+                bankClient.transfer(buyerAccount, sellerAccount, product.getPrice());
+                error = false;
+            } finally {
+                BANK_TRANSFER.finish(start, error);
+            }
+            try (PooledConnection connection = pool.acquire()) {
+                recordSale(connection, product, buyer);
+            } catch (SQLException ex) {
+                LOG.error("Problem removing product from database", ex);
+                refund(sellerAccount, buyerAccount, product.getPrice());
+                return false;
+            }
+            catalog.remove(product);
+            wishes.removeFulfilled(product.getName(), product.getPrice(), buyer);
+            loader.itemSold(product, buyer);
+            if (snapshot != null) {
+                snapshot.itemSold(product, buyer);
+            }
+
+            MarketplaceAccountImpl seller = sessions.get(product.getSellerName());
+            if (seller != null) {
+                seller.getAvailableSales().remove(product);
+                seller.notifySale(product.getName(), product.getPrice());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    private void refund(String from, String to, float amount) {
+        try {
+            bankClient.transfer(from, to, amount);
+        } catch (RemoteException | RejectedException ex) {
+            LOG.error("Problem refunding ${} from {} to {}", amount, from, to,
+                    ex);
+        }
+    }
+
+    /**
+     * @return the name of the user's bank account, from the account object
+     * if the user is logged in and otherwise from the user's profile
+     */
+    private String getBankAccountName(String userName) throws SQLException {
+        MarketplaceAccountImpl account = sessions.get(userName);
+        if (account != null) {
+            return account.getBankAccountName();
+        }
+        UserProfile profile = profiles.get(userName);
+        return profile == null ? null : profile.getBankAccountName();
+    }
+
+    /**
+     * Uses the given bank instead of looking it up in the registry, for
+     * running the marketplace in the same process as its bank.
+     */
+    public void setBank(Bank bank) {
+        bankClient.setBank(bankClient.getDefaultBank(), bank);
+    }
+
+    public BankClient getBankClient() {
+        return bankClient;
+    }
+
+    /**
+     * Writes a sale to the database as one transaction: the item is removed,
+     * the buyer's wishes it fulfils are removed and both users' counters are
+     * incremented, or nothing is changed at all.
+     */
+    private void recordSale(PooledConnection pooled, Item product, String buyer)
+            throws SQLException {
+        long start = RECORD_SALE.start();
+        boolean error = true;
+        try {
+            Connection connection = pooled.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement removeSoldItemStatement = pooled.prepare(REMOVE_SOLD_ITEM);
+                removeSoldItemStatement.setInt(1, product.getId());
+                if (pooled.executeUpdate(removeSoldItemStatement) != 1) {
+                    throw new SQLException("Item " + product.getId()
+                            + " is not in the database");
+                }
+                //If this product is wished by the buyer at this price or more we
+                //remove the wish from the database
+                PreparedStatement removeWishStatement = pooled.prepare(REMOVE_WISH);
+                removeWishStatement.setString(1, product.getName());
+                removeWishStatement.setFloat(2, product.getPrice());
+                removeWishStatement.setString(3, buyer);
+                pooled.executeUpdate(removeWishStatement);
+                //Increment the bought and sold counters
+                PreparedStatement incrementCountersStatement = pooled.prepare(INCREMENT_COUNTERS);
+                incrementCountersStatement.setString(1, product.getSellerName());
+                incrementCountersStatement.setString(2, buyer);
+                incrementCountersStatement.setString(3, product.getSellerName());
+                incrementCountersStatement.setString(4, buyer);
+                pooled.executeUpdate(incrementCountersStatement);
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            error = false;
+        } finally {
+            RECORD_SALE.finish(start, error);
+        }
+    }
+
+    public void addWish(String itemName, float price, String wisherName) {
+        Lock lock = itemLocks.lock(itemName);
+        try {
+            try (PooledConnection connection = pool.acquire()) {
+                PreparedStatement makeWishStatement = connection.prepare(MAKE_WISH);
+                makeWishStatement.setString(1, itemName);
+                makeWishStatement.setFloat(2, price);
+                makeWishStatement.setString(3, wisherName);
+                connection.executeUpdate(makeWishStatement);
+            }
+            Wish wish = new Wish(itemName, price, wisherName);
+            wishes.add(wish);
+            if (snapshot != null) {
+                snapshot.wishAdded(wish);
+            }
+            //Check if the wished item is already for sale at or below the
+            //wished price, in that case notify
+            Item available = catalog.findCheapest(itemName, price);
+            if (available != null) {
+                notifyWish(wish, available.getPrice());
+            }
+        } catch (SQLException ex) {
+            LOG.error("Problem adding wish to database", ex);
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     * Tells the wisher that the wished item is for sale at the given price.
+     */
+    public void notifyWish(Wish wish, float price) {
+        String wisherName = wish.getWisherName();
+        MarketplaceAccountImpl wisherAccount = sessions.get(wisherName);
+        if (wisherAccount != null) {
+            wisherAccount.notifyWishAvailable(wish.getItemName(), price);
+        }
+    }
+
+    @Override
+    public MarketplaceAccount login(MarketplaceClient client, String name, String password) throws RemoteException,
+            BadCredentialsException {
+        long start = LOGIN.start();
+        boolean error = true;
+        try {
+            MarketplaceAccount account = null;
+            try {
+                UserProfile profile = profiles.get(name);
+                if (profile == null || !profile.passwordMatches(password)) {
+                    throw new BadCredentialsException("Wrong user name and/or "
+                            + "password.");
+                }
+                MarketplaceAccountImpl session = sessions.get(name);
+                if (session != null) {
+                    //Still logged in, for instance from a client that crashed
+                    resumeSession(session, client);
+                    account = session;
+                } else {
+                    LOG.debug("Bank account name of {}: {}", name,
+                            profile.getBankAccountName());
+                    try {
+                        //Reuse the bank account stub of the last login
+                        MarketplaceAccountImpl created = new MarketplaceAccountImpl(client,
+                                name, profile.getBankAccountName(),
+                                profile.getBankAccount(), this);
+                        profile.setBankAccount(created.getBankAccount());
+                        account = startSession(created, client);
+                    } catch (RegisterCustomerException ex) {
+                        throw new BadCredentialsException("Problem creating account"
+                                + " object at marketplace");
+                    }
+                }
+            } catch (SQLException e) {
+                LOG.error("Problem getting user credentials from database", e);
+            }
+            LOG.info("{} logged in.", name);
+            LOG.debug("Account object: {}", account);
+            error = false;
+            return account;
+        } finally {
+            LOGIN.finish(start, error);
+        }
+    }
+
+    @Override
+    public void logout(String name) throws RemoteException {
+        long start = LOGOUT.start();
+        boolean error = true;
+        try {
+            MarketplaceAccountImpl account = sessions.close(name);
+            forgetAccount(account);
+            UserProfile profile = profiles.getIfCached(name);
+            if (account != null && profile != null) {
+                //The account may have got a new stub after the bank evicted
+                //the old one, keep that for the next login
+                profile.setBankAccount(account.getBankAccount());
+            }
+            LOG.info("{} logged out.", name);
+            error = false;
+        } finally {
+            LOGOUT.finish(start, error);
+        }
+    }
+
+    /**
+     * Stops taking calls, stops the notification workers and writes a last
+     * catalog snapshot. Calls that are still running finish normally.
+     */
+    public void close() {
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException ex) {
+            //Already unexported
+        }
+        notifications.shutdown();
+        if (snapshot != null) {
+            try {
+                snapshot.close();
+            } catch (IOException ex) {
+                LOG.error("Problem writing the last catalog snapshot", ex);
+            }
+        }
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    public CatalogLoader getLoader() {
+        return loader;
+    }
+
+    public NotificationDispatcher getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Drops the notifications still queued for the client of an account that
+     * has been logged out or removed.
+     */
+    private void forgetAccount(MarketplaceAccountImpl account) {
+        if (account != null) {
+            notifications.forget(account.getClient());
+        }
+    }
+
+    /**
+     * Starts the session of a newly created account object, or resumes the
+     * session that another login of the same user started meanwhile.
+     */
+    private MarketplaceAccountImpl startSession(MarketplaceAccountImpl created,
+            MarketplaceClient client) {
+        MarketplaceAccountImpl session = sessions.open(created);
+        if (session != created) {
+            resumeSession(session, client);
+        }
+        return session;
+    }
+
+    /**
+     * Sends the callbacks of an open session to the client that logged in
+     * again, and drops those still queued for the previous client.
+     */
+    private void resumeSession(MarketplaceAccountImpl session,
+            MarketplaceClient client) {
+        MarketplaceClient previous = sessions.resume(session, client);
+        if (previous != null && !previous.equals(client)) {
+            notifications.forget(previous);
+        }
+    }
+}
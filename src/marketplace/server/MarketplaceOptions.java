@@ -0,0 +1,87 @@
+package marketplace.server;
+
+import java.io.File;
+
+/**
+ * How to set up a marketplace: the database it keeps its users and items
+ * in, the bank holding the users' accounts, where the catalog is kept and
+ * how it is loaded. Every option starts out at the default of
+ * MarketplaceServer, so only the ones that differ need to be set.
+ */
+public class MarketplaceOptions {
+    private String datasource = MarketplaceServer.DATASOURCE;
+    private String dbms = MarketplaceServer.DBMS;
+    private String bankName = BankClient.DEFAULT_BANK;
+    private CatalogStorage storage = MarketplaceServer.CATALOG_STORAGE;
+    private boolean serveDuringWarmUp = MarketplaceServer.SERVE_DURING_WARMUP;
+    private File snapshotDirectory = MarketplaceServer.SNAPSHOT_DIRECTORY;
+
+    public String getDatasource() {
+        return datasource;
+    }
+
+    public void setDatasource(String datasource) {
+        this.datasource = datasource;
+    }
+
+    public String getDbms() {
+        return dbms;
+    }
+
+    /**
+     * @param dbms one of the dbms names of ConnectionPool, for instance
+     * derby-memory to keep the marketplace in memory for a load test
+     */
+    public void setDbms(String dbms) {
+        this.dbms = dbms;
+    }
+
+    public String getBankName() {
+        return bankName;
+    }
+
+    /**
+     * @param bankName the name the bank holding the users' accounts is bound
+     * to in the registry
+     */
+    public void setBankName(String bankName) {
+        this.bankName = bankName;
+    }
+
+    public CatalogStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @param storage where to keep the catalog, see CatalogStorage
+     */
+    public void setStorage(CatalogStorage storage) {
+        this.storage = storage;
+    }
+
+    public boolean isServeDuringWarmUp() {
+        return serveDuringWarmUp;
+    }
+
+    /**
+     * @param serveDuringWarmUp if true the marketplace is ready as soon as
+     * the catalog has started loading, and calls are served from the database
+     * until it is done; otherwise it is ready once the catalog is loaded
+     */
+    public void setServeDuringWarmUp(boolean serveDuringWarmUp) {
+        this.serveDuringWarmUp = serveDuringWarmUp;
+    }
+
+    public File getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * @param snapshotDirectory where to keep a CatalogSnapshot that the
+     * catalog is restored from at the next start, or null to always load the
+     * catalog from the database
+     */
+    public void setSnapshotDirectory(File snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+}
@@ -1,46 +1,108 @@
 
 package marketplace.server;
 
+import java.io.File;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
-import marketplace.shared.Marketplace;
 import java.sql.SQLException;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.logging.Level;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
 
 
 public class MarketplaceServer {
+    private static final Log LOG = Log.get(MarketplaceServer.class);
     
     public static final String MARKETPLACENAME = "Marketplace";
     public static final String DATASOURCE = "MarketplaceDB";
     public static final String DBMS = "derby";    
-    private Marketplace marketplace;
+    public static final int CONNECTION_POOL_SIZE = 10;
+    //Whether to bind the marketplace before its catalog has been loaded
+    public static final boolean SERVE_DURING_WARMUP = false;
+    //Where to keep the catalog snapshot, null to load from the database
+    public static final File SNAPSHOT_DIRECTORY = null;
+    public static final CatalogStorage CATALOG_STORAGE = CatalogStorage.HEAP;
+    public static final long SNAPSHOT_INTERVAL_MILLIS = 5 * 60 * 1000;
+    //How long a call to a client or the bank may wait for its answer, unless
+    //sun.rmi.transport.tcp.responseTimeout is given on the command line
+    public static final long RMI_RESPONSE_TIMEOUT_MILLIS = 30 * 1000;
+    private static final String RESPONSE_TIMEOUT_PROPERTY =
+            "sun.rmi.transport.tcp.responseTimeout";
+    private MarketplaceImpl marketplace;
             
     /**
     * Here we do some naming
     */
     public MarketplaceServer() throws RemoteException {
+        this(new MarketplaceOptions());
+    }
+
+    public MarketplaceServer(MarketplaceOptions options) throws RemoteException {
+            //Read by RMI when it first connects, so set before any call
+            if (System.getProperty(RESPONSE_TIMEOUT_PROPERTY) == null) {
+                System.setProperty(RESPONSE_TIMEOUT_PROPERTY,
+                        Long.toString(RMI_RESPONSE_TIMEOUT_MILLIS));
+            }
             try {
                 LocateRegistry.getRegistry(1099).list();
             }
             catch (RemoteException e) {
-                System.out.println("will create registry");
+                LOG.info("will create registry");
                 LocateRegistry.createRegistry(1099);
             }
         
            try {
-                   marketplace = new MarketplaceImpl();
+                   ConnectionPool pool = new ConnectionPool(
+                           options.getDatasource(), options.getDbms(),
+                           CONNECTION_POOL_SIZE,
+                           ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+                   marketplace = new MarketplaceImpl(pool, options);
                    // Register the newly created object at rmiregistry.
                    java.rmi.Naming.rebind("rmi://localhost/" + MARKETPLACENAME, marketplace);
-                   System.out.println(marketplace + " is ready.");
+                   final MarketplaceImpl closing = marketplace;
+                   Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                       @Override
+                       public void run() {
+                           closing.close();
+                           Log.flush();
+                       }
+                   }, "marketplace-shutdown"));
+                   LOG.info("{} is ready.", marketplace);
+                   Metrics.registerStats("LogRing", MARKETPLACENAME, Log.getRing());
+                   Metrics.startConfiguredReporting();
            } catch (Exception e) {
-                   e.printStackTrace();
+                   LOG.error("Problem starting marketplace server", e);
            }
     } 
     
     public static void main(String[] args) {
         try {
-            MarketplaceServer server = new MarketplaceServer();
+            MarketplaceOptions options = new MarketplaceOptions();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-serve-during-warmup")) {
+                    options.setServeDuringWarmUp(true);
+                } else if (args[i].equals("-snapshot") && i + 1 < args.length) {
+                    options.setSnapshotDirectory(new File(args[++i]));
+                } else if (args[i].equals("-bank") && i + 1 < args.length) {
+                    options.setBankName(args[++i]);
+                } else if (args[i].equals("-catalog") && i + 1 < args.length) {
+                    //heap or off-heap
+                    options.setStorage(CatalogStorage.valueOf(
+                            args[++i].toUpperCase().replace('-', '_')));
+                } else if (args[i].equals("-log-level") && i + 1 < args.length) {
+                    Log.setLevel(Level.valueOf(args[++i].toUpperCase()));
+                } else if (args[i].equals("-metrics") && i + 1 < args.length) {
+                    //Seconds between metrics reports, off by default
+                    long seconds = Long.parseLong(args[++i]);
+                    if (seconds > 0) {
+                        Metrics.startReporting(seconds * 1000);
+                    }
+                }
+            }
+            MarketplaceServer server = new MarketplaceServer(options);
         } catch (RemoteException ex) {
-            System.out.println("Problem initializing server");
+            LOG.error("Problem initializing server", ex);
         }
     }    
 }
@@ -0,0 +1,73 @@
+package marketplace.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives each distinct name a small int code and keeps one canonical String
+ * for it, so that listings of the same item or by the same seller share
+ * their name instead of each holding a copy read from the database or
+ * received from a client.
+ *
+ * Codes are never reused and names are never removed: the number of distinct
+ * item and user names is far smaller than the number of listings over time.
+ */
+public class NameDictionary {
+    private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<>();
+    //Written only while holding the monitor, read without it
+    private volatile String[] names = new String[64];
+    private int size;
+
+    /**
+     * @return the code of the name, assigned now if the name is new
+     */
+    public int intern(String name) {
+        Integer code = codes.get(name);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(name);
+            if (code != null) {
+                return code;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = name;
+            //Publish the array before the code, so whoever finds the code
+            //also finds the name
+            names = current;
+            codes.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @return the code of the name, or -1 if it has never been interned
+     */
+    public int find(String name) {
+        Integer code = codes.get(name);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @return the canonical String of the name with this code
+     */
+    public String get(int code) {
+        return names[code];
+    }
+
+    /**
+     * @return the canonical String equal to the name, interning it if needed
+     */
+    public String canonical(String name) {
+        return get(intern(name));
+    }
+
+    public int size() {
+        return codes.size();
+    }
+}
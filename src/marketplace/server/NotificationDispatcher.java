@@ -0,0 +1,460 @@
+package marketplace.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import marketplace.shared.MarketplaceClient;
+import se.kth.id2212.logging.Log;
+
+/**
+ * Delivers the notifySale and notifyWishAvailable callbacks to clients in
+ * the background, so that a slow or dead client cannot hold up the
+ * marketplace operation that caused the notification.
+ *
+ * Each client has its own bounded queue, drained in order by one task at a
+ * time on a worker pool. A notification equal to one already waiting in the
+ * queue is coalesced with it, and when the queue is full the overflow policy
+ * decides whether the new or the oldest notification is dropped. Every remote
+ * call runs on a separate caller executor (virtual threads when the JVM has
+ * them). The worker does not wait for it: the drain goes on from the call's
+ * completion, so a slow client never holds up a worker. A client gets its
+ * next notification only once its previous call has returned or failed, and
+ * its notifications keep queueing meanwhile.
+ *
+ * A call that has not returned within the call timeout is counted as timed
+ * out and the overflow policy decides what happens to the client: with
+ * DROP_OLDEST the stuck notification is given up on (and counted as
+ * dropped) and the drain goes on with the next one, with DROP_NEWEST the
+ * stuck notification keeps its place and newer ones are dropped once the
+ * queue is full. A call given up on still holds its caller thread until it
+ * returns, which the RMI response timeout set by MarketplaceServer bounds.
+ *
+ * A forgotten client's queue is only dropped once no drain is running for
+ * it, so a notification for the same client enqueued meanwhile goes into the
+ * same queue and is still delivered after the call in progress.
+ */
+public class NotificationDispatcher {
+    private static final Log LOG = Log.get(NotificationDispatcher.class);
+    public static final int DEFAULT_QUEUE_CAPACITY = 100;
+    public static final long DEFAULT_CALL_TIMEOUT_MILLIS = 5000;
+
+    public enum OverflowPolicy {
+        DROP_NEWEST, DROP_OLDEST
+    }
+
+    private final ConcurrentMap<MarketplaceClient, ClientQueue> queues =
+            new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final ExecutorService callers;
+    private final ScheduledExecutorService timer;
+    private final int queueCapacity;
+    private final long callTimeoutNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong totalDeliveryNanos = new AtomicLong();
+    private final AtomicLong maxDeliveryNanos = new AtomicLong();
+
+    public NotificationDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_CALL_TIMEOUT_MILLIS, OverflowPolicy.DROP_OLDEST);
+    }
+
+    public NotificationDispatcher(int workerThreads, int queueCapacity,
+            long callTimeoutMillis, OverflowPolicy overflowPolicy) {
+        this.workers = Executors.newFixedThreadPool(workerThreads,
+                daemonThreads("notification-worker-"));
+        this.callers = newCallerExecutor();
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("notification-timer-"));
+        this.queueCapacity = queueCapacity;
+        this.callTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void notifySale(MarketplaceClient client, String productName,
+            float price) {
+        enqueue(client, new Notification(Notification.SALE, productName, price));
+    }
+
+    public void notifyWishAvailable(MarketplaceClient client, String itemName,
+            float price) {
+        enqueue(client, new Notification(Notification.WISH, itemName, price));
+    }
+
+    /**
+     * Drops the notifications still waiting for the client, for when it will
+     * never be notified again.
+     */
+    public void forget(MarketplaceClient client) {
+        if (client == null) {
+            return;
+        }
+        ClientQueue queue = queues.get(client);
+        if (queue != null) {
+            dropped.addAndGet(queue.forget());
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        callers.shutdown();
+        timer.shutdownNow();
+    }
+
+    private void enqueue(MarketplaceClient client, Notification notification) {
+        if (client == null) {
+            return;
+        }
+        while (true) {
+            ClientQueue queue = queues.get(client);
+            if (queue == null) {
+                ClientQueue newQueue = new ClientQueue(client);
+                queue = queues.putIfAbsent(client, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+            boolean schedule;
+            synchronized (queue) {
+                if (queue.removed) {
+                    //Dropped meanwhile, try again with a new one
+                    continue;
+                }
+                schedule = queue.offer(notification);
+            }
+            if (schedule) {
+                queue.schedule();
+            }
+            return;
+        }
+    }
+
+    private void recordDelivery(Notification notification) {
+        long latency = System.nanoTime() - notification.enqueuedAt;
+        delivered.incrementAndGet();
+        totalDeliveryNanos.addAndGet(latency);
+        long max = maxDeliveryNanos.get();
+        while (latency > max && !maxDeliveryNanos.compareAndSet(max, latency)) {
+            max = maxDeliveryNanos.get();
+        }
+    }
+
+    /**
+     * @return the number of notifications waiting, over all clients
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ClientQueue queue : queues.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of notifications waiting for the client with the
+     * longest queue
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ClientQueue queue : queues.values()) {
+            max = Math.max(max, queue.size());
+        }
+        return max;
+    }
+
+    public int getQueueCount() {
+        return queues.size();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the mean time from enqueueing a notification to its callback
+     * returning, in milliseconds
+     */
+    public double getAverageDeliveryMillis() {
+        long count = delivered.get();
+        return count == 0 ? 0 : totalDeliveryNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxDeliveryMillis() {
+        return maxDeliveryNanos.get() / 1e6;
+    }
+
+    private static final class Notification {
+        static final int SALE = 0;
+        static final int WISH = 1;
+        final int type;
+        final String itemName;
+        final float price;
+        final long enqueuedAt = System.nanoTime();
+
+        Notification(int type, String itemName, float price) {
+            this.type = type;
+            this.itemName = itemName;
+            this.price = price;
+        }
+
+        void deliver(MarketplaceClient client) throws RemoteException {
+            if (type == SALE) {
+                client.notifySale(itemName, price);
+            } else {
+                client.notifyWishAvailable(itemName, price);
+            }
+        }
+
+        boolean sameAs(Notification other) {
+            return type == other.type && itemName.equals(other.itemName)
+                    && Float.compare(price, other.price) == 0;
+        }
+    }
+
+    /**
+     * The notifications waiting for one client. It is scheduled on the
+     * worker pool whenever it has notifications and no drain is already
+     * scheduled or waiting for a call to the client. Each run starts one call
+     * and the call's completion schedules the next run.
+     */
+    private final class ClientQueue implements Runnable {
+        private final MarketplaceClient client;
+        private final ArrayDeque<Notification> pending = new ArrayDeque<>();
+        private boolean scheduled;
+        //Whether to drop the queue once its drain has finished
+        private boolean forgotten;
+        //Set once the queue has been dropped from queues
+        private boolean removed;
+
+        ClientQueue(MarketplaceClient client) {
+            this.client = client;
+        }
+
+        /**
+         * @return true if the caller has to schedule this queue
+         */
+        synchronized boolean offer(Notification notification) {
+            for (Notification waiting : pending) {
+                if (waiting.sameAs(notification)) {
+                    coalesced.incrementAndGet();
+                    return false;
+                }
+            }
+            if (pending.size() >= queueCapacity) {
+                dropped.incrementAndGet();
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                pending.poll();
+            }
+            pending.add(notification);
+            enqueued.incrementAndGet();
+            //The client is being notified again
+            forgotten = false;
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        synchronized Notification next() {
+            Notification notification = pending.poll();
+            if (notification == null) {
+                scheduled = false;
+                if (forgotten) {
+                    remove();
+                }
+            }
+            return notification;
+        }
+
+        /**
+         * Drops the waiting notifications, and the queue itself as soon as
+         * no drain is running for it.
+         *
+         * @return the number of notifications dropped
+         */
+        synchronized int forget() {
+            int cleared = pending.size();
+            pending.clear();
+            if (scheduled) {
+                forgotten = true;
+            } else {
+                remove();
+            }
+            return cleared;
+        }
+
+        private void remove() {
+            removed = true;
+            queues.remove(client, this);
+        }
+
+        /**
+         * Runs the next drain on a worker, or stops draining if the
+         * dispatcher has been shut down.
+         */
+        void schedule() {
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException ex) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+
+        synchronized int size() {
+            return pending.size();
+        }
+
+        @Override
+        public void run() {
+            final Notification notification = next();
+            if (notification == null) {
+                return;
+            }
+            CompletableFuture<Void> call;
+            try {
+                call = CompletableFuture.runAsync(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            notification.deliver(client);
+                        } catch (RemoteException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }
+                }, callers);
+            } catch (RejectedExecutionException ex) {
+                //Shut down
+                synchronized (this) {
+                    scheduled = false;
+                }
+                return;
+            }
+            //Set by whichever of the completion and the timeout moves on
+            final AtomicBoolean settled = new AtomicBoolean();
+            final ScheduledFuture<?> timeout = scheduleTimeout(notification,
+                    settled);
+            call.whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    if (!settled.compareAndSet(false, true)) {
+                        //Given up on, the drain has already gone on
+                        return;
+                    }
+                    if (error == null) {
+                        recordDelivery(notification);
+                    } else {
+                        failed.incrementAndGet();
+                        Throwable cause = error instanceof CompletionException
+                                ? error.getCause() : error;
+                        LOG.warn("Problem notifying client: {}", cause.getMessage());
+                    }
+                    schedule();
+                }
+            });
+        }
+
+        /**
+         * @return the timeout of the call delivering the notification, or
+         * null if the dispatcher has been shut down
+         */
+        private ScheduledFuture<?> scheduleTimeout(final Notification notification,
+                final AtomicBoolean settled) {
+            try {
+                return timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (settled.get()) {
+                            return;
+                        }
+                        timedOut.incrementAndGet();
+                        if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                            //Keep waiting, the queue drops newer ones when full
+                            return;
+                        }
+                        if (settled.compareAndSet(false, true)) {
+                            dropped.incrementAndGet();
+                            LOG.warn("Gave up notifying client of {} after {} ms",
+                                    notification.itemName,
+                                    TimeUnit.NANOSECONDS.toMillis(callTimeoutNanos));
+                            schedule();
+                        }
+                    }
+                }, callTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                return null;
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Uses a virtual thread per call when the JVM supports it (Java 21 and
+     * later), otherwise a cached pool of daemon threads.
+     */
+    private static ExecutorService newCallerExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(daemonThreads("notification-call-"));
+        }
+    }
+}
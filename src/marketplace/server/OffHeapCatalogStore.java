@@ -0,0 +1,828 @@
+package marketplace.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+import marketplace.shared.ItemSortOrder;
+
+/**
+ * A CatalogStore that keeps its items and indexes in direct buffers, outside
+ * the Java heap, so that a catalog of tens of millions of items does not
+ * make every full collection trace tens of millions of objects. Only the
+ * item and seller name dictionaries, and a bounded number of recently added
+ * keys, are on the heap.
+ *
+ * Each item is a fixed size record (itemid, name code, price in cents,
+ * seller code and state) in one of a list of direct buffers, at the index
+ * of its slot. Two open addressing hash tables of slots find an item by
+ * name and price and by itemid. Both compare the record they point at, so
+ * they are four bytes per bucket.
+ *
+ * Listing order and price order are each kept as a sorted run of slots in a
+ * direct buffer, plus a TreeMap of the keys added since the run was last
+ * built. A listing merges the two as it goes. When the maps hold enough keys,
+ * or enough items in the runs have been removed, both runs are rebuilt in
+ * one linear merge. A removed item stays in the runs, marked dead, until
+ * then. Its slot is only reused after the rebuild, so that the runs never
+ * point at a different item than the one they were sorted with.
+ *
+ * All reads share a read lock and all changes take the write lock.
+ */
+public class OffHeapCatalogStore implements CatalogStore {
+    private static final int RECORD_SIZE = 24;
+    private static final int ID = 0;
+    private static final int NAME = 4;
+    private static final int PRICE = 8;
+    private static final int SELLER = 16;
+    private static final int STATE = 20;
+    private static final int DEAD = 0;
+    private static final int LIVE = 1;
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+    private static final int EMPTY = -1;
+    private static final int INITIAL_TABLE_SIZE = 1024;
+    //Fewest changes before the runs are rebuilt, see mergeIfNeeded
+    private static final int MIN_MERGE_SIZE = 4096;
+    //How many items values() materializes per read lock
+    private static final int BATCH_SIZE = 1024;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NameDictionary itemNames = new NameDictionary();
+    private final NameDictionary sellerNames = new NameDictionary();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int highWater;
+    //Slots that can be reused and slots waiting for the next merge, both
+    //chained through the id field of their records
+    private int freeHead = EMPTY;
+    private int pendingHead = EMPTY;
+    private int size;
+    private IntBuffer keyTable = table(INITIAL_TABLE_SIZE);
+    private IntBuffer idTable = table(INITIAL_TABLE_SIZE);
+    private int idCount;
+    private final SortedRun byName = new SortedRun(null);
+    private final SortedRun byPrice = new SortedRun(ItemKey.PRICE_ORDER);
+    private int deadInRuns;
+    private long merges;
+
+    private static IntBuffer ints(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * 4)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static IntBuffer table(int capacity) {
+        IntBuffer table = ints(capacity);
+        for (int i = 0; i < capacity; i++) {
+            table.put(i, EMPTY);
+        }
+        return table;
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks.get(slot >>> CHUNK_BITS);
+    }
+
+    private static int offset(int slot) {
+        return (slot & (CHUNK_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    private int id(int slot) {
+        return chunk(slot).getInt(offset(slot) + ID);
+    }
+
+    private int nameCode(int slot) {
+        return chunk(slot).getInt(offset(slot) + NAME);
+    }
+
+    private long price(int slot) {
+        return chunk(slot).getLong(offset(slot) + PRICE);
+    }
+
+    private int sellerCode(int slot) {
+        return chunk(slot).getInt(offset(slot) + SELLER);
+    }
+
+    private boolean isLive(int slot) {
+        return chunk(slot).getInt(offset(slot) + STATE) == LIVE;
+    }
+
+    private String name(int slot) {
+        return itemNames.get(nameCode(slot));
+    }
+
+    private ItemKey key(int slot) {
+        return ItemKey.ofMinorUnits(name(slot), price(slot));
+    }
+
+    private Item materialize(int slot) {
+        int seller = sellerCode(slot);
+        return new ItemImpl(id(slot), name(slot), Prices.fromMinorUnits(price(slot)),
+                seller < 0 ? null : sellerNames.get(seller));
+    }
+
+    private static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    private static int keyHash(int name, long priceCents) {
+        return hash(name * 0x9e3779b97f4a7c15L + priceCents);
+    }
+
+    private int keyHome(int slot, int mask) {
+        return keyHash(nameCode(slot), price(slot)) & mask;
+    }
+
+    private int idHome(int slot, int mask) {
+        return hash(id(slot)) & mask;
+    }
+
+    /**
+     * @return the slot of the live item with the name and price, or EMPTY
+     */
+    private int findKey(String name, long priceCents) {
+        int code = itemNames.find(name);
+        if (code < 0) {
+            return EMPTY;
+        }
+        int mask = keyTable.capacity() - 1;
+        for (int i = keyHash(code, priceCents) & mask; ; i = (i + 1) & mask) {
+            int slot = keyTable.get(i);
+            if (slot == EMPTY
+                    || (nameCode(slot) == code && price(slot) == priceCents)) {
+                return slot;
+            }
+        }
+    }
+
+    private int findId(int id) {
+        if (id == 0) {
+            return EMPTY;
+        }
+        int mask = idTable.capacity() - 1;
+        for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+            int slot = idTable.get(i);
+            if (slot == EMPTY || id(slot) == id) {
+                return slot;
+            }
+        }
+    }
+
+    private void insertKey(IntBuffer table, int slot) {
+        int mask = table.capacity() - 1;
+        int i = keyHome(slot, mask);
+        while (table.get(i) != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table.put(i, slot);
+    }
+
+    private void insertId(IntBuffer table, int slot) {
+        int mask = table.capacity() - 1;
+        int i = idHome(slot, mask);
+        while (table.get(i) != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table.put(i, slot);
+    }
+
+    /**
+     * Removes the slot from a hash table and moves later entries of the
+     * same probe sequence back into the gap.
+     */
+    private void removeFromTable(IntBuffer table, int slot, boolean byKey) {
+        int mask = table.capacity() - 1;
+        int gap = byKey ? keyHome(slot, mask) : idHome(slot, mask);
+        while (table.get(gap) != slot) {
+            gap = (gap + 1) & mask;
+        }
+        for (int j = (gap + 1) & mask; table.get(j) != EMPTY; j = (j + 1) & mask) {
+            int moved = table.get(j);
+            int home = byKey ? keyHome(moved, mask) : idHome(moved, mask);
+            //The entry at j may move to the gap unless its home lies
+            //cyclically after the gap and at or before j
+            boolean homeBetween = gap <= j
+                    ? home > gap && home <= j
+                    : home > gap || home <= j;
+            if (!homeBetween) {
+                table.put(gap, moved);
+                gap = j;
+            }
+        }
+        table.put(gap, EMPTY);
+    }
+
+    /**
+     * Rebuilds the hash tables at twice their size once they are half full.
+     */
+    private void growTables() {
+        if ((size + 1) * 2 > keyTable.capacity()) {
+            IntBuffer grown = table(keyTable.capacity() * 2);
+            for (int slot = 0; slot < highWater; slot++) {
+                if (isLive(slot)) {
+                    insertKey(grown, slot);
+                }
+            }
+            keyTable = grown;
+        }
+        if ((idCount + 1) * 2 > idTable.capacity()) {
+            IntBuffer grown = table(idTable.capacity() * 2);
+            for (int slot = 0; slot < highWater; slot++) {
+                if (isLive(slot) && id(slot) != 0) {
+                    insertId(grown, slot);
+                }
+            }
+            idTable = grown;
+        }
+    }
+
+    private int allocateSlot() {
+        if (freeHead != EMPTY) {
+            int slot = freeHead;
+            freeHead = id(slot);
+            return slot;
+        }
+        if (highWater == chunks.size() * CHUNK_RECORDS) {
+            chunks.add(ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE)
+                    .order(ByteOrder.nativeOrder()));
+        }
+        return highWater++;
+    }
+
+    @Override
+    public boolean add(Item item) {
+        long priceCents = Prices.toMinorUnits(item.getPrice());
+        int name = itemNames.intern(item.getName());
+        int seller = item.getSellerName() == null ? -1
+                : sellerNames.intern(item.getSellerName());
+        lock.writeLock().lock();
+        try {
+            if (findKey(item.getName(), priceCents) != EMPTY) {
+                return false;
+            }
+            growTables();
+            int slot = allocateSlot();
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            chunk.putInt(offset + ID, item.getId());
+            chunk.putInt(offset + NAME, name);
+            chunk.putLong(offset + PRICE, priceCents);
+            chunk.putInt(offset + SELLER, seller);
+            chunk.putInt(offset + STATE, LIVE);
+            insertKey(keyTable, slot);
+            if (item.getId() != 0) {
+                insertId(idTable, slot);
+                idCount++;
+            }
+            ItemKey key = ItemKey.ofMinorUnits(itemNames.get(name), priceCents);
+            byName.added.put(key, slot);
+            byPrice.added.put(key, slot);
+            size++;
+            mergeIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a live item. Called with the write lock held.
+     */
+    private void removeSlot(int slot) {
+        removeFromTable(keyTable, slot, true);
+        if (id(slot) != 0) {
+            removeFromTable(idTable, slot, false);
+            idCount--;
+        }
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        chunk.putInt(offset + STATE, DEAD);
+        ItemKey key = key(slot);
+        if (byName.added.remove(key) != null) {
+            //Not in the runs yet, so nothing refers to the slot any more
+            byPrice.added.remove(key);
+            chunk.putInt(offset + ID, freeHead);
+            freeHead = slot;
+        } else {
+            chunk.putInt(offset + ID, pendingHead);
+            pendingHead = slot;
+            deadInRuns++;
+        }
+        size--;
+    }
+
+    @Override
+    public Item get(String name, float price) {
+        lock.readLock().lock();
+        try {
+            int slot = findKey(name, Prices.toMinorUnits(price));
+            return slot == EMPTY ? null : materialize(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Item getById(int id) {
+        lock.readLock().lock();
+        try {
+            int slot = findId(id);
+            return slot == EMPTY ? null : materialize(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Item findCheapest(String name, float maxPrice) {
+        lock.readLock().lock();
+        try {
+            //Items with the same name are next to each other, ordered on price
+            SlotIterator slots = new SlotIterator(byName,
+                    ItemKey.ofMinorUnits(name, Long.MIN_VALUE), true, false);
+            if (!slots.hasNext()) {
+                return null;
+            }
+            int slot = slots.next();
+            if (!name(slot).equals(name)
+                    || price(slot) > Prices.toMinorUnits(maxPrice)) {
+                return null;
+            }
+            return materialize(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Item item) {
+        return contains(item.getName(), item.getPrice());
+    }
+
+    @Override
+    public boolean contains(String name, float price) {
+        lock.readLock().lock();
+        try {
+            return findKey(name, Prices.toMinorUnits(price)) != EMPTY;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Item remove(Item item) {
+        return remove(ItemKey.of(item));
+    }
+
+    @Override
+    public Item remove(ItemKey key) {
+        lock.writeLock().lock();
+        try {
+            int slot = findKey(key.getName(), key.getPriceCents());
+            if (slot == EMPTY) {
+                return null;
+            }
+            Item removed = materialize(slot);
+            removeSlot(slot);
+            mergeIfNeeded();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Scans all records, which is fine for something as rare as a user
+     * unregistering.
+     */
+    @Override
+    public List<Item> removeBySeller(String sellerName) {
+        List<Item> removed = new ArrayList<>();
+        int seller = sellerNames.find(sellerName);
+        if (seller < 0) {
+            return removed;
+        }
+        lock.writeLock().lock();
+        try {
+            for (int slot = 0; slot < highWater; slot++) {
+                if (isLive(slot) && sellerCode(slot) == seller) {
+                    removed.add(materialize(slot));
+                    removeSlot(slot);
+                }
+            }
+            mergeIfNeeded();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The view reads the catalog in batches of BATCH_SIZE items, each under
+     * the read lock, continuing after the last key of the previous batch.
+     * Like the skip lists of ItemCatalog it is weakly consistent: changes
+     * made while it is iterated may or may not be seen.
+     */
+    @Override
+    public Collection<Item> values() {
+        return new AbstractCollection<Item>() {
+            @Override
+            public Iterator<Item> iterator() {
+                return new BatchIterator();
+            }
+
+            @Override
+            public int size() {
+                return OffHeapCatalogStore.this.size();
+            }
+        };
+    }
+
+    @Override
+    public List<Item> list() {
+        lock.readLock().lock();
+        try {
+            List<Item> list = new ArrayList<>(size);
+            SlotIterator slots = new SlotIterator(byName, null, true, false);
+            while (slots.hasNext()) {
+                list.add(materialize(slots.next()));
+            }
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ItemPage query(ItemQuery query) {
+        if (query.getMinPrice() > query.getMaxPrice()) {
+            return new ItemPage(new ArrayList<Item>(), null);
+        }
+        String prefix = query.getNamePrefix();
+        SortedRun run;
+        ItemKey lower = null;
+        ItemKey upper = null;
+        switch (query.getSortOrder()) {
+            case PRICE_ASCENDING:
+            case PRICE_DESCENDING:
+                run = byPrice;
+                lower = new ItemKey("", query.getMinPrice());
+                upper = new ItemKey(String.valueOf(Character.MAX_VALUE),
+                        query.getMaxPrice());
+                break;
+            default:
+                run = byName;
+                if (prefix != null && !prefix.isEmpty()) {
+                    //Upper case sorts first among names that are equal when
+                    //ignoring case, so this is where the prefix range starts
+                    lower = new ItemKey(prefix.toUpperCase(), Float.NEGATIVE_INFINITY);
+                    upper = new ItemKey(prefix + Character.MAX_VALUE,
+                            Float.POSITIVE_INFINITY);
+                }
+        }
+        boolean descending = query.getSortOrder() == ItemSortOrder.PRICE_DESCENDING
+                || query.getSortOrder() == ItemSortOrder.NAME_DESCENDING;
+        ItemKey start = descending ? upper : lower;
+        ItemKey end = descending ? lower : upper;
+        boolean inclusive = true;
+        if (query.getCursor() != null) {
+            ItemKey after = ItemKey.fromCursor(query.getCursor());
+            if (start == null || (descending ? run.compare(after, start) <= 0
+                    : run.compare(after, start) >= 0)) {
+                start = after;
+                inclusive = false;
+            }
+        }
+        long minCents = Prices.toMinorUnits(query.getMinPrice());
+        long maxCents = Prices.toMinorUnits(query.getMaxPrice());
+        int toSkip = query.getCursor() == null ? query.getOffset() : 0;
+        List<Item> page = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            SlotIterator slots = new SlotIterator(run, start, inclusive, descending);
+            int last = EMPTY;
+            while (slots.hasNext()) {
+                int slot = slots.next();
+                if (end != null) {
+                    int beyond = run.compare(slot, end);
+                    if (descending ? beyond < 0 : beyond > 0) {
+                        break;
+                    }
+                }
+                if (prefix != null && !hasPrefix(name(slot), prefix)) {
+                    continue;
+                }
+                long priceCents = price(slot);
+                if (priceCents < minCents || priceCents > maxCents) {
+                    continue;
+                }
+                if (toSkip > 0) {
+                    toSkip--;
+                    continue;
+                }
+                if (page.size() == query.getPageSize()) {
+                    //There is at least one more item, so hand out a cursor
+                    return new ItemPage(page, key(last).toCursor());
+                }
+                page.add(materialize(slot));
+                last = slot;
+            }
+            return new ItemPage(page, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean hasPrefix(String name, String prefix) {
+        return name.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the runs once the keys added since the last rebuild, or the
+     * dead items in the runs, are at least MIN_MERGE_SIZE and a 64th of the
+     * runs. That keeps the maps small and the merges rare, about 64 copied
+     * slots per change.
+     */
+    private void mergeIfNeeded() {
+        int threshold = Math.max(MIN_MERGE_SIZE, byName.size / 64);
+        if (byName.added.size() < threshold && deadInRuns < threshold) {
+            return;
+        }
+        byName.merge();
+        byPrice.merge();
+        deadInRuns = 0;
+        merges++;
+        //The runs no longer refer to the removed slots
+        while (pendingHead != EMPTY) {
+            int slot = pendingHead;
+            pendingHead = id(slot);
+            chunk(slot).putInt(offset(slot) + ID, freeHead);
+            freeHead = slot;
+        }
+    }
+
+    /**
+     * One order of the catalog: a sorted run of slots in a direct buffer and
+     * the keys added since, mapped to their slots.
+     */
+    private final class SortedRun {
+        private final Comparator<ItemKey> order;
+        private final TreeMap<ItemKey, Integer> added;
+        private IntBuffer slots = ints(0);
+        private int size;
+        //The buffer of the previous run, reused by the next merge
+        private IntBuffer spare = ints(0);
+
+        /**
+         * @param order the order of the keys, or null for listing order
+         */
+        SortedRun(Comparator<ItemKey> order) {
+            this.order = order;
+            added = new TreeMap<>(order);
+        }
+
+        int compare(ItemKey first, ItemKey second) {
+            return order == null ? first.compareTo(second)
+                    : order.compare(first, second);
+        }
+
+        int compare(int slot, ItemKey key) {
+            return compare(key(slot), key);
+        }
+
+        /**
+         * @return the first position whose slot is at or after (inclusive)
+         * or after the key
+         */
+        int lowerBound(ItemKey key, boolean inclusive) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int result = compare(slots.get(middle), key);
+                if (result < 0 || (result == 0 && !inclusive)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Merges the live slots of the run with the added keys into a new
+         * run. Dead slots are left out.
+         */
+        void merge() {
+            int capacity = size - deadInRuns + added.size();
+            IntBuffer merged = spare;
+            if (merged.capacity() < capacity) {
+                merged = ints(Math.max(capacity, capacity + capacity / 2));
+            }
+            int count = 0;
+            int position = 0;
+            Iterator<Map.Entry<ItemKey, Integer>> newer = added.entrySet().iterator();
+            Map.Entry<ItemKey, Integer> next = newer.hasNext() ? newer.next() : null;
+            while (position < size || next != null) {
+                if (position < size && !isLive(slots.get(position))) {
+                    position++;
+                } else if (next == null || (position < size
+                        && compare(slots.get(position), next.getKey()) < 0)) {
+                    merged.put(count++, slots.get(position++));
+                } else {
+                    merged.put(count++, next.getValue());
+                    next = newer.hasNext() ? newer.next() : null;
+                }
+            }
+            spare = slots;
+            slots = merged;
+            size = count;
+            added.clear();
+        }
+    }
+
+    /**
+     * The live slots of a SortedRun in its order or the reverse, from a
+     * starting key, merging the run and the added keys.
+     */
+    private final class SlotIterator {
+        private final SortedRun run;
+        private final boolean descending;
+        private final Iterator<Integer> newer;
+        private int position;
+        private int nextInRun = EMPTY;
+        private int nextNewer = EMPTY;
+
+        /**
+         * @param start the key to start at, or null to start at the first
+         * (ascending) or last (descending) item
+         */
+        SlotIterator(SortedRun run, ItemKey start, boolean inclusive,
+                boolean descending) {
+            this.run = run;
+            this.descending = descending;
+            if (start == null) {
+                position = descending ? run.size - 1 : 0;
+                newer = (descending ? run.added.descendingMap() : run.added)
+                        .values().iterator();
+            } else if (descending) {
+                position = run.lowerBound(start, !inclusive) - 1;
+                newer = run.added.headMap(start, inclusive).descendingMap()
+                        .values().iterator();
+            } else {
+                position = run.lowerBound(start, inclusive);
+                newer = run.added.tailMap(start, inclusive).values().iterator();
+            }
+            advanceInRun();
+            nextNewer = newer.hasNext() ? newer.next() : EMPTY;
+        }
+
+        private void advanceInRun() {
+            nextInRun = EMPTY;
+            while (position >= 0 && position < run.size) {
+                int slot = run.slots.get(position);
+                position += descending ? -1 : 1;
+                if (isLive(slot)) {
+                    nextInRun = slot;
+                    return;
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return nextInRun != EMPTY || nextNewer != EMPTY;
+        }
+
+        int next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            boolean fromRun;
+            if (nextNewer == EMPTY) {
+                fromRun = true;
+            } else if (nextInRun == EMPTY) {
+                fromRun = false;
+            } else {
+                int result = run.compare(key(nextInRun), key(nextNewer));
+                fromRun = descending ? result > 0 : result < 0;
+            }
+            int slot;
+            if (fromRun) {
+                slot = nextInRun;
+                advanceInRun();
+            } else {
+                slot = nextNewer;
+                nextNewer = newer.hasNext() ? newer.next() : EMPTY;
+            }
+            return slot;
+        }
+    }
+
+    private final class BatchIterator implements Iterator<Item> {
+        private Iterator<Item> batch = Collections.<Item>emptyList().iterator();
+        private ItemKey after;
+        private boolean done;
+
+        @Override
+        public boolean hasNext() {
+            while (!batch.hasNext() && !done) {
+                fetch();
+            }
+            return batch.hasNext();
+        }
+
+        private void fetch() {
+            List<Item> items = new ArrayList<>(BATCH_SIZE);
+            lock.readLock().lock();
+            try {
+                SlotIterator slots = new SlotIterator(byName, after, false, false);
+                int last = EMPTY;
+                while (slots.hasNext() && items.size() < BATCH_SIZE) {
+                    last = slots.next();
+                    items.add(materialize(last));
+                }
+                done = items.size() < BATCH_SIZE;
+                if (last != EMPTY) {
+                    after = key(last);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            batch = items.iterator();
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.next();
+        }
+    }
+
+    public int getItemCount() {
+        return size();
+    }
+
+    public long getOffHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) chunks.size() * CHUNK_RECORDS * RECORD_SIZE
+                    + 4L * (keyTable.capacity() + idTable.capacity()
+                    + byName.slots.capacity() + byName.spare.capacity()
+                    + byPrice.slots.capacity() + byPrice.spare.capacity());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getPendingKeys() {
+        lock.readLock().lock();
+        try {
+            return byName.added.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMergeCount() {
+        lock.readLock().lock();
+        try {
+            return merges;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getItemNameCount() {
+        return itemNames.size();
+    }
+
+    public int getSellerNameCount() {
+        return sellerNames.size();
+    }
+}
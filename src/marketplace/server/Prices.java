@@ -0,0 +1,27 @@
+package marketplace.server;
+
+/**
+ * Conversion between the float prices of the Item interface and the whole
+ * number of minor units (cents) the catalog keeps them in. Two prices are
+ * the same price if they are the same number of cents, so fractions of a
+ * cent are rounded away.
+ */
+public final class Prices {
+    public static final int MINOR_UNITS_PER_UNIT = 100;
+
+    private Prices() {
+    }
+
+    /**
+     * @return the price in cents; infinite prices become Long.MIN_VALUE and
+     * Long.MAX_VALUE, which is what a price range without a bound needs
+     */
+    public static long toMinorUnits(float price) {
+        //Through double, so that for instance 0.1f is 10 and not 10.000001
+        return Math.round((double) price * MINOR_UNITS_PER_UNIT);
+    }
+
+    public static float fromMinorUnits(long minorUnits) {
+        return (float) ((double) minorUnits / MINOR_UNITS_PER_UNIT);
+    }
+}
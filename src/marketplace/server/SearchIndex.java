@@ -0,0 +1,488 @@
+package marketplace.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full text index of the names of the items for sale. A name is split into
+ * tokens, runs of letters and digits compared in lower case. Every token is
+ * indexed by its trigrams (the substrings of three characters), and is also
+ * put in a prefix trie, so a query token is found anywhere in a name from
+ * three characters on and at the start of a token from one character on.
+ *
+ * The index is of distinct names. Each name keeps the prices it is listed at,
+ * and is indexed while it has at least one. Changes to one name synchronize
+ * on that name's entry. Searches take no lock at all; a name that is being
+ * indexed or dropped at the same time may or may not be found.
+ *
+ * When the last price of a name is removed, its entry is dropped, and so
+ * are the postings and trie nodes that held nothing else. A change that got
+ * hold of an entry or posting just before it was dropped sees that it was
+ * (under the same monitor) and starts over with a new one. Trie nodes are
+ * only added and pruned while holding the root's monitor. A search skips the
+ * entries it finds that are no longer indexed.
+ */
+public class SearchIndex {
+    public static final int DEFAULT_LIMIT = 20;
+    public static final int MAX_LIMIT = 500;
+    //Most names a search considers for one query token, which keeps a one
+    //letter query over a large catalog from scoring every name. The names
+    //with a token that equals or starts with the query token are taken
+    //first, shortest token first, so the cap drops the weakest matches.
+    public static final int MAX_CANDIDATES = 10000;
+    private static final int GRAM = 3;
+    private static final int EXACT = 3;
+    private static final int PREFIX = 2;
+    private static final int SUBSTRING = 1;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Posting> postings = new ConcurrentHashMap<>();
+    private final Node root = new Node();
+    private final AtomicInteger indexedNames = new AtomicInteger();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong candidatesScored = new AtomicLong();
+
+    /**
+     * The prices one name is listed at, and its tokens. The postings and trie
+     * hold entries rather than names, so a search reads the candidates
+     * without looking each one up.
+     */
+    private static final class Entry {
+        private final String name;
+        private final String[] tokens;
+        private final NavigableSet<Long> prices = new ConcurrentSkipListSet<>();
+        //Whether the postings and trie hold the entry, changed while holding
+        //its monitor
+        private volatile boolean indexed;
+        //Set once the entry has been dropped from entries, while holding its
+        //monitor
+        private boolean removed;
+
+        Entry(String name) {
+            this.name = name;
+            this.tokens = tokenize(name);
+        }
+    }
+
+    /**
+     * The entries of the names that have a token containing one trigram.
+     */
+    private static final class Posting {
+        private final Set<Entry> entries = ConcurrentHashMap.newKeySet();
+        //Set once the posting has been dropped from postings, while holding
+        //its monitor
+        private boolean removed;
+    }
+
+    /**
+     * A node of the prefix trie, holding the entries of the names that have
+     * a token ending at this node. Children are added and removed while
+     * holding the monitor of the trie's root.
+     */
+    private static final class Node {
+        private final ConcurrentMap<Character, Node> children = new ConcurrentHashMap<>();
+        private final Set<Entry> entries = ConcurrentHashMap.newKeySet();
+
+        Node child(char c) {
+            Node child = children.get(c);
+            if (child == null) {
+                child = new Node();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+
+    /**
+     * A name found by search with its score, the sum over the query tokens
+     * of how well each matches (exact token, token prefix or substring).
+     */
+    public static final class Match {
+        private final String name;
+        private final int score;
+        private final Entry entry;
+        private List<Long> pricesCents;
+
+        Match(String name, int score, Entry entry) {
+            this.name = name;
+            this.score = score;
+            this.entry = entry;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * @return the prices the name is listed at, cheapest first
+         */
+        public List<Long> getPricesCents() {
+            return pricesCents;
+        }
+    }
+
+    private static final Comparator<Match> RANK = new Comparator<Match>() {
+        @Override
+        public int compare(Match match1, Match match2) {
+            int result = Integer.compare(match2.score, match1.score);
+            if (result == 0) {
+                //Of equal scores the shortest name matches the query best
+                result = Integer.compare(match1.name.length(), match2.name.length());
+            }
+            if (result == 0) {
+                result = match1.name.compareToIgnoreCase(match2.name);
+            }
+            if (result == 0) {
+                result = match1.name.compareTo(match2.name);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * @return the lower case tokens of the text, without duplicates
+     */
+    static String[] tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inToken = i < text.length()
+                    && Character.isLetterOrDigit(text.charAt(i));
+            if (inToken && start < 0) {
+                start = i;
+            } else if (!inToken && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    private Entry entry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            Entry newEntry = new Entry(name);
+            entry = entries.putIfAbsent(name, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    private void addToPosting(String gram, Entry entry) {
+        while (true) {
+            Posting posting = postings.get(gram);
+            if (posting == null) {
+                Posting newPosting = new Posting();
+                posting = postings.putIfAbsent(gram, newPosting);
+                if (posting == null) {
+                    posting = newPosting;
+                }
+            }
+            synchronized (posting) {
+                if (!posting.removed) {
+                    posting.entries.add(entry);
+                    return;
+                }
+            }
+            //Dropped meanwhile, try again with a new one
+        }
+    }
+
+    private void removeFromPosting(String gram, Entry entry) {
+        Posting posting = postings.get(gram);
+        if (posting == null) {
+            return;
+        }
+        synchronized (posting) {
+            posting.entries.remove(entry);
+            if (posting.entries.isEmpty() && !posting.removed) {
+                posting.removed = true;
+                postings.remove(gram, posting);
+            }
+        }
+    }
+
+    /**
+     * Records that the name is listed at the price.
+     */
+    public void add(String name, long priceCents) {
+        while (true) {
+            Entry entry = entry(name);
+            synchronized (entry) {
+                if (entry.removed) {
+                    //Dropped meanwhile, try again with a new one
+                    continue;
+                }
+                entry.prices.add(priceCents);
+                if (!entry.indexed) {
+                    for (String token : entry.tokens) {
+                        for (int i = 0; i + GRAM <= token.length(); i++) {
+                            addToPosting(token.substring(i, i + GRAM), entry);
+                        }
+                        synchronized (root) {
+                            Node node = root;
+                            for (int i = 0; i < token.length(); i++) {
+                                node = node.child(token.charAt(i));
+                            }
+                            node.entries.add(entry);
+                        }
+                    }
+                    entry.indexed = true;
+                    indexedNames.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that the name is no longer listed at the price. If that was its
+     * last price, drops the name, and the postings and trie nodes that only
+     * held this name.
+     */
+    public void remove(String name, long priceCents) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            entry.prices.remove(priceCents);
+            if (entry.removed || !entry.prices.isEmpty()) {
+                return;
+            }
+            if (entry.indexed) {
+                for (String token : entry.tokens) {
+                    for (int i = 0; i + GRAM <= token.length(); i++) {
+                        removeFromPosting(token.substring(i, i + GRAM), entry);
+                    }
+                    removeFromTrie(token, entry);
+                }
+                entry.indexed = false;
+                indexedNames.decrementAndGet();
+            }
+            entry.removed = true;
+            entries.remove(name, entry);
+        }
+    }
+
+    /**
+     * Removes the entry from the node of the token, and then every node on
+     * its path that holds no entries and has no children.
+     */
+    private void removeFromTrie(String token, Entry entry) {
+        synchronized (root) {
+            Node[] path = new Node[token.length() + 1];
+            path[0] = root;
+            for (int i = 0; i < token.length(); i++) {
+                path[i + 1] = path[i].children.get(token.charAt(i));
+                if (path[i + 1] == null) {
+                    return;
+                }
+            }
+            path[token.length()].entries.remove(entry);
+            for (int i = token.length(); i > 0; i--) {
+                Node node = path[i];
+                if (!node.entries.isEmpty() || !node.children.isEmpty()) {
+                    break;
+                }
+                path[i - 1].children.remove(token.charAt(i - 1));
+            }
+        }
+    }
+
+    /**
+     * Finds the names that match every token of the query, each somewhere in
+     * the name if it has at least three characters and at the start of a
+     * token of the name if it is shorter. The best matches come first.
+     *
+     * @param limit the most matches to return, at most MAX_LIMIT
+     */
+    public List<Match> search(String query, int limit) {
+        searches.incrementAndGet();
+        String[] queryTokens = tokenize(query);
+        limit = Math.min(limit, MAX_LIMIT);
+        if (queryTokens.length == 0 || limit <= 0) {
+            return new ArrayList<>();
+        }
+        //Score the candidates of the most selective query token only, the
+        //others are checked against each candidate's tokens
+        Set<Entry> candidates = null;
+        for (String token : queryTokens) {
+            Set<Entry> tokenCandidates = candidates(token);
+            if (candidates == null || tokenCandidates.size() < candidates.size()) {
+                candidates = tokenCandidates;
+            }
+            if (candidates.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+        //The best limit matches so far, the worst of them at the head
+        PriorityQueue<Match> best = new PriorityQueue<>(limit + 1,
+                Collections.reverseOrder(RANK));
+        for (Entry entry : candidates) {
+            if (!entry.indexed) {
+                continue;
+            }
+            int score = score(entry.tokens, queryTokens);
+            if (score == 0) {
+                continue;
+            }
+            Match worst = best.peek();
+            if (best.size() == limit && (score < worst.score || (score == worst.score
+                    && entry.name.length() > worst.name.length()))) {
+                //Cannot beat the worst, without comparing the names
+                continue;
+            }
+            Match match = new Match(entry.name, score, entry);
+            if (best.size() < limit) {
+                best.add(match);
+            } else if (RANK.compare(match, worst) < 0) {
+                best.poll();
+                best.add(match);
+            }
+        }
+        candidatesScored.addAndGet(candidates.size());
+        List<Match> matches = new ArrayList<>(best);
+        Collections.sort(matches, RANK);
+        //Only the prices of the matches returned are read
+        for (Iterator<Match> iterator = matches.iterator(); iterator.hasNext();) {
+            Match match = iterator.next();
+            match.pricesCents = new ArrayList<>(match.entry.prices);
+            if (match.pricesCents.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the entries of at most MAX_CANDIDATES names that may match the
+     * query token: first those with a token it is a prefix of, then those
+     * with all its trigrams
+     */
+    private Set<Entry> candidates(String token) {
+        Set<Entry> found = new LinkedHashSet<>();
+        Node node = root;
+        for (int i = 0; node != null && i < token.length(); i++) {
+            node = node.children.get(token.charAt(i));
+        }
+        if (node != null) {
+            collect(node, found);
+        }
+        if (token.length() < GRAM || found.size() == MAX_CANDIDATES) {
+            return found;
+        }
+        List<Set<Entry>> grams = new ArrayList<>();
+        for (int i = 0; i + GRAM <= token.length(); i++) {
+            Posting posting = postings.get(token.substring(i, i + GRAM));
+            if (posting == null) {
+                return found;
+            }
+            grams.add(posting.entries);
+        }
+        Set<Entry> smallest = grams.get(0);
+        for (Set<Entry> posting : grams) {
+            if (posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+        for (Entry entry : smallest) {
+            boolean inAll = true;
+            for (Set<Entry> posting : grams) {
+                if (posting != smallest && !posting.contains(entry)) {
+                    inAll = false;
+                    break;
+                }
+            }
+            if (inAll) {
+                found.add(entry);
+                if (found.size() == MAX_CANDIDATES) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the entries of the node and its descendants, breadth first so
+     * that shorter tokens, which match the query better, come first.
+     */
+    private static void collect(Node node, Set<Entry> found) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.add(node);
+        while (!pending.isEmpty() && found.size() < MAX_CANDIDATES) {
+            Node next = pending.poll();
+            for (Entry entry : next.entries) {
+                found.add(entry);
+                if (found.size() == MAX_CANDIDATES) {
+                    return;
+                }
+            }
+            pending.addAll(next.children.values());
+        }
+    }
+
+    /**
+     * @return the sum of the best match of each query token with a name
+     * token, or 0 if one of them does not match
+     */
+    private static int score(String[] nameTokens, String[] queryTokens) {
+        int total = 0;
+        for (String queryToken : queryTokens) {
+            int best = 0;
+            for (String nameToken : nameTokens) {
+                if (nameToken.equals(queryToken)) {
+                    best = EXACT;
+                    break;
+                } else if (nameToken.startsWith(queryToken)) {
+                    best = Math.max(best, PREFIX);
+                } else if (queryToken.length() >= GRAM
+                        && nameToken.contains(queryToken)) {
+                    best = Math.max(best, SUBSTRING);
+                }
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    public int getIndexedNameCount() {
+        return indexedNames.get();
+    }
+
+    public int getTrigramCount() {
+        return postings.size();
+    }
+
+    public long getSearchCount() {
+        return searches.get();
+    }
+
+    public long getCandidatesScored() {
+        return candidatesScored.get();
+    }
+}
@@ -0,0 +1,153 @@
+package marketplace.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+
+/**
+ * A CatalogStore that keeps a SearchIndex of the names in another store up
+ * to date. Every change goes through here, whether it comes from addProduct,
+ * buyProduct or unregisterCustomer, from the CatalogLoader or from restoring
+ * a CatalogSnapshot, so the index always covers the whole catalog.
+ *
+ * The index is changed after the store, and not every caller holds the
+ * ItemLocks of the name, so an add and a remove of the same item may reach
+ * the index in the other order. Each change therefore checks the store again
+ * afterwards and corrects the index, which leaves at worst a price in the
+ * index that is no longer in the store. search looks every match up in the
+ * store and leaves out those that are gone.
+ */
+public class SearchableCatalog implements CatalogStore {
+    private final CatalogStore store;
+    private final SearchIndex index;
+
+    public SearchableCatalog(CatalogStore store) {
+        this(store, new SearchIndex());
+    }
+
+    public SearchableCatalog(CatalogStore store, SearchIndex index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    public CatalogStore getStore() {
+        return store;
+    }
+
+    public SearchIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Searches the item names, see SearchIndex.search.
+     *
+     * @return the items of the best matching names, and of each name the
+     * cheapest first
+     */
+    public List<Item> search(String query, int limit) {
+        List<Item> found = new ArrayList<>();
+        for (SearchIndex.Match match : index.search(query, limit)) {
+            for (long priceCents : match.getPricesCents()) {
+                if (found.size() == limit) {
+                    return found;
+                }
+                Item item = store.get(match.getName(), Prices.fromMinorUnits(priceCents));
+                if (item != null) {
+                    found.add(item);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public boolean add(Item item) {
+        if (!store.add(item)) {
+            return false;
+        }
+        long priceCents = Prices.toMinorUnits(item.getPrice());
+        index.add(item.getName(), priceCents);
+        if (!store.contains(item)) {
+            index.remove(item.getName(), priceCents);
+        }
+        return true;
+    }
+
+    @Override
+    public Item get(String name, float price) {
+        return store.get(name, price);
+    }
+
+    @Override
+    public Item getById(int id) {
+        return store.getById(id);
+    }
+
+    @Override
+    public Item findCheapest(String name, float maxPrice) {
+        return store.findCheapest(name, maxPrice);
+    }
+
+    @Override
+    public boolean contains(Item item) {
+        return store.contains(item);
+    }
+
+    @Override
+    public boolean contains(String name, float price) {
+        return store.contains(name, price);
+    }
+
+    @Override
+    public Item remove(Item item) {
+        return removed(store.remove(item));
+    }
+
+    @Override
+    public Item remove(ItemKey key) {
+        return removed(store.remove(key));
+    }
+
+    private Item removed(Item item) {
+        if (item != null) {
+            long priceCents = Prices.toMinorUnits(item.getPrice());
+            index.remove(item.getName(), priceCents);
+            if (store.contains(item)) {
+                index.add(item.getName(), priceCents);
+            }
+        }
+        return item;
+    }
+
+    @Override
+    public List<Item> removeBySeller(String sellerName) {
+        List<Item> removed = store.removeBySeller(sellerName);
+        for (Item item : removed) {
+            removed(item);
+        }
+        return removed;
+    }
+
+    @Override
+    public Collection<Item> values() {
+        return store.values();
+    }
+
+    @Override
+    public List<Item> list() {
+        return store.list();
+    }
+
+    @Override
+    public ItemPage query(ItemQuery query) {
+        return store.query(query);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+}
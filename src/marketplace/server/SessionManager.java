@@ -0,0 +1,123 @@
+package marketplace.server;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import marketplace.shared.MarketplaceClient;
+
+/**
+ * The account objects of the users who are logged in, one per user.
+ *
+ * A user who logs in again while still logged in, for instance after the
+ * client crashed without logging out, gets the same account object back
+ * with the new client in it for callbacks, instead of a new remote object.
+ * When the session ends the account object is unexported, so that the RMI
+ * runtime drops it and the stubs held by clients stop working.
+ */
+public class SessionManager {
+    private final ConcurrentMap<String, MarketplaceAccountImpl> sessions =
+            new ConcurrentHashMap<>();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     * @return the account of the user's session, or null if the user is not
+     * logged in
+     */
+    public MarketplaceAccountImpl get(String userName) {
+        return sessions.get(userName);
+    }
+
+    public boolean isOpen(String userName) {
+        return sessions.containsKey(userName);
+    }
+
+    /**
+     * Starts a session with a newly created account object. If another
+     * session for the user was started meanwhile the new object is unexported
+     * and the account of that session is returned instead; the caller then
+     * has to resume it with its client.
+     */
+    public MarketplaceAccountImpl open(MarketplaceAccountImpl account) {
+        MarketplaceAccountImpl existing = sessions.putIfAbsent(
+                account.getCustomerName(), account);
+        if (existing != null) {
+            unexport(account);
+            return existing;
+        }
+        opened.incrementAndGet();
+        return account;
+    }
+
+    /**
+     * Hands the account of an open session to a client logging in again.
+     *
+     * @return the client that the callbacks went to until now
+     */
+    public MarketplaceClient resume(MarketplaceAccountImpl account,
+            MarketplaceClient client) {
+        resumed.incrementAndGet();
+        MarketplaceClient previous = account.getClient();
+        account.setClient(client);
+        return previous;
+    }
+
+    /**
+     * Ends the user's session and unexports its account object, even if a
+     * call on it is still in progress.
+     *
+     * @return the account of the session, or null if the user was not logged
+     * in
+     */
+    public MarketplaceAccountImpl close(String userName) {
+        MarketplaceAccountImpl account = sessions.remove(userName);
+        if (account != null) {
+            closed.incrementAndGet();
+            unexport(account);
+        }
+        return account;
+    }
+
+    /**
+     * Unexports an account object that was never part of a session, for
+     * instance because registration failed after it was created.
+     */
+    public void discard(MarketplaceAccountImpl account) {
+        if (sessions.get(account.getCustomerName()) != account) {
+            unexport(account);
+        }
+    }
+
+    private static void unexport(MarketplaceAccountImpl account) {
+        try {
+            UnicastRemoteObject.unexportObject(account, true);
+        } catch (NoSuchObjectException ex) {
+            //Already unexported
+        }
+    }
+
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    public long getClosedCount() {
+        return closed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionManager[open=" + sessions.size() + ", opened=" + opened
+                + ", resumed=" + resumed + ", closed=" + closed + "]";
+    }
+}
@@ -0,0 +1,63 @@
+package marketplace.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import se.kth.id2212.bankjdbc.Account;
+
+/**
+ * What the marketplace knows about a registered user: the USERDATA row and
+ * the stub of the user's bank account once it has been looked up.
+ *
+ * Only a SHA-256 digest of the password is kept, so the password itself is
+ * not held in memory between logins.
+ */
+public class UserProfile {
+    private final String userName;
+    private final byte[] passwordDigest;
+    private final String bankAccountName;
+    private volatile Account bankAccount;
+
+    public UserProfile(String userName, String password, String bankAccountName) {
+        this.userName = userName;
+        this.passwordDigest = digest(password);
+        this.bankAccountName = bankAccountName;
+    }
+
+    private static byte[] digest(String password) {
+        if (password == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                    .digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public boolean passwordMatches(String password) {
+        return passwordDigest != null && password != null
+                && MessageDigest.isEqual(passwordDigest, digest(password));
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public String getBankAccountName() {
+        return bankAccountName;
+    }
+
+    /**
+     * @return the stub of the bank account from an earlier login, or null
+     */
+    public Account getBankAccount() {
+        return bankAccount;
+    }
+
+    public void setBankAccount(Account bankAccount) {
+        this.bankAccount = bankAccount;
+    }
+}
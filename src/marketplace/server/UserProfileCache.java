@@ -0,0 +1,151 @@
+package marketplace.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import se.kth.id2212.bankjdbc.ConnectionPool;
+import se.kth.id2212.bankjdbc.PooledConnection;
+
+/**
+ * The profiles of the users who logged in or traded recently, so that a
+ * login or a purchase does not have to read USERDATA again. A profile is
+ * read with one query for the whole row.
+ *
+ * Like the bank's AccountCache the profiles are kept in access order and
+ * the least recently used one is evicted when the cache is full. The
+ * database is only read outside the lock. A profile read while its user was
+ * being removed is not cached, since it may describe the removed user.
+ */
+public class UserProfileCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    private static final String GET_PROFILE = "SELECT password, bankaccount "
+            + "FROM " + MarketplaceImpl.USER_TABLE_NAME
+            + " WHERE username = ?";
+    private final ConnectionPool pool;
+    private final int maxSize;
+    private final LinkedHashMap<String, UserProfile> profiles =
+            new LinkedHashMap<String, UserProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UserProfile> eldest) {
+            if (size() > maxSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+    //Incremented by every invalidate, so a load can tell it raced with one
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public UserProfileCache(ConnectionPool pool) {
+        this(pool, DEFAULT_MAX_SIZE);
+    }
+
+    public UserProfileCache(ConnectionPool pool, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.pool = pool;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the user's profile, read from the database if it is not cached,
+     * or null if there is no such user
+     */
+    public UserProfile get(String userName) throws SQLException {
+        long invalidationsBefore;
+        synchronized (this) {
+            UserProfile profile = profiles.get(userName);
+            if (profile != null) {
+                hits++;
+                return profile;
+            }
+            misses++;
+            invalidationsBefore = invalidations;
+        }
+        UserProfile loaded = load(userName);
+        if (loaded == null) {
+            return null;
+        }
+        synchronized (this) {
+            UserProfile profile = profiles.get(userName);
+            if (profile != null) {
+                //Loaded by another thread meanwhile, keep that one
+                return profile;
+            }
+            if (invalidations == invalidationsBefore) {
+                profiles.put(userName, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the profile if it is cached, without reading the database
+     */
+    public synchronized UserProfile getIfCached(String userName) {
+        return profiles.get(userName);
+    }
+
+    private UserProfile load(String userName) throws SQLException {
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement getProfileStatement = connection.prepare(GET_PROFILE);
+            getProfileStatement.setString(1, userName);
+            try (ResultSet result = connection.executeQuery(getProfileStatement)) {
+                if (!result.next()) {
+                    return null;
+                }
+                return new UserProfile(userName, result.getString("password"),
+                        result.getString("bankaccount"));
+            }
+        }
+    }
+
+    /**
+     * Caches the profile of a user who has just registered.
+     */
+    public synchronized void put(UserProfile profile) {
+        profiles.put(profile.getUserName(), profile);
+    }
+
+    /**
+     * Forgets the user, called when the user is removed.
+     */
+    public synchronized void invalidate(String userName) {
+        invalidations++;
+        profiles.remove(userName);
+    }
+
+    public synchronized int size() {
+        return profiles.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UserProfileCache[size=" + profiles.size() + "/" + maxSize
+                + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,153 @@
+package marketplace.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import marketplace.shared.CatalogChanges;
+import marketplace.shared.Item;
+import marketplace.shared.ItemPage;
+import marketplace.shared.ItemQuery;
+
+/**
+ * A CatalogStore that records every item added to or removed from another
+ * store in a CatalogChangeLog, so that clients can keep a copy of the
+ * catalog up to date with changesSince.
+ *
+ * The log holds keys rather than what happened to them. changesSince looks
+ * each key changed since the client's version up in the store and reports
+ * the item as added if it is there now and as removed otherwise. The order
+ * of changes to one key therefore never matters, only that the last one is
+ * logged after it was made, and a change that is reported again later does
+ * no harm.
+ */
+public class VersionedCatalog implements CatalogStore {
+    private final CatalogStore store;
+    private final CatalogChangeLog log;
+
+    public VersionedCatalog(CatalogStore store) {
+        this(store, new CatalogChangeLog());
+    }
+
+    public VersionedCatalog(CatalogStore store, CatalogChangeLog log) {
+        this.store = store;
+        this.log = log;
+    }
+
+    public CatalogStore getStore() {
+        return store;
+    }
+
+    public CatalogChangeLog getLog() {
+        return log;
+    }
+
+    public long getVersion() {
+        return log.getVersion();
+    }
+
+    /**
+     * @return the current state of the items changed since the version, or
+     * a resync marker if the log no longer has all changes since then
+     */
+    public CatalogChanges changesSince(long version) {
+        List<ItemKey> keys = new ArrayList<>();
+        long current = log.changedSince(version, keys);
+        if (current < 0) {
+            return CatalogChanges.resync(log.getVersion());
+        }
+        List<Item> added = new ArrayList<>();
+        List<Item> removed = new ArrayList<>();
+        Set<ItemKey> distinct = new LinkedHashSet<>(keys);
+        for (ItemKey key : distinct) {
+            Item item = store.get(key.getName(), key.getPrice());
+            if (item != null) {
+                added.add(item);
+            } else {
+                removed.add(new ItemImpl(key.getName(), key.getPrice(), null));
+            }
+        }
+        return new CatalogChanges(current, added, removed);
+    }
+
+    @Override
+    public boolean add(Item item) {
+        if (!store.add(item)) {
+            return false;
+        }
+        log.changed(ItemKey.of(item));
+        return true;
+    }
+
+    @Override
+    public Item get(String name, float price) {
+        return store.get(name, price);
+    }
+
+    @Override
+    public Item getById(int id) {
+        return store.getById(id);
+    }
+
+    @Override
+    public Item findCheapest(String name, float maxPrice) {
+        return store.findCheapest(name, maxPrice);
+    }
+
+    @Override
+    public boolean contains(Item item) {
+        return store.contains(item);
+    }
+
+    @Override
+    public boolean contains(String name, float price) {
+        return store.contains(name, price);
+    }
+
+    @Override
+    public Item remove(Item item) {
+        return removed(store.remove(item));
+    }
+
+    @Override
+    public Item remove(ItemKey key) {
+        return removed(store.remove(key));
+    }
+
+    private Item removed(Item item) {
+        if (item != null) {
+            log.changed(ItemKey.of(item));
+        }
+        return item;
+    }
+
+    @Override
+    public List<Item> removeBySeller(String sellerName) {
+        List<Item> removed = store.removeBySeller(sellerName);
+        for (Item item : removed) {
+            log.changed(ItemKey.of(item));
+        }
+        return removed;
+    }
+
+    @Override
+    public Collection<Item> values() {
+        return store.values();
+    }
+
+    @Override
+    public List<Item> list() {
+        return store.list();
+    }
+
+    @Override
+    public ItemPage query(ItemQuery query) {
+        return store.query(query);
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+}
@@ -0,0 +1,153 @@
+package marketplace.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the wishes customers have made, used to find the wishes a new
+ * listing fulfils. Wishes are grouped on item name, and within a name kept
+ * in a skip list ordered on the maximum price the wisher is willing to pay.
+ * The wishes matching a listing are then the tail of that set starting at
+ * the listing price, found in O(log n + matches).
+ *
+ * A second index on wisher name lets all wishes of a customer be dropped
+ * when they unregister.
+ */
+public class WishIndex {
+    private static final Comparator<Wish> PRICE_ORDER = new Comparator<Wish>() {
+        @Override
+        public int compare(Wish wish1, Wish wish2) {
+            int result = Float.compare(wish1.getPrice(), wish2.getPrice());
+            if (result == 0) {
+                result = wish1.getWisherName().compareTo(wish2.getWisherName());
+            }
+            return result;
+        }
+    };
+    private final ConcurrentMap<String, NavigableSet<Wish>> wishesByItem =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<Wish>> wishesByWisher =
+            new ConcurrentHashMap<>();
+
+    public void add(Wish wish) {
+        NavigableSet<Wish> itemWishes = wishesByItem.get(wish.getItemName());
+        if (itemWishes == null) {
+            NavigableSet<Wish> newWishes = new ConcurrentSkipListSet<>(PRICE_ORDER);
+            itemWishes = wishesByItem.putIfAbsent(wish.getItemName(), newWishes);
+            if (itemWishes == null) {
+                itemWishes = newWishes;
+            }
+        }
+        if (itemWishes.add(wish)) {
+            wisherWishes(wish.getWisherName()).add(wish);
+        }
+    }
+
+    /**
+     * @return the wishes for the item whose max price is at or above the
+     * given price
+     */
+    public List<Wish> matching(String itemName, float price) {
+        List<Wish> matches = new ArrayList<>();
+        NavigableSet<Wish> itemWishes = wishesByItem.get(itemName);
+        if (itemWishes != null) {
+            matches.addAll(itemWishes.tailSet(lowestWish(itemName, price), true));
+        }
+        return matches;
+    }
+
+    /**
+     * Removes the wishes of the wisher that are fulfilled by buying the item
+     * at the given price.
+     *
+     * @return the removed wishes
+     */
+    public List<Wish> removeFulfilled(String itemName, float price,
+            String wisherName) {
+        List<Wish> removed = new ArrayList<>();
+        NavigableSet<Wish> itemWishes = wishesByItem.get(itemName);
+        if (itemWishes == null) {
+            return removed;
+        }
+        Iterator<Wish> iterator = itemWishes.tailSet(
+                lowestWish(itemName, price), true).iterator();
+        while (iterator.hasNext()) {
+            Wish wish = iterator.next();
+            if (wish.getWisherName().equals(wisherName)) {
+                iterator.remove();
+                removed.add(wish);
+            }
+        }
+        Set<Wish> wisherWishes = wishesByWisher.get(wisherName);
+        if (wisherWishes != null) {
+            wisherWishes.removeAll(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every wish made by the wisher.
+     *
+     * @return the removed wishes
+     */
+    public List<Wish> removeByWisher(String wisherName) {
+        List<Wish> removed = new ArrayList<>();
+        Set<Wish> wisherWishes = wishesByWisher.remove(wisherName);
+        if (wisherWishes == null) {
+            return removed;
+        }
+        for (Wish wish : wisherWishes) {
+            NavigableSet<Wish> itemWishes = wishesByItem.get(wish.getItemName());
+            if (itemWishes != null && itemWishes.remove(wish)) {
+                removed.add(wish);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return a copy of all wishes, grouped on item name
+     */
+    public List<Wish> list() {
+        List<Wish> all = new ArrayList<>();
+        for (NavigableSet<Wish> itemWishes : wishesByItem.values()) {
+            all.addAll(itemWishes);
+        }
+        return all;
+    }
+
+    public int size() {
+        int size = 0;
+        for (NavigableSet<Wish> itemWishes : wishesByItem.values()) {
+            size += itemWishes.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return a wish that sorts before every wish for the item at or above
+     * the price, since no wisher name is shorter than the empty string
+     */
+    private static Wish lowestWish(String itemName, float price) {
+        return new Wish(itemName, price, "");
+    }
+
+    private Set<Wish> wisherWishes(String wisherName) {
+        Set<Wish> wishes = wishesByWisher.get(wisherName);
+        if (wishes == null) {
+            Set<Wish> newWishes = ConcurrentHashMap.newKeySet();
+            wishes = wishesByWisher.putIfAbsent(wisherName, newWishes);
+            if (wishes == null) {
+                wishes = newWishes;
+            }
+        }
+        return wishes;
+    }
+}
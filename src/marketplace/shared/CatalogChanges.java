@@ -0,0 +1,74 @@
+package marketplace.shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes to the catalog since a version, returned by
+ * Marketplace.changesSince. Either the items added and removed since that
+ * version, for a client to apply to its copy of the catalog, or a resync
+ * marker when the marketplace no longer has all changes since that version,
+ * in which case the client lists the whole catalog again.
+ */
+public class CatalogChanges implements Serializable {
+    /**
+     * The version of a client that has no copy of the catalog yet; asking
+     * for the changes since it always returns a resync marker.
+     */
+    public static final long NO_VERSION = -1;
+    private final long version;
+    private final boolean resync;
+    private final List<Item> added;
+    private final List<Item> removed;
+
+    public CatalogChanges(long version, List<Item> added, List<Item> removed) {
+        this(version, false, added, removed);
+    }
+
+    private CatalogChanges(long version, boolean resync, List<Item> added,
+            List<Item> removed) {
+        this.version = version;
+        this.resync = resync;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * @param version the version to ask for changes since once the catalog
+     * has been listed again
+     */
+    public static CatalogChanges resync(long version) {
+        return new CatalogChanges(version, true, new ArrayList<Item>(),
+                new ArrayList<Item>());
+    }
+
+    /**
+     * @return the version of the catalog these changes bring the client to,
+     * or for a resync marker the version that a listing made after receiving
+     * it is at least as recent as
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    /**
+     * @return the items that are in the catalog now, and were added or
+     * changed since the version asked for
+     */
+    public List<Item> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the items that are no longer in the catalog, with only their
+     * name and price set
+     */
+    public List<Item> getRemoved() {
+        return removed;
+    }
+}
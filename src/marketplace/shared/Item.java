@@ -1,7 +1,13 @@
 package marketplace.shared;
 
-public interface Item extends Comparable{
+public interface Item extends Comparable<Item> {
         
+    /**
+     * @return the itemid the database generated for the item, or 0 if it
+     * has not been stored
+     */
+    public int getId();
+    public void setId(int id);
     public String getName();
     public void setName(String name);
     public float getPrice();
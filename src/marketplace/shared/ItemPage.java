@@ -0,0 +1,35 @@
+package marketplace.shared;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * One page of items returned by Marketplace.listItems(ItemQuery). If there
+ * are more items matching the query, the cursor can be put in the next query
+ * to continue where this page ended.
+ */
+public class ItemPage implements Serializable {
+    private final List<Item> items;
+    private final String cursor;
+
+    public ItemPage(List<Item> items, String cursor) {
+        this.items = items;
+        this.cursor = cursor;
+    }
+
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the continuation token for the next page, or null if this is
+     * the last page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean hasMore() {
+        return cursor != null;
+    }
+}
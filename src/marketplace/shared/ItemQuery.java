@@ -0,0 +1,108 @@
+package marketplace.shared;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * Describes one page of items to list: which items to include (a name
+ * prefix and a price range), in which order, where to start and how many
+ * items to return.
+ *
+ * The first page is fetched with no cursor, the following pages by passing
+ * the cursor of the previous ItemPage. The offset is only used when no cursor
+ * is given, and the server has to step over that many items to find the
+ * page, so it is only meant for jumping a short way.
+ *
+ * A query received over RMI is checked again when it is deserialized, since
+ * that sets the fields without going through the setters.
+ */
+public class ItemQuery implements Serializable {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 500;
+    private String namePrefix;
+    private float minPrice = Float.NEGATIVE_INFINITY;
+    private float maxPrice = Float.POSITIVE_INFINITY;
+    private ItemSortOrder sortOrder = ItemSortOrder.NAME_ASCENDING;
+    private int offset;
+    private String cursor;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    public ItemQuery() {
+    }
+
+    public ItemQuery(String namePrefix, int pageSize) {
+        this.namePrefix = namePrefix;
+        setPageSize(pageSize);
+    }
+
+    public String getNamePrefix() {
+        return namePrefix;
+    }
+
+    public void setNamePrefix(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    public float getMinPrice() {
+        return minPrice;
+    }
+
+    public void setMinPrice(float minPrice) {
+        this.minPrice = minPrice;
+    }
+
+    public float getMaxPrice() {
+        return maxPrice;
+    }
+
+    public void setMaxPrice(float maxPrice) {
+        this.maxPrice = maxPrice;
+    }
+
+    public ItemSortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public void setSortOrder(ItemSortOrder sortOrder) {
+        this.sortOrder = sortOrder;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = Math.max(0, offset);
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            this.pageSize = DEFAULT_PAGE_SIZE;
+        } else {
+            this.pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        setPageSize(pageSize);
+        setOffset(offset);
+        if (sortOrder == null) {
+            sortOrder = ItemSortOrder.NAME_ASCENDING;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package marketplace.shared;
+
+/**
+ * The orders in which a page of items can be listed.
+ */
+public enum ItemSortOrder {
+    NAME_ASCENDING, NAME_DESCENDING, PRICE_ASCENDING, PRICE_DESCENDING;
+}
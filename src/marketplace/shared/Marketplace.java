@@ -1,18 +1,36 @@
-package marketplace.shared;
-
-import java.rmi.Remote;
-import java.rmi.RemoteException;
-import java.util.List;
-
-public interface Marketplace extends Remote {
-    public MarketplaceAccount registerCustomer(MarketplaceClient client, 
-            String password, String bankAccountName) throws RemoteException,
-                                                RegisterCustomerException;
-    public boolean unregisterCustomer(String customerName) 
-            throws RemoteException; 
-    public List<Item> listItems() throws RemoteException;
-    public MarketplaceAccount login(MarketplaceClient client, String name, 
-            String password) 
-            throws RemoteException, BadCredentialsException;
-    public void logout(String name) throws RemoteException;
-}
+package marketplace.shared;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface Marketplace extends Remote {
+    public MarketplaceAccount registerCustomer(MarketplaceClient client, 
+            String password, String bankAccountName) throws RemoteException,
+                                                RegisterCustomerException;
+    public boolean unregisterCustomer(String customerName) 
+            throws RemoteException; 
+    public List<Item> listItems() throws RemoteException;
+    public ItemPage listItems(ItemQuery query) throws RemoteException;
+    /**
+     * Searches the names of the items for sale. Every word of the query has
+     * to occur in the name, at the start of one of its words if the query
+     * word is shorter than three characters.
+     *
+     * @param limit the most items to return, at most 500
+     * @return the matching items, best matching names first and the
+     * cheapest first of each name
+     */
+    public List<Item> search(String query, int limit) throws RemoteException;
+    /**
+     * @param version the version of the client's copy of the catalog, from
+     * the previous call, or CatalogChanges.NO_VERSION
+     * @return the items added and removed since that version, or a resync
+     * marker if the client has to list the whole catalog again
+     */
+    public CatalogChanges changesSince(long version) throws RemoteException;
+    public MarketplaceAccount login(MarketplaceClient client, String name, 
+            String password) 
+            throws RemoteException, BadCredentialsException;
+    public void logout(String name) throws RemoteException;
+}
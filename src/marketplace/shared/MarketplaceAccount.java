@@ -10,5 +10,12 @@ public interface MarketplaceAccount extends Remote {
     public void addProduct(String productName, float price) 
             throws RemoteException, DuplicateItemException;
     public void buyProduct(Item product) throws RemoteException;
+    public PurchaseReceipt buyProduct(String productName, float price)
+            throws RemoteException, RejectedException, NoSuchItemException;
+    /**
+     * Buys the item with the id it was listed with, see Item.getId.
+     */
+    public PurchaseReceipt buyProduct(int itemId)
+            throws RemoteException, RejectedException, NoSuchItemException;
     public void addWish(String itemName, float maxPrice) throws RemoteException;
 }
@@ -0,0 +1,7 @@
+package marketplace.shared;
+
+public class NoSuchItemException extends Exception {
+    public NoSuchItemException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,46 @@
+package marketplace.shared;
+
+import java.io.Serializable;
+
+/**
+ * Confirmation of a purchase, returned by MarketplaceAccount.buyProduct.
+ */
+public class PurchaseReceipt implements Serializable {
+    private final String itemName;
+    private final float price;
+    private final String sellerName;
+    private final String buyerName;
+    private final long purchaseTime;
+
+    public PurchaseReceipt(String itemName, float price, String sellerName,
+            String buyerName, long purchaseTime) {
+        this.itemName = itemName;
+        this.price = price;
+        this.sellerName = sellerName;
+        this.buyerName = buyerName;
+        this.purchaseTime = purchaseTime;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public float getPrice() {
+        return price;
+    }
+
+    public String getSellerName() {
+        return sellerName;
+    }
+
+    public String getBuyerName() {
+        return buyerName;
+    }
+
+    /**
+     * @return the time of the purchase in milliseconds since the epoch
+     */
+    public long getPurchaseTime() {
+        return purchaseTime;
+    }
+}
@@ -1,11 +1,11 @@
-package marketplace.shared;
-
-/**
- *
- * @author Kalle
- */
-public class RegisterCustomerException extends Exception{
-    public RegisterCustomerException(String message){
-        super(message);
-    }
-}
+package marketplace.shared;
+
+/**
+ *
+ * @author Kalle
+ */
+public class RegisterCustomerException extends Exception{
+    public RegisterCustomerException(String message){
+        super(message);
+    }
+}
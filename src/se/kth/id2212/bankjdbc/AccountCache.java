@@ -0,0 +1,178 @@
+package se.kth.id2212.bankjdbc;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The accounts BankImpl keeps in memory, bounded both in number and in how
+ * long an account may go unused.
+ *
+ * Entries are kept in access order, so the least recently used account is
+ * always first. Each put evicts from the front until the cache is within its
+ * size, and each get or put first evicts the accounts that have been idle for
+ * longer than the idle limit. An evicted account is unexported, so its remote
+ * object can be collected; a client still holding its stub gets a
+ * NoSuchObjectException and has to ask the bank for the account again, which
+ * loads it from the database.
+ *
+ * An account that is in the middle of a remote call is not evicted. It is
+ * moved to the back and evicted later instead.
+ */
+public class AccountCache {
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 10 * 60 * 1000;
+    private final int maxSize;
+    private final long maxIdleMillis;
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public AccountCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    public AccountCache(int maxSize, long maxIdleMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.maxSize = maxSize;
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * @return the cached account, or null if it has to be loaded
+     */
+    public synchronized AccountImpl get(String name) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.lastAccess = now;
+        return entry.account;
+    }
+
+    public synchronized void put(String name, AccountImpl account) {
+        long now = System.currentTimeMillis();
+        evictIdle(now);
+        Entry previous = entries.put(name, new Entry(account, now));
+        if (previous != null && previous.account != account) {
+            unexport(previous.account, true);
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        int busy = 0;
+        while (entries.size() - busy > maxSize && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entry.account == account) {
+                continue;
+            }
+            if (unexport(entry.account, false)) {
+                eldest.remove();
+                evictions++;
+            } else {
+                busy++;
+            }
+        }
+    }
+
+    /**
+     * Removes the account and unexports it even if a call is in progress.
+     *
+     * @return the removed account, or null if it was not cached
+     */
+    public synchronized AccountImpl remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry == null) {
+            return null;
+        }
+        unexport(entry.account, true);
+        return entry.account;
+    }
+
+    /**
+     * @return true if the account is the one cached under its name, false if
+     * it has been evicted or replaced since it was returned by get
+     */
+    public synchronized boolean isCurrent(AccountImpl account) {
+        Entry entry = entries.get(account.getName());
+        return entry != null && entry.account == account;
+    }
+
+    public synchronized List<String> names() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AccountCache[size=" + entries.size() + "/" + maxSize
+                + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            if (now - entry.lastAccess < maxIdleMillis) {
+                //Access order, so every entry after this one is more recent
+                return;
+            }
+            if (unexport(entry.account, false)) {
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * @return false if the account is busy with a call and force is false
+     */
+    private static boolean unexport(AccountImpl account, boolean force) {
+        try {
+            return UnicastRemoteObject.unexportObject(account, force);
+        } catch (NoSuchObjectException ex) {
+            //Already unexported
+            return true;
+        }
+    }
+
+    private static final class Entry {
+        final AccountImpl account;
+        long lastAccess;
+
+        Entry(AccountImpl account, long lastAccess) {
+            this.account = account;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -1,109 +1,195 @@
-package se.kth.id2212.bankjdbc;
-
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-
-@SuppressWarnings("serial")
-public class AccountImpl extends UnicastRemoteObject implements Account {
-
-    private float balance;
-    private String name;
-    private PreparedStatement updateStatement;
-
-    public AccountImpl(String name, float balance, Connection connection)
-            throws RemoteException, RejectedException {
-        super();
-        this.name = name;
-        this.balance = balance;
-        try {
-            updateStatement = connection.prepareStatement("UPDATE "
-                    + BankImpl.TABLE_NAME + " SET balance = ? WHERE name= ? ");
-            updateStatement.setString(2, name);
-        } catch (SQLException sqle) {
-            throw new RejectedException("Unable to instantiate account", sqle);
-        }
-    }
-
-    public AccountImpl(String name, Connection connection)
-            throws RemoteException, RejectedException {
-        this(name, 0, connection);
-    }
-
-    @Override
-    public synchronized void deposit(float value) throws RemoteException,
-            RejectedException {
-        if (value < 0) {
-            throw new RejectedException("Rejected: Account " + name
-                    + ": Illegal value: " + value);
-        }
-
-        boolean success = false;
-        try {
-            //We update the balance in the java object, but have not yet done so
-            //in the database
-            balance += value;
-            updateStatement.setDouble(1, balance);
-            int rows = updateStatement.executeUpdate();
-            if (rows != 1) {
-                throw new RejectedException("Unable to deposit into account: " + name);
-            } else {
-                //if one row was updated, we have succeeded in updating
-                success = true;
-            }
-            System.out.println("Transaction: Account " + name + ": deposit: $"
-                    + value + ", balance: $" + balance);
-        } catch (SQLException sqle) {
-            throw new RejectedException("Unable to deposit into account: " + name, sqle);
-        } finally {
-            if (!success) {
-                //No success means we rollback the update to database, then we
-                //should also rollback the update to the balance in this object
-                //(we want to keep the java model and the database in sync)
-                balance -= value;
-            }
-        }
-    }
-
-    @Override
-    public synchronized void withdraw(float value) throws RemoteException,
-            RejectedException {
-        if (value < 0) {
-            throw new RejectedException("Rejected: Account " + name
-                    + ": Illegal value: " + value);
-        }
-
-        if ((balance - value) < 0) {
-            throw new RejectedException("Rejected: Account " + name
-                    + ": Negative balance on withdraw: "
-                    + (balance - value));
-        }
-
-        boolean success = false;
-        try {
-            balance -= value;
-            updateStatement.setDouble(1, balance);
-            int rows = updateStatement.executeUpdate();
-            if (rows != 1) {
-                throw new RejectedException("Unable to deposit into account: " + name);
-            } else {
-                success = true;
-            }
-            System.out.println("Transaction: Account " + name + ": deposit: $"
-                    + value + ", balance: $" + balance);
-        } catch (SQLException sqle) {
-            throw new RejectedException("Unable to deposit into account: " + name, sqle);
-        } finally {
-            if (!success) {
-                balance += value;
-            }
-        }
-    }
-
-    @Override
-    public synchronized float getBalance() throws RemoteException {
-        return balance;
-    }
-}
+package se.kth.id2212.bankjdbc;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import se.kth.id2212.logging.Level;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+@SuppressWarnings("serial")
+public class AccountImpl extends UnicastRemoteObject implements Account {
+
+    private static final Log LOG = Log.get(AccountImpl.class);
+    private static final String UPDATE_BALANCE = "UPDATE "
+            + BankImpl.TABLE_NAME + " SET balance = ? WHERE name= ? ";
+    private static final OperationMetrics DEPOSIT = Metrics.operation("Account", "deposit");
+    private static final OperationMetrics WITHDRAW = Metrics.operation("Account", "withdraw");
+    private static final OperationMetrics GET_BALANCE = Metrics.operation("Account", "getBalance");
+    //Time spent waiting for the monitor of an account, also by BankImpl
+    static final OperationMetrics LOCK_WAIT = Metrics.operation("Account", "lockWait");
+    private float balance;
+    private String name;
+    private ConnectionPool pool;
+    //null in SYNC durability mode
+    private BalanceJournal journal;
+
+    public AccountImpl(String name, float balance, ConnectionPool pool)
+            throws RemoteException {
+        this(name, balance, pool, null);
+    }
+
+    /**
+     * @param journal the journal balance changes are committed to, or null to
+     * update the database directly on every change
+     */
+    public AccountImpl(String name, float balance, ConnectionPool pool,
+            BalanceJournal journal) throws RemoteException {
+        super();
+        this.name = name;
+        this.balance = balance;
+        this.pool = pool;
+        this.journal = journal;
+    }
+
+    public AccountImpl(String name, ConnectionPool pool)
+            throws RemoteException {
+        this(name, 0, pool);
+    }
+
+    /**
+     * Makes the in-memory balance durable. With a journal it is committed to
+     * the journal, which writes it to the database later. Otherwise it is
+     * written to the database on a connection borrowed from the pool for just
+     * this statement.
+     *
+     * @return the number of rows updated
+     */
+    private int storeBalance() throws SQLException, IOException {
+        if (journal != null) {
+            journal.commit(name, balance);
+            return 1;
+        }
+        try (PooledConnection connection = pool.acquire()) {
+            PreparedStatement updateStatement = connection.prepare(UPDATE_BALANCE);
+            updateStatement.setDouble(1, balance);
+            updateStatement.setString(2, name);
+            return connection.executeUpdate(updateStatement);
+        }
+    }
+
+    @Override
+    public void deposit(float value) throws RemoteException,
+            RejectedException {
+        long start = DEPOSIT.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                if (value < 0) {
+                    throw new RejectedException("Rejected: Account " + name
+                            + ": Illegal value: " + value);
+                }
+
+                boolean success = false;
+                try {
+                    //We update the balance in the java object, but have not yet done so
+                    //in the database
+                    balance += value;
+                    int rows = storeBalance();
+                    if (rows != 1) {
+                        throw new RejectedException("Unable to deposit into account: " + name);
+                    } else {
+                        //if one row was updated, we have succeeded in updating
+                        success = true;
+                    }
+                    if (LOG.isEnabled(Level.DEBUG)) {
+                        LOG.debug("Transaction: Account {}: deposit: ${}, balance: ${}",
+                                name, value, balance);
+                    }
+                } catch (SQLException | IOException ex) {
+                    throw new RejectedException("Unable to deposit into account: " + name, ex);
+                } finally {
+                    if (!success) {
+                        //No success means we rollback the update to database, then we
+                        //should also rollback the update to the balance in this object
+                        //(we want to keep the java model and the database in sync)
+                        balance -= value;
+                    }
+                }
+            }
+            error = false;
+        } finally {
+            DEPOSIT.finish(start, error);
+        }
+    }
+
+    @Override
+    public void withdraw(float value) throws RemoteException,
+            RejectedException {
+        long start = WITHDRAW.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                if (value < 0) {
+                    throw new RejectedException("Rejected: Account " + name
+                            + ": Illegal value: " + value);
+                }
+
+                if ((balance - value) < 0) {
+                    throw new RejectedException("Rejected: Account " + name
+                            + ": Negative balance on withdraw: "
+                            + (balance - value));
+                }
+
+                boolean success = false;
+                try {
+                    balance -= value;
+                    int rows = storeBalance();
+                    if (rows != 1) {
+                        throw new RejectedException("Unable to deposit into account: " + name);
+                    } else {
+                        success = true;
+                    }
+                    if (LOG.isEnabled(Level.DEBUG)) {
+                        LOG.debug("Transaction: Account {}: withdrawal: ${}, balance: ${}",
+                                name, value, balance);
+                    }
+                } catch (SQLException | IOException ex) {
+                    throw new RejectedException("Unable to deposit into account: " + name, ex);
+                } finally {
+                    if (!success) {
+                        balance += value;
+                    }
+                }
+            }
+            error = false;
+        } finally {
+            WITHDRAW.finish(start, error);
+        }
+    }
+
+    @Override
+    public float getBalance() throws RemoteException {
+        long start = GET_BALANCE.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                error = false;
+                return balance;
+            }
+        } finally {
+            GET_BALANCE.finish(start, error);
+        }
+    }
+
+    /**
+     * Sets the balance after BankImpl has made it durable. The caller holds
+     * the lock of this account.
+     */
+    void setBalance(float balance) {
+        this.balance = balance;
+    }
+
+    String getName() {
+        return name;
+    }
+}
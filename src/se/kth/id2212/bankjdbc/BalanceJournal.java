@@ -0,0 +1,386 @@
+package se.kth.id2212.bankjdbc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import se.kth.id2212.logging.Log;
+
+/**
+ * Write-behind log of account balances, used in GROUP_COMMIT durability mode.
+ *
+ * A deposit or withdraw hands the new balance to commit, which returns once
+ * the balance is in the journal file and the file has been forced to disk.
+ * One writer thread does all file I/O: it takes every commit that is waiting,
+ * writes them together and forces the file once, so concurrent changes share
+ * a single fsync (group commit). A change to several accounts in one commit
+ * is written as one record and so is replayed all or nothing.
+ *
+ * Every flush interval the writer also stores the latest balance of each
+ * changed account in the ACCOUNT table with one batched transaction. It then
+ * truncates the journal, since everything in it is now in the database.
+ *
+ * Each record is its payload length, a CRC32 of the payload and the payload
+ * (the number of entries followed by name and balance pairs). On startup,
+ * recover replays the records up to the first incomplete or corrupt one,
+ * which can only be a write that was never acknowledged.
+ *
+ * close queues a STOP marker behind the waiting commits rather than
+ * interrupting the writer, since interrupting a thread in FileChannel I/O
+ * closes the channel.
+ */
+public class BalanceJournal {
+    private static final Log LOG = Log.get(BalanceJournal.class);
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final String UPDATE_BALANCE = "UPDATE "
+            + BankImpl.TABLE_NAME + " SET balance = ? WHERE name = ?";
+    //Queued by close, the writer stops once it has written everything before
+    private static final PendingCommit STOP = new PendingCommit(
+            Collections.<String, Float>emptyMap());
+    private final File file;
+    private final ConnectionPool pool;
+    private final long flushIntervalMillis;
+    private final FileChannel channel;
+    private final BlockingQueue<PendingCommit> pending = new LinkedBlockingQueue<>();
+    //Balances in the journal that are not yet in the database
+    private final Map<String, Float> unflushed = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    //Guarded by pending, so that no commit is queued after STOP
+    private boolean closed;
+
+    public BalanceJournal(File file, ConnectionPool pool) throws IOException {
+        this(file, pool, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public BalanceJournal(File file, ConnectionPool pool,
+            long flushIntervalMillis) throws IOException {
+        this.file = file;
+        this.pool = pool;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "balance-journal-writer");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Stores the balances left in the journal by a previous run in the
+     * database, empties the journal and starts the writer thread. Must be
+     * called once before the first commit.
+     *
+     * @return the number of accounts whose balance was recovered
+     */
+    public int recover() throws IOException, SQLException {
+        Map<String, Float> balances = readJournal(file);
+        if (!balances.isEmpty()) {
+            storeBalances(balances);
+        }
+        channel.truncate(0);
+        channel.force(true);
+        writer.start();
+        return balances.size();
+    }
+
+    /**
+     * Makes the balance durable, returning once it has been forced to disk
+     * together with whatever other commits were waiting.
+     */
+    public void commit(String accountName, float balance) throws IOException {
+        commit(Collections.singletonMap(accountName, balance));
+    }
+
+    /**
+     * Makes all the balances durable as one record, so after a crash either
+     * all or none of them are recovered.
+     */
+    public void commit(Map<String, Float> balances) throws IOException {
+        PendingCommit commit = new PendingCommit(balances);
+        synchronized (pending) {
+            if (closed) {
+                throw new IOException("Balance journal is closed");
+            }
+            pending.add(commit);
+        }
+        commit.await();
+        commits.incrementAndGet();
+    }
+
+    /**
+     * @return the balance of the account that is journaled but not yet
+     * stored in the database, or null if the database is up to date
+     */
+    public Float getUnflushedBalance(String accountName) {
+        return unflushed.get(accountName);
+    }
+
+    /**
+     * Drops the journaled balance of an account that has been deleted, so
+     * it is neither stored in the database nor returned for a new account
+     * with the same name.
+     */
+    public void forget(String accountName) {
+        unflushed.remove(accountName);
+    }
+
+    /**
+     * Writes what is waiting, stores everything in the database and stops
+     * the writer thread.
+     */
+    public void close() throws IOException {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.add(STOP);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    /**
+     * @return the number of times the journal has been forced to disk; the
+     * commit count divided by this is the average group size
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public int getUnflushedCount() {
+        return unflushed.size();
+    }
+
+    private void writeLoop() {
+        long nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+        while (true) {
+            List<PendingCommit> group = new ArrayList<>();
+            try {
+                long wait = Math.max(1, nextFlush - System.currentTimeMillis());
+                PendingCommit first = pending.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    group.add(first);
+                }
+            } catch (InterruptedException ex) {
+                //Not used to stop the writer, see close
+                Thread.interrupted();
+            }
+            pending.drainTo(group);
+            //STOP is always the last commit queued
+            boolean stop = group.remove(STOP);
+            if (!group.isEmpty()) {
+                writeGroup(group);
+            }
+            if (stop) {
+                flush();
+                return;
+            }
+            if (System.currentTimeMillis() >= nextFlush) {
+                flush();
+                nextFlush = System.currentTimeMillis() + flushIntervalMillis;
+            }
+        }
+    }
+
+    private void writeGroup(List<PendingCommit> group) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (PendingCommit commit : group) {
+                writeRecord(out, commit.balances);
+            }
+            out.flush();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            syncs.incrementAndGet();
+            for (PendingCommit commit : group) {
+                unflushed.putAll(commit.balances);
+                commit.complete(null);
+            }
+        } catch (IOException ex) {
+            for (PendingCommit commit : group) {
+                commit.complete(ex);
+            }
+        }
+    }
+
+    /**
+     * Stores the unflushed balances in the database and, if that succeeds,
+     * empties the journal. On failure everything stays in the journal and is
+     * tried again at the next flush.
+     */
+    private void flush() {
+        Map<String, Float> balances = new HashMap<>(unflushed);
+        try {
+            if (balances.isEmpty()) {
+                //Unless it still holds balances of deleted accounts
+                if (channel.size() > 0) {
+                    channel.truncate(0);
+                    channel.force(false);
+                }
+                return;
+            }
+            storeBalances(balances);
+            unflushed.clear();
+            channel.truncate(0);
+            channel.force(false);
+            flushes.incrementAndGet();
+        } catch (SQLException | IOException ex) {
+            LOG.error("Could not flush balance journal", ex);
+        }
+    }
+
+    private void storeBalances(Map<String, Float> balances) throws SQLException {
+        try (PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement updateStatement = pooled.prepare(UPDATE_BALANCE);
+                for (Map.Entry<String, Float> balance : balances.entrySet()) {
+                    updateStatement.setDouble(1, balance.getValue());
+                    updateStatement.setString(2, balance.getKey());
+                    updateStatement.addBatch();
+                }
+                pooled.executeBatch(updateStatement);
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out,
+            Map<String, Float> balances) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeInt(balances.size());
+        for (Map.Entry<String, Float> balance : balances.entrySet()) {
+            payload.writeUTF(balance.getKey());
+            payload.writeFloat(balance.getValue());
+        }
+        payload.flush();
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeLong(crc.getValue());
+        out.write(data);
+    }
+
+    /**
+     * @return the latest balance of every account in the journal file
+     */
+    static Map<String, Float> readJournal(File file) throws IOException {
+        Map<String, Float> balances = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return balances;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] data;
+                long expectedCrc;
+                try {
+                    int length = in.readInt();
+                    expectedCrc = in.readLong();
+                    if (length < 0 || length > file.length()) {
+                        break;
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException ex) {
+                    //End of the journal, or a record that was never completed
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (crc.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(
+                        new java.io.ByteArrayInputStream(data));
+                int entries = record.readInt();
+                for (int i = 0; i < entries; i++) {
+                    balances.put(record.readUTF(), record.readFloat());
+                }
+            }
+        }
+        return balances;
+    }
+
+    private static final class PendingCommit {
+        final Map<String, Float> balances;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        PendingCommit(Map<String, Float> balances) {
+            this.balances = balances;
+        }
+
+        void complete(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for commit");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
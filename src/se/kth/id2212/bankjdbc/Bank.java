@@ -1,16 +1,31 @@
-package se.kth.id2212.bankjdbc;
-
-import java.rmi.Remote;
-import java.rmi.RemoteException;
-import java.util.Set;
-
-public interface Bank extends Remote {
-
-    public Account newAccount(String name) throws RemoteException, RejectedException;
-
-    public Account getAccount(String name) throws RemoteException, RejectedException;
-
-    public boolean deleteAccount(String name) throws RemoteException, RejectedException;
-
-    public String[] listAccounts() throws RemoteException;
-}
+package se.kth.id2212.bankjdbc;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Set;
+
+public interface Bank extends Remote {
+
+    public Account newAccount(String name) throws RemoteException, RejectedException;
+
+    public Account getAccount(String name) throws RemoteException, RejectedException;
+
+    public boolean deleteAccount(String name) throws RemoteException, RejectedException;
+
+    public String[] listAccounts() throws RemoteException;
+
+    /**
+     * Moves the amount from one account to another in one database
+     * transaction. Either both balances change or neither does.
+     */
+    public void transfer(String from, String to, float amount)
+            throws RemoteException, RejectedException;
+
+    /**
+     * Performs all the transfers in one database transaction, in the given
+     * order. If any of them would overdraw an account none of them is made.
+     */
+    public void transferAll(List<Transfer> transfers)
+            throws RemoteException, RejectedException;
+}
@@ -1,209 +1,476 @@
-package se.kth.id2212.bankjdbc;
-
-import java.rmi.RemoteException;
-import java.rmi.server.UnicastRemoteObject;
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.DriverManager;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.PreparedStatement;
-import java.sql.Statement;
-import java.util.HashMap;
-import java.util.Map;
-
-@SuppressWarnings("serial")
-public class BankImpl extends UnicastRemoteObject implements Bank {
-
-    public static final String TABLE_NAME = "ACCOUNT";
-    private PreparedStatement createAccountStatement;
-    private PreparedStatement findAccountStatement;
-    private PreparedStatement deleteAccountStatement;
-    //Although we now have all the data about accounts in a database now, we
-    //still have this HashMap as a in-memory cache
-    private Map<String, Account> accounts = new HashMap<>();
-    private String datasource;
-    private String dbms;
-
-    public BankImpl(String datasource, String dbms)
-            throws RemoteException, ClassNotFoundException, SQLException {
-        //UnicastRemoteObject constructor call
-        super();
-        this.datasource = datasource;
-        this.dbms = dbms;
-        Connection connection = createDatasource();
-        prepareStatements(connection);
-    }
-
-    private Connection createDatasource() throws ClassNotFoundException, SQLException {
-        Connection connection = getConnection();
-        boolean exist = false;
-        //getTables is in SDK library, that the table names are held in column 3
-        //is specified in the documentation
-        int tableNameColumn = 3;
-        DatabaseMetaData dbm = connection.getMetaData();
-        //Trying to find the table ACCOUNT
-        for (ResultSet rs = dbm.getTables(null, null, null, null); rs.next();) {
-            if (rs.getString(tableNameColumn).equals(TABLE_NAME)) {
-                exist = true;
-                rs.close();
-                break;
-            }
-        }
-        if (!exist) {
-            Statement statement = connection.createStatement();
-            statement.executeUpdate("CREATE TABLE " + TABLE_NAME
-                    + " (name VARCHAR(32) PRIMARY KEY, balance FLOAT)");
-        }
-        return connection;
-    }
-
-    private Connection getConnection()
-            throws ClassNotFoundException, SQLException {
-        if (dbms.equalsIgnoreCase("access")) {
-            Class.forName("sun.jdbc.odbc.JdbcOdbcDriver");
-            return DriverManager.getConnection("jdbc:odbc:" + datasource);
-        } else if (dbms.equalsIgnoreCase("cloudscape")) {
-            Class.forName("COM.cloudscape.core.RmiJdbcDriver");
-            return DriverManager.getConnection(
-                    "jdbc:cloudscape:rmi://localhost:1099/" + datasource
-                    + ";create=true;");
-        } else if (dbms.equalsIgnoreCase("pointbase")) {
-            Class.forName("com.pointbase.jdbc.jdbcUniversalDriver");
-            return DriverManager.getConnection(
-                    "jdbc:pointbase:server://localhost:9092/" + datasource
-                    + ",new", "PBPUBLIC", "PBPUBLIC");
-        } else if (dbms.equalsIgnoreCase("derby")) {
-            Class.forName("org.apache.derby.jdbc.ClientXADataSource");
-            return DriverManager.getConnection(
-                    "jdbc:derby://localhost:1527/" + datasource + ";create=true");
-        } else if (dbms.equalsIgnoreCase("mysql")) {
-            Class.forName("com.mysql.jdbc.Driver");
-            return DriverManager.getConnection(
-                    "jdbc:mysql://localhost:3306/" + datasource, "root", "javajava");
-        } else {
-            return null;
-        }
-    }
-
-    private void prepareStatements(Connection connection) throws SQLException {
-        createAccountStatement = connection.prepareStatement("INSERT INTO "
-                + TABLE_NAME + " VALUES (?, 0)");
-        findAccountStatement = connection.prepareStatement("SELECT * from "
-                + TABLE_NAME + " WHERE NAME = ?");
-        deleteAccountStatement = connection.prepareStatement("DELETE FROM "
-                + TABLE_NAME + " WHERE name = ?");
-    }
-
-    //synchronized because this program uses RMI, and more than one thread could
-    //enter some of these methods. But this also results in the server not being
-    //really multi-threaded anymore. We could use another way of access control
-    //for database operations than synchronized, and that is transactions!
-    @Override
-    public synchronized String[] listAccounts() {
-        return accounts.keySet().toArray(new String[1]);
-    }
-
-    @Override
-    public synchronized Account newAccount(String name) throws RemoteException,
-            RejectedException {
-        //accounts is the HashTable (in-memory caching)
-        AccountImpl account = (AccountImpl) accounts.get(name);
-        if (account != null) {
-            //If account not null then the account already exists in our cache
-            //throw exception and abort execution of this method
-            System.out.println("Account [" + name + "] exists!!!");
-            throw new RejectedException("Rejected: Bank:  Account for: "
-                    + name + " already exists: " + account);
-        }
-        ResultSet result = null;
-        try {
-            findAccountStatement.setString(1, name);
-            result = findAccountStatement.executeQuery();
-
-            if (result.next()) {
-                // account exists, instantiate, put in cache and throw exception.
-                account = new AccountImpl(name, result.getFloat("balance"),
-                        getConnection());
-                accounts.put(name, account);
-                throw new RejectedException("Rejected: Account for: " + name
-                        + " already exists");
-            }
-            result.close();
-
-            //If we get all the way here without throwing exception (and aborting),
-            //we can create account.
-            createAccountStatement.setString(1, name);
-            int rows = createAccountStatement.executeUpdate();
-            if (rows == 1) {
-                account = new AccountImpl(name, getConnection());
-                accounts.put(name, account);
-                System.out.println("Bank: Account: " + account
-                        + " has been created for " + name);
-                return account;
-            } else {
-                //we didn't update one row
-                throw new RejectedException("Cannot create an account for " + name);
-            }
-        } catch (SQLException | ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new RejectedException("Cannot create an account for " + name, e);
-        }
-    }
-
-    @Override
-    public synchronized Account getAccount(String name) throws RemoteException,
-            RejectedException {
-        if (name == null) {
-            return null;
-        }
-
-        Account acct = accounts.get(name);
-        if (acct == null) {
-            try {
-                findAccountStatement.setString(1, name);
-                ResultSet result = findAccountStatement.executeQuery();
-                if (result.next()) {
-                    acct = new AccountImpl(result.getString("name"),
-                            result.getFloat("balance"), getConnection());
-                    result.close();
-                    accounts.put(name, acct);
-                } else {
-                    return null;
-                }
-            } catch (SQLException | ClassNotFoundException e) {
-                throw new RejectedException("Unable to find account for " + name, e);
-            }
-        }
-        return acct;
-    }
-
-    @Override
-    public synchronized boolean deleteAccount(String name) throws RejectedException {
-        if (!hasAccount(name)) {
-            return false;
-        }
-        accounts.remove(name);
-        try {
-            deleteAccountStatement.setString(1, name);
-            int rows = deleteAccountStatement.executeUpdate();
-            if (rows != 1) {
-                throw new RejectedException("Unable to delete account..." + name);
-            }
-        } catch (SQLException e) {
-            System.out.println("Unable to delete account for " + name + ": "
-                    + e.getMessage());
-            throw new RejectedException("Unable to delete account..." + name, e);
-        }
-        System.out.println("Bank: Account for " + name + " has been deleted");
-        return true;
-    }
-
-    private boolean hasAccount(String name) {
-        if (accounts.get(name) == null) {
-            return false;
-        } else {
-            return true;
-        }
-    }
-}
+package se.kth.id2212.bankjdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+@SuppressWarnings("serial")
+public class BankImpl extends UnicastRemoteObject implements Bank {
+
+    private static final Log LOG = Log.get(BankImpl.class);
+    public static final String TABLE_NAME = "ACCOUNT";
+    private static final String CREATE_ACCOUNT = "INSERT INTO "
+            + TABLE_NAME + " VALUES (?, 0)";
+    private static final String FIND_ACCOUNT = "SELECT * from "
+            + TABLE_NAME + " WHERE NAME = ?";
+    private static final String DELETE_ACCOUNT = "DELETE FROM "
+            + TABLE_NAME + " WHERE name = ?";
+    private static final String LIST_ACCOUNTS = "SELECT name FROM "
+            + TABLE_NAME;
+    private static final String UPDATE_BALANCE = "UPDATE "
+            + TABLE_NAME + " SET balance = ? WHERE name = ?";
+    public static final String DEFAULT_JOURNAL = "bank-journal.log";
+    private static final OperationMetrics NEW_ACCOUNT = Metrics.operation("Bank", "newAccount");
+    private static final OperationMetrics GET_ACCOUNT = Metrics.operation("Bank", "getAccount");
+    private static final OperationMetrics DELETE_ACCOUNT_CALL = Metrics.operation("Bank", "deleteAccount");
+    private static final OperationMetrics LIST_ACCOUNTS_CALL = Metrics.operation("Bank", "listAccounts");
+    private static final OperationMetrics TRANSFER = Metrics.operation("Bank", "transfer");
+    private static final OperationMetrics TRANSFER_ALL = Metrics.operation("Bank", "transferAll");
+    //Time spent waiting for the monitor of the bank
+    private static final OperationMetrics LOCK_WAIT = Metrics.operation("Bank", "lockWait");
+    private final ConnectionPool pool;
+    //null in SYNC durability mode
+    private final BalanceJournal journal;
+    //Although we now have all the data about accounts in a database now, we
+    //still keep the recently used accounts in memory
+    private final AccountCache accounts = new AccountCache();
+
+    public BankImpl(String datasource, String dbms)
+            throws RemoteException, ClassNotFoundException, SQLException {
+        this(new ConnectionPool(datasource, dbms));
+    }
+
+    /**
+     * All database access of the bank and of its accounts goes through the
+     * pool, so its size bounds the number of connections the bank opens.
+     */
+    public BankImpl(ConnectionPool pool) throws RemoteException, SQLException {
+        //UnicastRemoteObject constructor call
+        super();
+        this.pool = pool;
+        this.journal = null;
+        createDatasource();
+        registerStats();
+    }
+
+    /**
+     * In GROUP_COMMIT mode balance changes are committed to a journal in the
+     * given file and written to the database in batches. Balances left in the
+     * journal by a previous run are stored in the database before the bank
+     * accepts any call.
+     */
+    public BankImpl(ConnectionPool pool, DurabilityMode durability,
+            File journalFile) throws RemoteException, SQLException, IOException {
+        super();
+        this.pool = pool;
+        createDatasource();
+        if (durability == DurabilityMode.GROUP_COMMIT) {
+            journal = new BalanceJournal(journalFile, pool);
+            int recovered = journal.recover();
+            LOG.info("Bank: recovered {} balances from {}", recovered,
+                    journalFile);
+        } else {
+            journal = null;
+        }
+        registerStats();
+    }
+
+    /**
+     * Makes the statistics of the pool, the account cache and the journal
+     * available through Metrics.
+     */
+    private void registerStats() {
+        Metrics.registerStats("ConnectionPool", "Bank", pool);
+        Metrics.registerStats("AccountCache", "Bank", accounts);
+        if (journal != null) {
+            Metrics.registerStats("BalanceJournal", "Bank", journal);
+        }
+    }
+
+    private void createDatasource() throws SQLException {
+        try (PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            boolean exist = false;
+            //getTables is in SDK library, that the table names are held in column 3
+            //is specified in the documentation
+            int tableNameColumn = 3;
+            DatabaseMetaData dbm = connection.getMetaData();
+            //Trying to find the table ACCOUNT
+            for (ResultSet rs = dbm.getTables(null, null, null, null); rs.next();) {
+                if (rs.getString(tableNameColumn).equals(TABLE_NAME)) {
+                    exist = true;
+                    rs.close();
+                    break;
+                }
+            }
+            if (!exist) {
+                Statement statement = connection.createStatement();
+                statement.executeUpdate("CREATE TABLE " + TABLE_NAME
+                        + " (name VARCHAR(32) PRIMARY KEY, balance FLOAT)");
+            }
+        }
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    public AccountCache getAccountCache() {
+        return accounts;
+    }
+
+    /**
+     * @return the balance journal, or null in SYNC durability mode
+     */
+    public BalanceJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Writes all journaled balances to the database and stops the journal.
+     */
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * The ACCOUNT table can be behind the journal, so a balance read from it
+     * is replaced by the journaled one if there is any.
+     */
+    private float currentBalance(String name, float storedBalance) {
+        if (journal != null) {
+            Float journaled = journal.getUnflushedBalance(name);
+            if (journaled != null) {
+                return journaled;
+            }
+        }
+        return storedBalance;
+    }
+
+    //synchronized because this program uses RMI, and more than one thread could
+    //enter some of these methods. But this also results in the server not being
+    //really multi-threaded anymore. We could use another way of access control
+    //for database operations than synchronized, and that is transactions!
+    /**
+     * Lists the accounts in the database, since only some of them are cached.
+     */
+    @Override
+    public String[] listAccounts() throws RemoteException {
+        long start = LIST_ACCOUNTS_CALL.start();
+        boolean error = true;
+        try {
+            List<String> names = new ArrayList<>();
+            try (PooledConnection connection = pool.acquire()) {
+                ResultSet result = connection.executeQuery(
+                        connection.prepare(LIST_ACCOUNTS));
+                while (result.next()) {
+                    names.add(result.getString("name"));
+                }
+                result.close();
+            } catch (SQLException e) {
+                throw new RemoteException("Unable to list accounts", e);
+            }
+            error = false;
+            return names.toArray(new String[names.size()]);
+        } finally {
+            LIST_ACCOUNTS_CALL.finish(start, error);
+        }
+    }
+
+    @Override
+    public Account newAccount(String name) throws RemoteException,
+            RejectedException {
+        long start = NEW_ACCOUNT.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                //accounts is the in-memory cache
+                AccountImpl account = accounts.get(name);
+                if (account != null) {
+                    //If account not null then the account already exists in our cache
+                    //throw exception and abort execution of this method
+                    LOG.debug("Account [{}] exists", name);
+                    throw new RejectedException("Rejected: Bank:  Account for: "
+                            + name + " already exists: " + account);
+                }
+                ResultSet result = null;
+                try (PooledConnection connection = pool.acquire()) {
+                    PreparedStatement findAccountStatement = connection.prepare(FIND_ACCOUNT);
+                    findAccountStatement.setString(1, name);
+                    result = connection.executeQuery(findAccountStatement);
+
+                    if (result.next()) {
+                        // account exists, instantiate, put in cache and throw exception.
+                        account = new AccountImpl(name,
+                                currentBalance(name, result.getFloat("balance")), pool, journal);
+                        result.close();
+                        accounts.put(name, account);
+                        throw new RejectedException("Rejected: Account for: " + name
+                                + " already exists");
+                    }
+                    result.close();
+
+                    //If we get all the way here without throwing exception (and aborting),
+                    //we can create account.
+                    PreparedStatement createAccountStatement = connection.prepare(CREATE_ACCOUNT);
+                    createAccountStatement.setString(1, name);
+                    int rows = connection.executeUpdate(createAccountStatement);
+                    if (rows == 1) {
+                        account = new AccountImpl(name, 0, pool, journal);
+                        accounts.put(name, account);
+                        LOG.info("Bank: Account: {} has been created for {}",
+                                account, name);
+                        error = false;
+                        return account;
+                    } else {
+                        //we didn't update one row
+                        throw new RejectedException("Cannot create an account for " + name);
+                    }
+                } catch (SQLException e) {
+                    LOG.error("Cannot create an account for {}", name, e);
+                    throw new RejectedException("Cannot create an account for " + name, e);
+                }
+            }
+        } finally {
+            NEW_ACCOUNT.finish(start, error);
+        }
+    }
+
+    @Override
+    public Account getAccount(String name) throws RemoteException,
+            RejectedException {
+        long start = GET_ACCOUNT.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                if (name == null) {
+                    error = false;
+                    return null;
+                }
+
+                AccountImpl acct = accounts.get(name);
+                if (acct == null) {
+                    try (PooledConnection connection = pool.acquire()) {
+                        PreparedStatement findAccountStatement = connection.prepare(FIND_ACCOUNT);
+                        findAccountStatement.setString(1, name);
+                        ResultSet result = connection.executeQuery(findAccountStatement);
+                        if (result.next()) {
+                            acct = new AccountImpl(result.getString("name"),
+                                    currentBalance(name, result.getFloat("balance")),
+                                    pool, journal);
+                            result.close();
+                            accounts.put(name, acct);
+                        } else {
+                            result.close();
+                            error = false;
+                            return null;
+                        }
+                    } catch (SQLException e) {
+                        throw new RejectedException("Unable to find account for " + name, e);
+                    }
+                }
+                error = false;
+                return acct;
+            }
+        } finally {
+            GET_ACCOUNT.finish(start, error);
+        }
+    }
+
+    @Override
+    public boolean deleteAccount(String name) throws RejectedException {
+        long start = DELETE_ACCOUNT_CALL.start();
+        boolean error = true;
+        try {
+            long waiting = System.nanoTime();
+            synchronized (this) {
+                LOCK_WAIT.record(System.nanoTime() - waiting);
+                accounts.remove(name);
+                try (PooledConnection connection = pool.acquire()) {
+                    PreparedStatement deleteAccountStatement = connection.prepare(DELETE_ACCOUNT);
+                    deleteAccountStatement.setString(1, name);
+                    int rows = connection.executeUpdate(deleteAccountStatement);
+                    if (rows != 1) {
+                        //Neither cached nor in the database
+                        error = false;
+                        return false;
+                    }
+                    if (journal != null) {
+                        journal.forget(name);
+                    }
+                } catch (SQLException e) {
+                    LOG.error("Unable to delete account for {}", name, e);
+                    throw new RejectedException("Unable to delete account..." + name, e);
+                }
+                LOG.info("Bank: Account for {} has been deleted", name);
+                error = false;
+                return true;
+            }
+        } finally {
+            DELETE_ACCOUNT_CALL.finish(start, error);
+        }
+    }
+
+    @Override
+    public void transfer(String from, String to, float amount)
+            throws RemoteException, RejectedException {
+        long start = TRANSFER.start();
+        boolean error = true;
+        try {
+            transferAll(Collections.singletonList(new Transfer(from, to, amount)));
+            error = false;
+        } finally {
+            TRANSFER.finish(start, error);
+        }
+    }
+
+    /**
+     * Locks every account involved in name order, so two transfers between
+     * the same accounts cannot deadlock, computes the new balances, makes them
+     * durable together and only then updates the accounts in memory. If an
+     * account was evicted from the cache before it was locked, the transfer
+     * starts over with the reloaded account.
+     */
+    @Override
+    public void transferAll(List<Transfer> transfers) throws RemoteException,
+            RejectedException {
+        long start = TRANSFER_ALL.start();
+        boolean error = true;
+        try {
+            while (!tryTransferAll(transfers)) {
+                LOG.debug("Bank: account evicted during transfer, retrying");
+            }
+            error = false;
+        } finally {
+            TRANSFER_ALL.finish(start, error);
+        }
+    }
+
+    private boolean tryTransferAll(List<Transfer> transfers)
+            throws RemoteException, RejectedException {
+        TreeMap<String, AccountImpl> involved = new TreeMap<>();
+        for (Transfer transfer : transfers) {
+            if (transfer.getAmount() < 0) {
+                throw new RejectedException("Rejected: Illegal transfer: "
+                        + transfer);
+            }
+            for (String name : new String[] {transfer.getFrom(), transfer.getTo()}) {
+                if (!involved.containsKey(name)) {
+                    AccountImpl account = (AccountImpl) getAccount(name);
+                    if (account == null) {
+                        throw new RejectedException("Rejected: No account for: "
+                                + name);
+                    }
+                    involved.put(name, account);
+                }
+            }
+        }
+        return lockAndTransfer(new ArrayList<>(involved.values()), 0, transfers);
+    }
+
+    /**
+     * @return false if one of the accounts is no longer the cached one
+     */
+    private boolean lockAndTransfer(List<AccountImpl> locked, int next,
+            List<Transfer> transfers) throws RejectedException {
+        if (next < locked.size()) {
+            long waiting = System.nanoTime();
+            synchronized (locked.get(next)) {
+                AccountImpl.LOCK_WAIT.record(System.nanoTime() - waiting);
+                return lockAndTransfer(locked, next + 1, transfers);
+            }
+        }
+        Map<String, Float> balances = new HashMap<>();
+        Map<String, AccountImpl> byName = new HashMap<>();
+        for (AccountImpl account : locked) {
+            if (!accounts.isCurrent(account)) {
+                return false;
+            }
+            byName.put(account.getName(), account);
+            try {
+                balances.put(account.getName(), account.getBalance());
+            } catch (RemoteException ex) {
+                //A local call, getBalance only declares it for RMI
+            }
+        }
+        for (Transfer transfer : transfers) {
+            float remaining = balances.get(transfer.getFrom()) - transfer.getAmount();
+            if (remaining < 0) {
+                throw new RejectedException("Rejected: Account "
+                        + transfer.getFrom() + ": Negative balance on transfer: "
+                        + remaining);
+            }
+            balances.put(transfer.getFrom(), remaining);
+            balances.put(transfer.getTo(),
+                    balances.get(transfer.getTo()) + transfer.getAmount());
+        }
+        try {
+            storeBalances(balances);
+        } catch (SQLException | IOException ex) {
+            throw new RejectedException("Unable to transfer: " + transfers, ex);
+        }
+        for (Map.Entry<String, Float> balance : balances.entrySet()) {
+            byName.get(balance.getKey()).setBalance(balance.getValue());
+        }
+        LOG.debug("Transaction: {}", transfers);
+        return true;
+    }
+
+    /**
+     * Makes the balances durable together, as one journal record or in one
+     * database transaction.
+     */
+    private void storeBalances(Map<String, Float> balances)
+            throws SQLException, IOException {
+        if (journal != null) {
+            journal.commit(balances);
+            return;
+        }
+        try (PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement updateStatement = pooled.prepare(UPDATE_BALANCE);
+                for (Map.Entry<String, Float> balance : balances.entrySet()) {
+                    updateStatement.setDouble(1, balance.getValue());
+                    updateStatement.setString(2, balance.getKey());
+                    updateStatement.addBatch();
+                }
+                for (int rows : pooled.executeBatch(updateStatement)) {
+                    if (rows == 0) {
+                        throw new SQLException("Account missing in database");
+                    }
+                }
+                connection.commit();
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,257 @@
+package se.kth.id2212.bankjdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of JDBC connections to one datasource. At most maxSize
+ * connections are ever open; they are created when needed and then kept
+ * for reuse, each with its own cache of prepared statements (see
+ * PooledConnection). A thread that finds every connection in use waits until
+ * one is released, or fails with an SQLException after the acquire timeout.
+ * It waits in short slices and tries to open a connection after each, since
+ * a broken connection that is released frees its slot without waking anyone.
+ *
+ * The pool counts acquires, timeouts, the time spent waiting for a
+ * connection and the time connections are held, so that running out of
+ * connections shows up in the numbers before it shows up as errors.
+ */
+public class ConnectionPool {
+    public static final int DEFAULT_SIZE = 10;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 10000;
+    //How long a waiting thread polls for a released connection at a time
+    private static final long WAIT_SLICE_MILLIS = 50;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalHoldNanos = new AtomicLong();
+    private volatile boolean closed;
+
+    public ConnectionPool(String datasource, String dbms)
+            throws ClassNotFoundException {
+        this(datasource, dbms, DEFAULT_SIZE, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param dbms one of access, cloudscape, pointbase, derby, derby-embedded,
+     * derby-memory and mysql
+     * @throws ClassNotFoundException if the JDBC driver for the dbms is not
+     * on the class path
+     */
+    public ConnectionPool(String datasource, String dbms, int maxSize,
+            long acquireTimeoutMillis) throws ClassNotFoundException {
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idle = new LinkedBlockingQueue<>(maxSize);
+        if (dbms.equalsIgnoreCase("access")) {
+            Class.forName("sun.jdbc.odbc.JdbcOdbcDriver");
+            url = "jdbc:odbc:" + datasource;
+            user = null;
+            password = null;
+        } else if (dbms.equalsIgnoreCase("cloudscape")) {
+            Class.forName("COM.cloudscape.core.RmiJdbcDriver");
+            url = "jdbc:cloudscape:rmi://localhost:1099/" + datasource
+                    + ";create=true;";
+            user = null;
+            password = null;
+        } else if (dbms.equalsIgnoreCase("pointbase")) {
+            Class.forName("com.pointbase.jdbc.jdbcUniversalDriver");
+            url = "jdbc:pointbase:server://localhost:9092/" + datasource + ",new";
+            user = "PBPUBLIC";
+            password = "PBPUBLIC";
+        } else if (dbms.equalsIgnoreCase("derby")) {
+            Class.forName("org.apache.derby.jdbc.ClientXADataSource");
+            url = "jdbc:derby://localhost:1527/" + datasource + ";create=true";
+            user = null;
+            password = null;
+        } else if (dbms.equalsIgnoreCase("derby-embedded")) {
+            //Derby running inside this process, no network server needed
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+            url = "jdbc:derby:" + datasource + ";create=true";
+            user = null;
+            password = null;
+        } else if (dbms.equalsIgnoreCase("derby-memory")) {
+            //Embedded Derby that keeps everything in memory, for benchmarks
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+            url = "jdbc:derby:memory:" + datasource + ";create=true";
+            user = null;
+            password = null;
+        } else if (dbms.equalsIgnoreCase("mysql")) {
+            Class.forName("com.mysql.jdbc.Driver");
+            url = "jdbc:mysql://localhost:3306/" + datasource;
+            user = "root";
+            password = "javajava";
+        } else {
+            throw new ClassNotFoundException("Unknown dbms: " + dbms);
+        }
+    }
+
+    /**
+     * Takes an idle connection, opens a new one if fewer than maxSize are
+     * open, or else waits for one to be released.
+     *
+     * @throws SQLException if no connection could be had within the acquire
+     * timeout, or opening a new connection failed
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        PooledConnection connection = idle.poll();
+        if (connection == null) {
+            connection = tryCreate();
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        while (connection == null) {
+            if (closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                timeouts.incrementAndGet();
+                throw new SQLException("No database connection available after "
+                        + acquireTimeoutMillis + " ms (" + maxSize + " in use)");
+            }
+            try {
+                connection = idle.poll(Math.min(remaining,
+                        TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE_MILLIS)),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection");
+            }
+            if (connection == null) {
+                //A discarded connection may have freed a slot
+                connection = tryCreate();
+            }
+        }
+        long now = System.nanoTime();
+        recordWait(now - start);
+        connection.acquiredAt = now;
+        inUse.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * Gives the connection back. Connections that have been closed or whose
+     * transaction cannot be rolled back are thrown away instead of reused.
+     */
+    void release(PooledConnection connection) {
+        totalHoldNanos.addAndGet(System.nanoTime() - connection.acquiredAt);
+        inUse.decrementAndGet();
+        boolean reusable = !closed && connection.isUsable();
+        if (reusable) {
+            try {
+                connection.reset();
+            } catch (SQLException ex) {
+                reusable = false;
+            }
+        }
+        if (!reusable || !idle.offer(connection)) {
+            connection.closePhysically();
+            created.decrementAndGet();
+        }
+    }
+
+    /**
+     * Closes the idle connections, connections in use are closed when they
+     * are released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.closePhysically();
+            created.decrementAndGet();
+        }
+    }
+
+    private PooledConnection tryCreate() throws SQLException {
+        while (true) {
+            int count = created.get();
+            if (count >= maxSize) {
+                return null;
+            }
+            if (created.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        try {
+            Connection connection;
+            if (user == null) {
+                connection = DriverManager.getConnection(url);
+            } else {
+                connection = DriverManager.getConnection(url, user, password);
+            }
+            return new PooledConnection(connection, this);
+        } catch (SQLException ex) {
+            created.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        acquires.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenConnections() {
+        return created.get();
+    }
+
+    public int getConnectionsInUse() {
+        return inUse.get();
+    }
+
+    public long getAcquireCount() {
+        return acquires.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquires.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public double getAverageHoldMillis() {
+        long count = acquires.get();
+        return count == 0 ? 0 : totalHoldNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[" + url + ", open=" + getOpenConnections()
+                + ", inUse=" + getConnectionsInUse() + "]";
+    }
+}
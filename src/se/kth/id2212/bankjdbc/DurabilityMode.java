@@ -0,0 +1,17 @@
+package se.kth.id2212.bankjdbc;
+
+/**
+ * How a balance change is made durable before deposit or withdraw returns.
+ */
+public enum DurabilityMode {
+    /**
+     * Every change is written to the ACCOUNT table with its own auto-committed
+     * UPDATE.
+     */
+    SYNC,
+    /**
+     * Changes are appended to a local BalanceJournal. Concurrent changes share
+     * one fsync, and the journal is written to the ACCOUNT table in batches.
+     */
+    GROUP_COMMIT
+}
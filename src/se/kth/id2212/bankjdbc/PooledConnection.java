@@ -0,0 +1,169 @@
+package se.kth.id2212.bankjdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import se.kth.id2212.metrics.Metrics;
+import se.kth.id2212.metrics.OperationMetrics;
+
+/**
+ * A connection handed out by a ConnectionPool. It remembers the statements
+ * prepared on it, so each SQL string is only prepared once per connection,
+ * and times their execution in the SQL metrics of their statement text when
+ * they are executed through it:
+ *
+ *   ResultSet result = connection.executeQuery(statement);
+ *
+ * Only the execution is timed, reading the rows of a ResultSet afterwards
+ * is not. Closing it gives it back to the pool, which makes it suitable for
+ * try-with-resources:
+ *
+ *   try (PooledConnection connection = pool.acquire()) {
+ *       PreparedStatement statement = connection.prepare(SQL);
+ *       ...
+ *   }
+ *
+ * A PooledConnection must only be used by the thread that acquired it.
+ */
+public class PooledConnection implements AutoCloseable {
+    private final Connection connection;
+    private final ConnectionPool pool;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> keyStatements = new HashMap<>();
+    private final Map<PreparedStatement, OperationMetrics> timings = new IdentityHashMap<>();
+    long acquiredAt;
+
+    PooledConnection(Connection connection, ConnectionPool pool) {
+        this.connection = connection;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the cached statement for the SQL string, prepared on first use
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+            timings.put(statement, sqlMetrics(sql));
+        }
+        return statement;
+    }
+
+    /**
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS to be able to
+     * read the keys of inserted rows with getGeneratedKeys
+     * @return the cached statement for the SQL string, prepared on first use
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys)
+            throws SQLException {
+        if (autoGeneratedKeys != Statement.RETURN_GENERATED_KEYS) {
+            return prepare(sql);
+        }
+        PreparedStatement statement = keyStatements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql, autoGeneratedKeys);
+            keyStatements.put(sql, statement);
+            timings.put(statement, sqlMetrics(sql));
+        }
+        return statement;
+    }
+
+    private static OperationMetrics sqlMetrics(String sql) {
+        return Metrics.operation("SQL", sql.trim().replaceAll("\\s+", " "));
+    }
+
+    /**
+     * Executes a statement prepared on this connection, timing it.
+     */
+    public ResultSet executeQuery(PreparedStatement statement) throws SQLException {
+        OperationMetrics metrics = timings.get(statement);
+        long start = metrics.start();
+        boolean error = true;
+        try {
+            ResultSet result = statement.executeQuery();
+            error = false;
+            return result;
+        } finally {
+            metrics.finish(start, error);
+        }
+    }
+
+    /**
+     * Executes a statement prepared on this connection, timing it.
+     */
+    public int executeUpdate(PreparedStatement statement) throws SQLException {
+        OperationMetrics metrics = timings.get(statement);
+        long start = metrics.start();
+        boolean error = true;
+        try {
+            int rows = statement.executeUpdate();
+            error = false;
+            return rows;
+        } finally {
+            metrics.finish(start, error);
+        }
+    }
+
+    /**
+     * Executes the batch of a statement prepared on this connection, timing
+     * it.
+     */
+    public int[] executeBatch(PreparedStatement statement) throws SQLException {
+        OperationMetrics metrics = timings.get(statement);
+        long start = metrics.start();
+        boolean error = true;
+        try {
+            int[] rows = statement.executeBatch();
+            error = false;
+            return rows;
+        } finally {
+            metrics.finish(start, error);
+        }
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public int getCachedStatementCount() {
+        return statements.size() + keyStatements.size();
+    }
+
+    /**
+     * Gives the connection back to the pool.
+     */
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    boolean isUsable() {
+        try {
+            return !connection.isClosed();
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    void reset() throws SQLException {
+        if (!connection.getAutoCommit()) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    void closePhysically() {
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            //Nothing more to do with a connection we are throwing away
+        }
+    }
+}
@@ -1,73 +1,96 @@
-package se.kth.id2212.bankjdbc;
-
-import java.net.MalformedURLException;
-import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.sql.SQLException;
-
-public class Server {
-
-    private static final String USAGE = "java bankjdbc.Server [rmi-URL of a bank] "
-            + "[database] [dbms: access, derby, pointbase, cloudscape, mysql]";
-    private static final String BANK = "Nordea";
-    private static final String DATASOURCE = "Banks";
-    private static final String DBMS = "derby";
-
-    public Server(String bankName, String datasource, String dbms) 
-            throws RemoteException, MalformedURLException{
-        try {
-            LocateRegistry.getRegistry(1099).list();
-        }
-        catch (RemoteException e) {
-            System.out.println("will create registry");
-            LocateRegistry.createRegistry(1099); //IS THIS RIGHT?
-        }        
-        try {
-            Bank bankobj = new BankImpl(datasource, dbms);
-            System.out.println("created new BankImpl");
-            // Register the newly created object at rmiregistry.
-            java.rmi.Naming.rebind(bankName, bankobj);
-            System.out.println(bankobj + " is ready.");
-        } catch (RemoteException | MalformedURLException |
-                ClassNotFoundException | SQLException e) {
-            System.out.println("Failed to start bank server.");
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
-    public static void main(String[] args) {
-        if (args.length > 3 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
-            System.out.println(USAGE);
-            System.exit(1);
-        }
-
-        String bankName = null;
-        if (args.length > 0) {
-            bankName = args[0];
-        } else {
-            bankName = BANK;
-        }
-
-        String datasource = null;
-        if (args.length > 1) {
-            datasource = args[1];
-        } else {
-            datasource = DATASOURCE;
-        }
-
-        String dbms = null;
-        if (args.length > 2) {
-            dbms = args[2];
-        } else {
-            dbms = DBMS;
-        }
-        try {
-            new Server(bankName, datasource, dbms);
-        } catch (RemoteException ex) {
-            ex.printStackTrace();
-        } catch (MalformedURLException ex) {
-            ex.printStackTrace();
-        }
-    }
-}
+package se.kth.id2212.bankjdbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.sql.SQLException;
+import se.kth.id2212.logging.Log;
+import se.kth.id2212.metrics.Metrics;
+
+public class Server {
+
+    private static final Log LOG = Log.get(Server.class);
+    private static final String USAGE = "java bankjdbc.Server [rmi-URL of a bank] "
+            + "[database] [dbms: access, derby, derby-embedded, pointbase, cloudscape, mysql] "
+            + "[durability: sync, group]\n"
+            + "Set -D" + Metrics.INTERVAL_PROPERTY + "=<seconds> to log metrics periodically";
+    private static final String BANK = "Nordea";
+    private static final String DATASOURCE = "Banks";
+    private static final String DBMS = "derby";
+    private static final DurabilityMode DURABILITY = DurabilityMode.SYNC;
+
+    public Server(String bankName, String datasource, String dbms)
+            throws RemoteException, MalformedURLException {
+        this(bankName, datasource, dbms, DURABILITY);
+    }
+
+    public Server(String bankName, String datasource, String dbms,
+            DurabilityMode durability)
+            throws RemoteException, MalformedURLException{
+        try {
+            LocateRegistry.getRegistry(1099).list();
+        }
+        catch (RemoteException e) {
+            LOG.info("will create registry");
+            LocateRegistry.createRegistry(1099); //IS THIS RIGHT?
+        }        
+        try {
+            Bank bankobj = new BankImpl(new ConnectionPool(datasource, dbms),
+                    durability, new File(BankImpl.DEFAULT_JOURNAL));
+            LOG.info("created new BankImpl");
+            // Register the newly created object at rmiregistry.
+            java.rmi.Naming.rebind(bankName, bankobj);
+            LOG.info("{} is ready.", bankobj);
+            Metrics.registerStats("LogRing", bankName, Log.getRing());
+            Metrics.startConfiguredReporting();
+        } catch (ClassNotFoundException | SQLException | IOException e) {
+            LOG.error("Failed to start bank server.", e);
+            Log.flush();
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 4 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        String bankName = null;
+        if (args.length > 0) {
+            bankName = args[0];
+        } else {
+            bankName = BANK;
+        }
+
+        String datasource = null;
+        if (args.length > 1) {
+            datasource = args[1];
+        } else {
+            datasource = DATASOURCE;
+        }
+
+        String dbms = null;
+        if (args.length > 2) {
+            dbms = args[2];
+        } else {
+            dbms = DBMS;
+        }
+        DurabilityMode durability = DURABILITY;
+        if (args.length > 3) {
+            if (args[3].equalsIgnoreCase("group")) {
+                durability = DurabilityMode.GROUP_COMMIT;
+            } else if (!args[3].equalsIgnoreCase("sync")) {
+                System.out.println(USAGE);
+                System.exit(1);
+            }
+        }
+        try {
+            new Server(bankName, datasource, dbms, durability);
+        } catch (RemoteException | MalformedURLException ex) {
+            LOG.error("Failed to start bank server.", ex);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package se.kth.id2212.bankjdbc;
+
+import java.io.Serializable;
+
+/**
+ * One movement of money between two accounts, the unit of Bank.transferAll.
+ */
+public class Transfer implements Serializable {
+    private static final long serialVersionUID = 4127983265517602311L;
+    private final String from;
+    private final String to;
+    private final float amount;
+
+    public Transfer(String from, String to, float amount) {
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public float getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return from + " -> " + to + ": $" + amount;
+    }
+}
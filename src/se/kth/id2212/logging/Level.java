@@ -0,0 +1,9 @@
+package se.kth.id2212.logging;
+
+/**
+ * How important a log record is. Records below the level set with
+ * Log.setLevel are discarded before anything is captured.
+ */
+public enum Level {
+    DEBUG, INFO, WARN, ERROR
+}
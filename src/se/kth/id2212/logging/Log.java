@@ -0,0 +1,169 @@
+package se.kth.id2212.logging;
+
+import java.io.PrintStream;
+
+/**
+ * The logger of one class. Messages are templates in which each {} is
+ * replaced by the next argument, for instance
+ *
+ *   private static final Log LOG = Log.get(MarketplaceImpl.class);
+ *   ...
+ *   LOG.info("{} logged in", name);
+ *
+ * Logging only stores the template and the argument references in the
+ * shared LogRing, the message is put together later by its writer thread.
+ * Arguments must therefore not be changed after they are logged. Primitive
+ * arguments are boxed, so on very hot paths check isEnabled first.
+ *
+ * An argument that follows "password=" or "password:" in the template is
+ * written as **** whatever its value.
+ *
+ * The level is INFO unless the system property se.kth.id2212.log.level names
+ * another one.
+ */
+public final class Log {
+    private static final LogRing RING = new LogRing(LogRing.DEFAULT_CAPACITY,
+            System.out);
+    private static volatile Level level = initialLevel();
+    private final String name;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                RING.flush();
+            }
+        }, "log-flush"));
+    }
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    public static Log get(Class<?> owner) {
+        return new Log(owner.getSimpleName());
+    }
+
+    public static Log get(String name) {
+        return new Log(name);
+    }
+
+    private static Level initialLevel() {
+        String configured = System.getProperty("se.kth.id2212.log.level");
+        if (configured != null) {
+            try {
+                return Level.valueOf(configured.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                System.out.println("Unknown log level " + configured);
+            }
+        }
+        return Level.INFO;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setOutput(PrintStream out) {
+        RING.setOutput(out);
+    }
+
+    /**
+     * Blocks until everything logged so far has been written.
+     */
+    public static void flush() {
+        RING.flush();
+    }
+
+    public static LogRing getRing() {
+        return RING;
+    }
+
+    public boolean isEnabled(Level atLeast) {
+        return atLeast.compareTo(level) >= 0;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null, null, null, null);
+    }
+
+    public void debug(String message, Object arg) {
+        log(Level.DEBUG, message, arg, null, null, null);
+    }
+
+    public void debug(String message, Object arg1, Object arg2) {
+        log(Level.DEBUG, message, arg1, arg2, null, null);
+    }
+
+    public void debug(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, message, arg1, arg2, arg3, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null, null, null, null);
+    }
+
+    public void info(String message, Object arg) {
+        log(Level.INFO, message, arg, null, null, null);
+    }
+
+    public void info(String message, Object arg1, Object arg2) {
+        log(Level.INFO, message, arg1, arg2, null, null);
+    }
+
+    public void info(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, message, arg1, arg2, arg3, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null, null, null, null);
+    }
+
+    public void warn(String message, Throwable thrown) {
+        log(Level.WARN, message, null, null, null, thrown);
+    }
+
+    public void warn(String message, Object arg) {
+        log(Level.WARN, message, arg, null, null, null);
+    }
+
+    public void warn(String message, Object arg1, Object arg2) {
+        log(Level.WARN, message, arg1, arg2, null, null);
+    }
+
+    public void warn(String message, Object arg1, Object arg2, Object arg3) {
+        log(Level.WARN, message, arg1, arg2, arg3, null);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null, null, null, null);
+    }
+
+    public void error(String message, Throwable thrown) {
+        log(Level.ERROR, message, null, null, null, thrown);
+    }
+
+    public void error(String message, Object arg, Throwable thrown) {
+        log(Level.ERROR, message, arg, null, null, thrown);
+    }
+
+    public void error(String message, Object arg1, Object arg2, Throwable thrown) {
+        log(Level.ERROR, message, arg1, arg2, null, thrown);
+    }
+
+    public void error(String message, Object arg1, Object arg2, Object arg3,
+            Throwable thrown) {
+        log(Level.ERROR, message, arg1, arg2, arg3, thrown);
+    }
+
+    private void log(Level recordLevel, String message, Object arg1,
+            Object arg2, Object arg3, Throwable thrown) {
+        if (isEnabled(recordLevel)) {
+            RING.publish(recordLevel, name, message, arg1, arg2, arg3, thrown);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package se.kth.id2212.logging;
+
+import java.io.PrintStream;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of preallocated log records, filled by any number of
+ * threads without locking and written out by one background thread.
+ *
+ * A thread that logs claims the next sequence number with a compare and set,
+ * fills in the record in that slot and publishes it by writing the sequence
+ * number to the record. It never waits: if the writer is a whole ring behind,
+ * the record is dropped and counted instead, so that a slow console cannot
+ * slow down the calls that log.
+ *
+ * The writer formats each record into one reused StringBuilder. The
+ * timestamp, level, thread and logger name are appended field by field
+ * instead of through a formatter; only the arguments are converted with
+ * toString.
+ */
+public class LogRing {
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final String REDACTED = "****";
+    //Arguments that directly follow one of these in a message are redacted
+    private static final String[] SENSITIVE_KEYS = {"password"};
+    private final Record[] records;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long written;
+    private volatile PrintStream out;
+    private final StringBuilder line = new StringBuilder(256);
+    private final Calendar calendar = Calendar.getInstance();
+    private long dayStart = Long.MAX_VALUE;
+    private long dayEnd = Long.MIN_VALUE;
+    private long reportedDrops;
+
+    static final class Record {
+        volatile long sequence = -1;
+        long timeMillis;
+        Level level;
+        String logger;
+        String thread;
+        String message;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+        Throwable thrown;
+    }
+
+    /**
+     * @param capacity the number of records, rounded up to a power of two
+     */
+    public LogRing(int capacity, PrintStream out) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        records = new Record[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+        }
+        mask = size - 1;
+        this.out = out;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @return false if the ring was full and the record was dropped
+     */
+    boolean publish(Level level, String logger, String message, Object arg1,
+            Object arg2, Object arg3, Throwable thrown) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= records.length) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Record record = records[(int) sequence & mask];
+        record.timeMillis = System.currentTimeMillis();
+        record.level = level;
+        record.logger = logger;
+        record.thread = Thread.currentThread().getName();
+        record.message = message;
+        record.arg1 = arg1;
+        record.arg2 = arg2;
+        record.arg3 = arg3;
+        record.thrown = thrown;
+        record.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Waits until everything logged before the call has been written.
+     */
+    public void flush() {
+        long target = claimed.get();
+        while (written < target) {
+            LockSupport.parkNanos(100000);
+        }
+        out.flush();
+    }
+
+    private void drain() {
+        long next = 0;
+        boolean unflushed = false;
+        while (true) {
+            Record record = records[(int) next & mask];
+            if (record.sequence != next) {
+                //Nothing new, or the record is claimed but not filled in yet
+                if (unflushed) {
+                    out.flush();
+                    unflushed = false;
+                }
+                LockSupport.parkNanos(next < claimed.get() ? 1000 : 1000000);
+                continue;
+            }
+            write(record);
+            unflushed = true;
+            record.message = null;
+            record.arg1 = null;
+            record.arg2 = null;
+            record.arg3 = null;
+            record.thrown = null;
+            next++;
+            written = next;
+        }
+    }
+
+    private void write(Record record) {
+        PrintStream stream = out;
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            stream.println("Log ring full, dropped " + (drops - reportedDrops)
+                    + " records");
+            reportedDrops = drops;
+        }
+        line.setLength(0);
+        appendTime(record.timeMillis);
+        line.append(' ').append(record.level.name());
+        if (record.level.name().length() == 4) {
+            line.append(' ');
+        }
+        line.append(" [").append(record.thread).append("] ")
+                .append(record.logger).append(": ");
+        appendMessage(record.message, record.arg1, record.arg2, record.arg3);
+        stream.println(line);
+        if (record.thrown != null) {
+            record.thrown.printStackTrace(stream);
+        }
+    }
+
+    /**
+     * Appends yyyy-MM-dd HH:mm:ss.SSS in local time. The calendar is only
+     * consulted once a day, the time of day is computed.
+     */
+    private void appendTime(long millis) {
+        if (millis < dayStart || millis >= dayEnd) {
+            calendar.setTimeInMillis(millis);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            dayStart = calendar.getTimeInMillis();
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = calendar.getTimeInMillis();
+            calendar.setTimeInMillis(dayStart);
+        }
+        appendPadded(calendar.get(Calendar.YEAR), 4);
+        line.append('-');
+        appendPadded(calendar.get(Calendar.MONTH) + 1, 2);
+        line.append('-');
+        appendPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        line.append(' ');
+        long ofDay = millis - dayStart;
+        appendPadded((int) (ofDay / 3600000), 2);
+        line.append(':');
+        appendPadded((int) (ofDay / 60000 % 60), 2);
+        line.append(':');
+        appendPadded((int) (ofDay / 1000 % 60), 2);
+        line.append('.');
+        appendPadded((int) (ofDay % 1000), 3);
+    }
+
+    private void appendPadded(int value, int digits) {
+        for (int limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                line.append('0');
+            }
+        }
+        line.append(value);
+    }
+
+    /**
+     * Appends the message with each {} replaced by the next argument, or by
+     * REDACTED if the text before it ends with a sensitive key followed by
+     * '=' or ':'.
+     */
+    private void appendMessage(String message, Object arg1, Object arg2,
+            Object arg3) {
+        int argument = 0;
+        int from = 0;
+        int at;
+        while ((at = message.indexOf("{}", from)) >= 0) {
+            line.append(message, from, at);
+            Object value = argument == 0 ? arg1 : argument == 1 ? arg2 : arg3;
+            if (argument > 2) {
+                line.append("{}");
+            } else if (isSensitive()) {
+                line.append(REDACTED);
+            } else {
+                line.append(value);
+            }
+            argument++;
+            from = at + 2;
+        }
+        line.append(message, from, message.length());
+    }
+
+    private boolean isSensitive() {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end == 0 || (line.charAt(end - 1) != '=' && line.charAt(end - 1) != ':')) {
+            return false;
+        }
+        end--;
+        for (String key : SENSITIVE_KEYS) {
+            if (endsWithIgnoreCase(end, key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean endsWithIgnoreCase(int end, String key) {
+        int start = end - key.length();
+        if (start < 0) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (Character.toLowerCase(line.charAt(start + i)) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getCapacity() {
+        return records.length;
+    }
+
+    public long getQueued() {
+        return claimed.get() - written;
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,191 @@
+package se.kth.id2212.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import se.kth.id2212.logging.Log;
+
+/**
+ * The metrics of this process: an OperationMetrics per timed operation and
+ * the statistics objects of components such as connection pools, all
+ * registered as MBeans under DOMAIN so they can be watched with jconsole,
+ * and a text report of them that startReporting logs periodically.
+ * Periodic reporting is off unless it is asked for, for instance by setting
+ * the system property INTERVAL_PROPERTY to a number of seconds.
+ *
+ * Operations are named by a type, such as the remote interface (Marketplace,
+ * Bank) or SQL, and a name within the type, such as the method or the
+ * statement.
+ */
+public final class Metrics {
+    public static final String DOMAIN = "se.kth.id2212";
+    public static final String INTERVAL_PROPERTY = "se.kth.id2212.metrics.interval";
+    private static final Log LOG = Log.get(Metrics.class);
+    private static final ConcurrentMap<String, OperationMetrics> operations
+            = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, StatsMBean> stats
+            = new ConcurrentHashMap<>();
+    private static Thread reporter;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the metrics of the operation, created and registered the first
+     * time they are asked for
+     */
+    public static OperationMetrics operation(String type, String name) {
+        String key = type + "." + name;
+        OperationMetrics metrics = operations.get(key);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics(type, name);
+            metrics = operations.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                register(type, name, created);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Registers the numeric getters of an object, see StatsMBean. An object
+     * registered earlier under the same type and name is replaced.
+     */
+    public static void registerStats(String type, String name, Object source) {
+        StatsMBean mbean = new StatsMBean(source);
+        stats.put(type + "." + name, mbean);
+        register(type, name, mbean);
+    }
+
+    public static void unregisterStats(String type, String name) {
+        if (stats.remove(type + "." + name) != null) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.unregisterMBean(objectName(type, name));
+            } catch (JMException ex) {
+                //Already gone
+            }
+        }
+    }
+
+    private static void register(String type, String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException ex) {
+            LOG.warn("Problem registering MBean for {} {}: {}", type, name,
+                    ex.getMessage());
+        }
+    }
+
+    private static ObjectName objectName(String type, String name)
+            throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type)
+                + ",name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Starts reporting every INTERVAL_PROPERTY seconds if that system
+     * property is set to more than zero, otherwise does nothing.
+     */
+    public static void startConfiguredReporting() {
+        String configured = System.getProperty(INTERVAL_PROPERTY);
+        if (configured == null) {
+            return;
+        }
+        try {
+            long seconds = Long.parseLong(configured.trim());
+            if (seconds > 0) {
+                startReporting(seconds * 1000);
+            }
+        } catch (NumberFormatException ex) {
+            LOG.warn("Unknown metrics interval {}", configured);
+        }
+    }
+
+    /**
+     * Logs the report every interval, from a daemon thread. Only the first
+     * call starts reporting, later calls do nothing.
+     */
+    public static synchronized void startReporting(final long intervalMillis) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(intervalMillis);
+                        String report = report();
+                        //The log adds the last line break
+                        LOG.info("Report\n{}", report.substring(0,
+                                report.length() - System.lineSeparator().length()));
+                    }
+                } catch (InterruptedException ex) {
+                    //Stop reporting
+                }
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * @return a table of all operations that have been called, sorted by
+     * type and name, followed by the registered statistics
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%9s %7s %6s %9s %9s %9s %9s %9s  %s%n",
+                "count", "errors", "busy", "mean ms", "p50 ms", "p99 ms",
+                "p99.9 ms", "max ms", "operation"));
+        List<OperationMetrics> sorted = new ArrayList<>(operations.values());
+        Collections.sort(sorted, new Comparator<OperationMetrics>() {
+            @Override
+            public int compare(OperationMetrics first, OperationMetrics second) {
+                int byType = first.getType().compareTo(second.getType());
+                return byType != 0 ? byType : first.getName().compareTo(second.getName());
+            }
+        });
+        for (OperationMetrics metrics : sorted) {
+            if (metrics.getCount() == 0 && metrics.getInFlight() == 0) {
+                continue;
+            }
+            report.append(String.format("%9d %7d %6d %9.3f %9.3f %9.3f %9.3f %9.3f  %s %s%n",
+                    metrics.getCount(), metrics.getErrorCount(),
+                    metrics.getInFlight(), metrics.getMeanMillis(),
+                    metrics.getP50Millis(), metrics.getP99Millis(),
+                    metrics.getP999Millis(), metrics.getMaxMillis(),
+                    metrics.getType(), metrics.getName()));
+        }
+        List<String> names = new ArrayList<>(stats.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            StatsMBean mbean = stats.get(name);
+            if (mbean == null) {
+                continue;
+            }
+            report.append(name).append(":");
+            for (Map.Entry<String, Object> value : mbean.values().entrySet()) {
+                report.append(" ").append(value.getKey()).append("=")
+                        .append(value.getValue());
+            }
+            report.append(String.format("%n"));
+        }
+        return report.toString();
+    }
+}
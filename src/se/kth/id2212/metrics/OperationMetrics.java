@@ -0,0 +1,126 @@
+package se.kth.id2212.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies, errors and the number of calls in progress of one operation,
+ * such as a remote method or an SQL statement. Get one from
+ * Metrics.operation and time each call like this:
+ *
+ *   long start = LOGIN.start();
+ *   boolean error = true;
+ *   try {
+ *       ...
+ *       error = false;
+ *       return account;
+ *   } finally {
+ *       LOGIN.finish(start, error);
+ *   }
+ *
+ * error is cleared just before each return, so a call that throws is
+ * counted as an error.
+ *
+ * Waits that are measured by the caller, like the time spent getting a
+ * lock, are added with record.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+    private final String type;
+    private final String name;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    OperationMetrics(String type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    /**
+     * @return the start time to pass to finish
+     */
+    public long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the latency of a call begun with start.
+     *
+     * @param error true if the call threw, to count it as an error
+     */
+    public void finish(long start, boolean error) {
+        latencies.record(System.nanoTime() - start);
+        if (error) {
+            errors.incrementAndGet();
+        }
+        inFlight.decrementAndGet();
+    }
+
+    public void record(long nanos) {
+        latencies.record(nanos);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latencies.getMean() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latencies.getValueAtPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return latencies.getValueAtPercentile(90) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latencies.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latencies.getValueAtPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latencies.getMax() / 1e6;
+    }
+
+    @Override
+    public void reset() {
+        latencies.reset();
+        errors.set(0);
+    }
+}
@@ -0,0 +1,28 @@
+package se.kth.id2212.metrics;
+
+/**
+ * The JMX view of an OperationMetrics. Times are in milliseconds and cover
+ * everything recorded since the start or the last reset.
+ */
+public interface OperationMetricsMBean {
+
+    public long getCount();
+
+    public long getErrorCount();
+
+    public int getInFlight();
+
+    public double getMeanMillis();
+
+    public double getP50Millis();
+
+    public double getP90Millis();
+
+    public double getP99Millis();
+
+    public double getP999Millis();
+
+    public double getMaxMillis();
+
+    public void reset();
+}
@@ -0,0 +1,141 @@
+package se.kth.id2212.metrics;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the numeric and boolean getters of an object, such as
+ * getOpenConnections of a ConnectionPool, as read-only JMX attributes, so
+ * that the classes that keep statistics need no MBean interface of their
+ * own.
+ */
+class StatsMBean implements DynamicMBean {
+    private final Object source;
+    private final Map<String, Method> getters = new LinkedHashMap<>();
+    private final MBeanInfo info;
+
+    StatsMBean(Object source) {
+        this.source = source;
+        Method[] methods = source.getClass().getMethods();
+        Arrays.sort(methods, new Comparator<Method>() {
+            @Override
+            public int compare(Method first, Method second) {
+                return first.getName().compareTo(second.getName());
+            }
+        });
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Method method : methods) {
+            String attribute = attributeName(method);
+            if (attribute != null) {
+                getters.put(attribute, method);
+                attributes.add(new MBeanAttributeInfo(attribute,
+                        method.getReturnType().getName(), attribute, true, false,
+                        method.getName().startsWith("is")));
+            }
+        }
+        info = new MBeanInfo(source.getClass().getName(), "Statistics of a "
+                + source.getClass().getSimpleName(),
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    /**
+     * @return the current value of every attribute, in name order
+     */
+    Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Method> getter : getters.entrySet()) {
+            try {
+                values.put(getter.getKey(), getter.getValue().invoke(source));
+            } catch (IllegalAccessException | InvocationTargetException ex) {
+                values.put(getter.getKey(), "?");
+            }
+        }
+        return values;
+    }
+
+    private static String attributeName(Method method) {
+        if (method.getParameterTypes().length > 0
+                || Modifier.isStatic(method.getModifiers())
+                || method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        Class<?> type = method.getReturnType();
+        String name = method.getName();
+        if (type == boolean.class && name.startsWith("is") && name.length() > 2) {
+            return name.substring(2);
+        }
+        if (type.isPrimitive() && type != void.class && type != boolean.class
+                && name.startsWith("get") && name.length() > 3) {
+            return name.substring(3);
+        }
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException,
+            MBeanException, ReflectionException {
+        Method getter = getters.get(attribute);
+        if (getter == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        try {
+            return getter.invoke(source);
+        } catch (IllegalAccessException ex) {
+            throw new ReflectionException(ex);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            throw new MBeanException(cause instanceof Exception
+                    ? (Exception) cause : new RuntimeException(cause));
+        }
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException | MBeanException
+                    | ReflectionException ex) {
+                //Attributes that cannot be read are left out
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+}